@@ -0,0 +1,438 @@
+#include "direct-io.h"
+#include <android/log.h>
+#include <unistd.h>
+#include <fcntl.h>
+#include <pthread.h>
+#include <sys/ioctl.h>
+#include <sys/stat.h>
+#include <sys/syscall.h>
+#include <linux/fs.h>
+#include <cerrno>
+#include <cstdlib>
+#include <cstring>
+
+#define TAG "nfc_programmer_dio"
+#define MIN_BLOCK_SIZE 512
+
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR,    TAG, __VA_ARGS__)
+#define LOGW(...) __android_log_print(ANDROID_LOG_WARN,     TAG, __VA_ARGS__)
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO,     TAG, __VA_ARGS__)
+
+// Linux AIO has no libc wrapper on bionic
+static long ioSetup(unsigned nr, aio_context_t *ctx)
+{
+    return syscall(__NR_io_setup, nr, ctx);
+}
+
+static long ioDestroy(aio_context_t ctx)
+{
+    return syscall(__NR_io_destroy, ctx);
+}
+
+static long ioSubmit(aio_context_t ctx, long nr, struct iocb **iocbs)
+{
+    return syscall(__NR_io_submit, ctx, nr, iocbs);
+}
+
+static long ioGetEvents(aio_context_t ctx, long minNr, long maxNr, struct io_event *events)
+{
+    return syscall(__NR_io_getevents, ctx, minNr, maxNr, events, NULL);
+}
+
+static pthread_key_t contextKey;
+static pthread_once_t contextOnce = PTHREAD_ONCE_INIT;
+
+static void destroyContext(void *context)
+{
+    ioDestroy((aio_context_t) (uintptr_t) context);
+}
+
+static void createContextKey()
+{
+    pthread_key_create(&contextKey, destroyContext);
+}
+
+/**
+ * AIO context of calling thread, created on first use and kept until the thread exits,
+ * io_destroy waits for an RCU grace period which would cost tens of ms per flash
+ * @return false if AIO is not available
+ */
+static bool threadContext(aio_context_t *context)
+{
+    pthread_once(&contextOnce, createContextKey);
+    void *cached = pthread_getspecific(contextKey);
+    if (cached)
+    {
+        *context = (aio_context_t) (uintptr_t) cached;
+        return true;
+    }
+    *context = 0;
+    if (ioSetup(DIRECT_QUEUE_DEPTH, context) != 0)
+        return false;
+    pthread_setspecific(contextKey, (void *) (uintptr_t) *context);
+    return true;
+}
+
+/**
+ * Destroy context of calling thread after an error, requests in flight are waited for
+ */
+static void dropContext(DirectWriter *writer)
+{
+    pthread_setspecific(contextKey, NULL);
+    ioDestroy(writer->aio);
+    writer->aio = 0;
+    writer->async = false;
+}
+
+/**
+ * Progress of one {@link directWrite}: aligned bytes completed, scaled back to the caller range
+ */
+struct Completion {
+    DirectProgress progress;
+    void *context;
+    uint32_t len;
+    size_t total;
+
+    bool report(size_t completed) const
+    {
+        if (!progress)
+            return true;
+        return progress(context, completed >= total ? len : (uint32_t) ((uint64_t) completed * len / total));
+    }
+};
+
+void directInit(DirectWriter *writer, int fd, bool direct, bool async)
+{
+    struct stat st;
+    int flags, size = 0;
+
+    memset(writer, 0, sizeof(*writer));
+    writer->fd = fd;
+    writer->pageSize = (uint32_t) sysconf(_SC_PAGESIZE);
+    writer->blockSize = MIN_BLOCK_SIZE;
+    if (fstat(fd, &st) == 0)
+    {
+        if (S_ISBLK(st.st_mode) && ioctl(fd, BLKSSZGET, &size) == 0 && size > 0)
+            writer->blockSize = size;
+        else if (S_ISREG(st.st_mode) && st.st_blksize > 0)
+            writer->blockSize = st.st_blksize;
+    }
+    // offsets are masked with it
+    if (writer->blockSize & (writer->blockSize - 1))
+        writer->blockSize = MIN_BLOCK_SIZE;
+
+    if (direct)
+    {
+        flags = fcntl(fd, F_GETFL);
+        if (flags != -1 && fcntl(fd, F_SETFL, flags | O_DIRECT) == 0)
+            writer->direct = true;
+        else
+            LOGW("O_DIRECT not available, error: %s, using page cache\n", strerror(errno));
+    }
+    if (async)
+    {
+        if (threadContext(&writer->aio))
+            writer->async = true;
+        else
+        {
+            writer->aio = 0;
+            LOGW("Linux AIO not available, error: %s, writing synchronously\n", strerror(errno));
+        }
+    }
+    LOGI("Direct writer: block size %u, O_DIRECT %d, AIO %d\n", writer->blockSize, writer->direct, writer->async);
+}
+
+/**
+ * Device refused an O_DIRECT request (ex: alignment it doesn't support), go on through page cache
+ */
+static void dropDirect(DirectWriter *writer)
+{
+    int flags = fcntl(writer->fd, F_GETFL);
+    if (flags != -1)
+        fcntl(writer->fd, F_SETFL, flags & ~O_DIRECT);
+    writer->direct = false;
+    LOGW("O_DIRECT request refused, using page cache\n");
+}
+
+/**
+ * pwrite all of buffer, retry on interrupt and without O_DIRECT if it is refused
+ */
+static ssize_t writeFull(DirectWriter *writer, const uint8_t *buffer, size_t len, off_t offset)
+{
+    size_t done = 0;
+    ssize_t ret;
+
+    while (done < len)
+    {
+        ret = pwrite(writer->fd, buffer + done, len - done, offset + done);
+        if (ret == -1 && errno == EINTR)
+            continue;
+        if (ret == -1 && errno == EINVAL && writer->direct)
+        {
+            dropDirect(writer);
+            continue;
+        }
+        if (ret <= 0)
+        {
+            LOGE("Write %zu bytes at %lld failed, error: %s\n", len - done, (long long) (offset + done),
+                 strerror(errno));
+            return -1;
+        }
+        done += ret;
+    }
+    return done;
+}
+
+/**
+ * Read one device block for read-modify-write, bytes past end of a file backed device read as 0
+ */
+static ssize_t readBlock(DirectWriter *writer, uint8_t *block, off_t offset)
+{
+    size_t done = 0;
+    ssize_t ret;
+
+    while (done < writer->blockSize)
+    {
+        ret = pread(writer->fd, block + done, writer->blockSize - done, offset + done);
+        if (ret == -1 && errno == EINTR)
+            continue;
+        if (ret == -1 && errno == EINVAL && writer->direct)
+        {
+            dropDirect(writer);
+            continue;
+        }
+        if (ret == -1)
+        {
+            LOGE("Read block at %lld failed, error: %s\n", (long long) offset, strerror(errno));
+            return -1;
+        }
+        if (ret == 0)
+        {
+            memset(block + done, 0, writer->blockSize - done);
+            break;
+        }
+        done += ret;
+    }
+    return writer->blockSize;
+}
+
+/**
+ * Request size, multiple of block size
+ */
+static size_t requestSize(const DirectWriter *writer)
+{
+    size_t size = DIRECT_REQUEST_SIZE & ~(size_t) (writer->blockSize - 1);
+    return size ? size : writer->blockSize;
+}
+
+/**
+ * Write aligned buffer from given position, one request at a time
+ */
+static ssize_t writeSync(DirectWriter *writer, const uint8_t *buffer, size_t from, size_t total, off_t start,
+                         const Completion &completion)
+{
+    size_t done, len, request = requestSize(writer);
+
+    for (done = from; done < total; done += len)
+    {
+        len = (total - done < request) ? total - done : request;
+        if (writeFull(writer, buffer + done, len, start + done) == -1)
+            return -1;
+        if (!completion.report(done + len))
+            return -1;
+    }
+    return total;
+}
+
+/**
+ * Write aligned buffer with up to DIRECT_QUEUE_DEPTH requests in flight <br>
+ * If AIO refuses a request, requests in flight are completed and the rest is written synchronously
+ */
+static ssize_t writeAsync(DirectWriter *writer, const uint8_t *buffer, size_t total, off_t start,
+                          const Completion &completion)
+{
+    struct iocb requests[DIRECT_QUEUE_DEPTH];
+    struct iocb *submit[1];
+    struct io_event events[DIRECT_QUEUE_DEPTH];
+    int freeSlots[DIRECT_QUEUE_DEPTH];
+    int freeCount, inflight = 0, slot, i;
+    size_t next = 0, completed = 0, len, request = requestSize(writer);
+    bool failed = false, stopped = false;
+    long got;
+
+    for (freeCount = 0; freeCount < DIRECT_QUEUE_DEPTH; ++freeCount)
+        freeSlots[freeCount] = freeCount;
+
+    while (inflight > 0 || (writer->async && next < total && !failed && !stopped))
+    {
+        while (writer->async && next < total && inflight < DIRECT_QUEUE_DEPTH && !failed && !stopped)
+        {
+            slot = freeSlots[--freeCount];
+            len = (total - next < request) ? total - next : request;
+            memset(&requests[slot], 0, sizeof(requests[slot]));
+            requests[slot].aio_fildes = writer->fd;
+            requests[slot].aio_lio_opcode = IOCB_CMD_PWRITE;
+            requests[slot].aio_buf = (uint64_t) (uintptr_t) (buffer + next);
+            requests[slot].aio_nbytes = len;
+            requests[slot].aio_offset = start + next;
+            requests[slot].aio_data = slot;
+            submit[0] = &requests[slot];
+            if (ioSubmit(writer->aio, 1, submit) != 1)
+            {
+                freeSlots[freeCount++] = slot;
+                if (errno == EAGAIN && inflight > 0)
+                    break;
+                LOGW("AIO submit refused, error: %s, writing synchronously\n", strerror(errno));
+                writer->async = false;
+                break;
+            }
+            inflight++;
+            next += len;
+        }
+        if (inflight == 0)
+            continue;
+
+        got = ioGetEvents(writer->aio, 1, DIRECT_QUEUE_DEPTH, events);
+        if (got < 0)
+        {
+            if (errno == EINTR)
+                continue;
+            // buffer must outlive requests in flight, destroy waits for them
+            LOGE("AIO wait failed, error: %s\n", strerror(errno));
+            dropContext(writer);
+            return -1;
+        }
+        for (i = 0; i < got; ++i)
+        {
+            slot = (int) events[i].data;
+            struct iocb *done = &requests[slot];
+            long res = (long) events[i].res;
+            inflight--;
+            freeSlots[freeCount++] = slot;
+            if (res == (long) done->aio_nbytes)
+            {
+                completed += res;
+                continue;
+            }
+            // short or refused request, finish it synchronously
+            if (res >= 0 || (res == -EINVAL && writer->direct))
+            {
+                size_t skip = res > 0 ? res : 0;
+                if (writeFull(writer, buffer + (done->aio_offset - start) + skip, done->aio_nbytes - skip,
+                              done->aio_offset + skip) != -1)
+                {
+                    completed += done->aio_nbytes;
+                    continue;
+                }
+            }
+            else
+                LOGE("AIO write at %lld failed, error: %s\n", (long long) done->aio_offset, strerror((int) -res));
+            failed = true;
+        }
+        if (!failed && !stopped && !completion.report(completed))
+            stopped = true;
+    }
+
+    if (failed || stopped)
+        return -1;
+    if (next < total)
+        return writeSync(writer, buffer, next, total, start, completion);
+    return total;
+}
+
+ssize_t directWrite(DirectWriter *writer, const uint8_t *data, uint32_t len, off_t offset,
+                    DirectProgress progress, void *context)
+{
+    off_t mask = writer->blockSize - 1;
+    off_t start = offset & ~mask, end = (offset + len + mask) & ~mask;
+    size_t total = end - start;
+    uint8_t *buffer;
+    ssize_t ret = -1;
+    Completion completion = {progress, context, len, total};
+
+    if (!len)
+        return 0;
+    if (posix_memalign((void **) &buffer, writer->pageSize, total) != 0)
+    {
+        LOGE("Can't allocate %zu bytes aligned buffer\n", total);
+        return -1;
+    }
+
+    // partial blocks at both ends keep what is on device around the range
+    bool head = start != offset, tail = end != (off_t) (offset + len);
+    if (head && readBlock(writer, buffer, start) == -1)
+        goto cleanup;
+    if (tail && !(head && end - writer->blockSize == start)
+        && readBlock(writer, buffer + total - writer->blockSize, end - writer->blockSize) == -1)
+        goto cleanup;
+    memcpy(buffer + (offset - start), data, len);
+
+    if (writer->async)
+        ret = writeAsync(writer, buffer, total, start, completion);
+    else
+        ret = writeSync(writer, buffer, 0, total, start, completion);
+
+cleanup:
+    free(buffer);
+    return ret == -1 ? -1 : (ssize_t) len;
+}
+
+ssize_t directRead(DirectWriter *writer, uint8_t *data, uint32_t len, off_t offset)
+{
+    off_t start = offset & ~(off_t) (writer->blockSize - 1);
+    size_t total = ((size_t) (offset - start) + len + writer->blockSize - 1) & ~(size_t) (writer->blockSize - 1);
+    size_t done = 0;
+    uint8_t *buffer;
+    ssize_t ret;
+
+    if (posix_memalign((void **) &buffer, writer->pageSize, total) != 0)
+    {
+        LOGE("Can't allocate %zu bytes read buffer\n", total);
+        return -1;
+    }
+    // without O_DIRECT, clean pages of the range are dropped so the read goes to the device
+    if (!writer->direct)
+        posix_fadvise(writer->fd, start, total, POSIX_FADV_DONTNEED);
+    while (done < total)
+    {
+        ret = pread(writer->fd, buffer + done, total - done, start + done);
+        if (ret == -1 && errno == EINTR)
+            continue;
+        if (ret == -1 && errno == EINVAL && writer->direct)
+        {
+            dropDirect(writer);
+            posix_fadvise(writer->fd, start, total, POSIX_FADV_DONTNEED);
+            continue;
+        }
+        if (ret == -1)
+        {
+            LOGE("Read %zu bytes at %lld failed, error: %s\n", total - done, (long long) (start + done),
+                 strerror(errno));
+            free(buffer);
+            return -1;
+        }
+        if (ret == 0)
+            break;
+        done += ret;
+    }
+
+    size_t skip = (size_t) (offset - start);
+    size_t copied = done <= skip ? 0 : (done - skip < len ? done - skip : len);
+    memcpy(data, buffer + skip, copied);
+    free(buffer);
+    return (ssize_t) copied;
+}
+
+void directRelease(DirectWriter *writer)
+{
+    // context stays with the thread for the next writer
+    writer->aio = 0;
+    writer->async = false;
+    if (writer->direct)
+    {
+        int flags = fcntl(writer->fd, F_GETFL);
+        if (flags != -1)
+            fcntl(writer->fd, F_SETFL, flags & ~O_DIRECT);
+        writer->direct = false;
+    }
+}
@@ -0,0 +1,73 @@
+#ifndef DIRECT_IO_H
+#define DIRECT_IO_H
+
+#include <stdint.h>
+#include <sys/types.h>
+#include <linux/aio_abi.h>
+
+#define DIRECT_QUEUE_DEPTH 8
+#define DIRECT_REQUEST_SIZE 16384
+
+/**
+ * Completion report of {@link directWrite}
+ * @param context: caller data
+ * @param completed: bytes of the range written so far, ends at range length
+ * @return false to stop writing, requests in flight are still waited for
+ */
+typedef bool (*DirectProgress)(void *context, uint32_t completed);
+
+/**
+ * Aligned writer over an open device file <br>
+ * Writes go through page aligned buffers, sized and placed on the device logical block size, with O_DIRECT
+ * if the file allows it and up to DIRECT_QUEUE_DEPTH requests in flight with Linux AIO.
+ * Each of them falls back on its own: buffered I/O if O_DIRECT is refused, synchronous pwrite if AIO is.
+ * One writer per thread at a time, the AIO context belongs to the calling thread.
+ */
+struct DirectWriter {
+    int fd;
+    bool direct;            // O_DIRECT set on fd
+    bool async;             // AIO context usable
+    uint32_t blockSize;     // logical block size, alignment of offsets and lengths
+    uint32_t pageSize;      // buffer alignment
+    aio_context_t aio;
+};
+
+/**
+ * Set up writer on device file, fd stays owned by caller
+ * @param writer: writer to set up
+ * @param fd: device file descriptor opened read / write
+ * @param direct: try O_DIRECT
+ * @param async: try Linux AIO
+ */
+void directInit(DirectWriter *writer, int fd, bool direct, bool async);
+
+/**
+ * Write a range of data, partial blocks at both ends are read back from device and merged
+ * @param writer: writer from {@link directInit}
+ * @param data: data to write
+ * @param len: data length
+ * @param offset: device offset of data, any alignment
+ * @param progress: completion report, can be NULL
+ * @param context: caller data given to progress
+ * @return len, -1 if fail or stopped. All requests are completed when it returns
+ */
+ssize_t directWrite(DirectWriter *writer, const uint8_t *data, uint32_t len, off_t offset,
+                    DirectProgress progress, void *context);
+
+/**
+ * Read a range of device bypassing page cache: with O_DIRECT if set on writer, else after dropping the cached
+ * pages of the range. Caller syncs the device before, so what is read is what the device holds
+ * @param writer: writer from {@link directInit}
+ * @param data: destination
+ * @param len: bytes to read
+ * @param offset: device offset, any alignment
+ * @return bytes read, less than len at end of device, -1 if fail
+ */
+ssize_t directRead(DirectWriter *writer, uint8_t *data, uint32_t len, off_t offset);
+
+/**
+ * Clear O_DIRECT, fd is not closed. AIO context is kept by the calling thread for its next writer
+ */
+void directRelease(DirectWriter *writer);
+
+#endif //DIRECT_IO_H
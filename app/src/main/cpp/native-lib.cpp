@@ -4,15 +4,25 @@
 #include <dirent.h>
 #include <unistd.h>
 #include <fcntl.h>
+#include <pthread.h>
+#include <sys/stat.h>
+#include <time.h>
 //#include <cstdio>
 //#include <cstdlib>
 #include <cerrno>
+#include <cstring>
+#include "direct-io.h"
 
 #define TAG "nfc_programmer_jni"
 #define RESET_DRIVER_PATH "/sys/class/gpio-boot-reset/nfc/"
 #define RESET_DRIVER_FILE_PATH "/sys/class/gpio-boot-reset/nfc/mode"
 #define NFC_DEVICE_PATH "/dev/block/sd"
 #define MAXSIZE 256000
+#define FIRMWARE_OFFSET 0x800
+#define SECTOR_SIZE 512
+#define CHUNK_SIZE 4096
+#define CHUNK_COUNT 4
+#define SLOW_WRITE_RATE (16 * 1024)
 
 
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR,    TAG, __VA_ARGS__)
@@ -20,6 +30,69 @@
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO,     TAG, __VA_ARGS__)
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG,    TAG, __VA_ARGS__)
 
+/**
+ * Progress report from flashing engine
+ * @param context: caller data given to {@link flash}
+ * @param written: bytes written (or skipped in delta mode) so far
+ * @param total: firmware size
+ * @param rate: average throughput in bytes per second
+ */
+typedef void (*ProgressCallback)(void *context, uint32_t written, uint32_t total, uint32_t rate);
+
+/**
+ * Phase duration report from flashing engine, phase id must match <i>FlashMetrics.Phase</i> ordinal
+ * @param context: caller data given to {@link flash}
+ * @param phase: PHASE_*
+ * @param nanos: duration of phase
+ * @param bytes: bytes processed in phase
+ */
+typedef void (*TimingCallback)(void *context, int phase, uint64_t nanos, uint32_t bytes);
+
+/**
+ * Cancellation check of flashing engine, polled after each chunk
+ * @param context: caller data given to {@link flash}
+ * @return true to stop writing, flashing then fails
+ */
+typedef bool (*CancelCallback)(void *context);
+
+#define PHASE_FILE_LOAD 4
+#define PHASE_WRITE 5
+#define PHASE_SYNC 6
+
+/**
+ * Callbacks of flashing engine, any of them can be NULL
+ */
+struct FlashCallbacks {
+    ProgressCallback progress;
+    TimingCallback timing;
+    void *context;
+    CancelCallback cancelled;
+};
+
+/**
+ * Bounded ring of reusable chunk buffers <br>
+ * Reader thread fills buffers from firmware file while caller thread write the previous ones into device
+ */
+struct ChunkQueue {
+    uint8_t data[CHUNK_COUNT][CHUNK_SIZE];
+    ssize_t length[CHUNK_COUNT];    // 0: end of file, -1: read error
+    int head, tail, count;
+    int srcFd;
+    bool stop;
+    pthread_mutex_t lock;
+    pthread_cond_t notEmpty, notFull;
+};
+
+/**
+ * Monotonic clock in nanoseconds
+ */
+static uint64_t nowNs()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (uint64_t) ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
 /**
  * Finding device is mounted on which path (ex: /dev/block/sda, /dev/block/sdb)
  * @return last character of the path (ex:a, b, c)
@@ -39,22 +112,251 @@ char findSdx()
     return '\0';
 }
 
+/**
+ * Write firmware into device, only sectors which content differ from device are written <br>
+ * Consecutive dirty sectors are merged into one write to keep request count low
+ * @param fd: device file descriptor, opened with O_RDWR
+ * @param buffer: firmware data
+ * @param size: firmware size
+ * @param offset: offset of firmware in device
+ * @return number of bytes skipped (unchanged), -1 if fail
+ */
+ssize_t writeDelta(int fd, const uint8_t *buffer, uint32_t size, off_t offset)
+{
+    uint8_t current[SECTOR_SIZE];
+    ssize_t skipped = 0, retVal;
+    uint32_t pos = 0, len, dirtyStart = 0;
+    bool dirty = false, same;
+
+    while (pos < size || dirty)
+    {
+        same = false;
+        len = 0;
+        if (pos < size)
+        {
+            len = (size - pos < SECTOR_SIZE) ? size - pos : SECTOR_SIZE;
+            retVal = pread(fd, current, len, offset + pos);
+            same = (retVal == len) && (memcmp(current, buffer + pos, len) == 0);
+            if (!same && !dirty)
+            {
+                dirtyStart = pos;
+                dirty = true;
+            }
+        }
+
+        // flush pending dirty run when reaching a clean sector or end of image
+        if (dirty && (same || pos >= size))
+        {
+            retVal = pwrite(fd, buffer + dirtyStart, pos - dirtyStart, offset + dirtyStart);
+            if (retVal != pos - dirtyStart)
+            {
+                LOGE ("delta write at 0x%x only %zd, error: %s \n", (uint32_t) (offset + dirtyStart), retVal, strerror(errno));
+                return -1;
+            }
+            dirty = false;
+        }
+
+        if (same)
+            skipped += len;
+        pos += len;
+    }
+
+    return skipped;
+}
+
+/**
+ * Read until buffer full or end of file
+ * @return number of bytes read, -1 if fail
+ */
+static ssize_t readFull(int fd, uint8_t *buffer, size_t size)
+{
+    size_t done = 0;
+    ssize_t retVal;
+    while (done < size)
+    {
+        retVal = read(fd, buffer + done, size - done);
+        if (retVal == -1 && errno == EINTR)
+            continue;
+        if (retVal == -1)
+            return -1;
+        if (retVal == 0)
+            break;
+        done += retVal;
+    }
+    return done;
+}
+
+/**
+ * Reader thread, fill free chunk buffers from firmware file until end of file, read error or stop
+ * @param arg: ChunkQueue
+ */
+static void *readChunks(void *arg)
+{
+    auto *queue = (ChunkQueue *) arg;
+    ssize_t len;
+    int slot;
+
+    do {
+        pthread_mutex_lock(&queue->lock);
+        while (queue->count == CHUNK_COUNT && !queue->stop)
+            pthread_cond_wait(&queue->notFull, &queue->lock);
+        if (queue->stop)
+        {
+            pthread_mutex_unlock(&queue->lock);
+            break;
+        }
+        slot = queue->tail;
+        pthread_mutex_unlock(&queue->lock);
+
+        // slot is owned by reader until it is published
+        len = readFull(queue->srcFd, queue->data[slot], CHUNK_SIZE);
+        if (len == -1)
+            LOGE ("Read firmware upgrade file error, error: %s\n", strerror(errno));
+
+        pthread_mutex_lock(&queue->lock);
+        queue->length[slot] = len;
+        queue->tail = (queue->tail + 1) % CHUNK_COUNT;
+        queue->count++;
+        pthread_cond_signal(&queue->notEmpty);
+        pthread_mutex_unlock(&queue->lock);
+    } while (len > 0);
+
+    return NULL;
+}
+
+/**
+ * Open device file for flashing
+ * @param devPath: device file path, NULL to search in /dev/block
+ * @return file descriptor, -1 if fail
+ */
+static int openDevice(const char *devPath)
+{
+    int fd;
+
+    // find device
+    char devName[20];
+    if (devPath == NULL)
+    {
+        char name = findSdx();
+        if ('\0' == name)
+        {
+            LOGE ("Can't find sdx file in /dev/block, did nfc boot into programming mode yet?, error: %s\n", strerror(errno));
+            return -1;
+        }
+
+        // find device file
+        size_t len = strlen(NFC_DEVICE_PATH);
+        strcpy(devName, NFC_DEVICE_PATH);
+        devName[len] = name;
+        devName[len+1] = '\0';
+        devPath = devName;
+    }
+    LOGI ("Device found at %s \n", devPath);
+
+    // open device file
+    fd = open(devPath, O_RDWR);
+    if (fd == -1)
+        LOGE ("Can't open nfc file %s, error: %s\n", devPath ,strerror(errno));
+    return fd;
+}
+
+/**
+ * Write one chunk of firmware into device, warn if device is writing slowly
+ * @param fd: device file descriptor
+ * @param data: chunk data
+ * @param len: chunk size
+ * @param pos: position of chunk in firmware
+ * @param delta: only write sectors which differ from device
+ * @return number of bytes skipped in this chunk, -1 if fail
+ */
+static ssize_t writeChunk(int fd, const uint8_t *data, uint32_t len, uint32_t pos, bool delta)
+{
+    ssize_t retVal, skipped = 0;
+    uint64_t start = nowNs(), elapsed;
+
+    if (delta)
+    {
+        skipped = writeDelta(fd, data, len, FIRMWARE_OFFSET + pos);
+        if (skipped == -1)
+            return -1;
+    }
+    else
+    {
+        retVal = pwrite(fd, data, len, FIRMWARE_OFFSET + pos);
+        if (retVal != len)
+        {
+            LOGE ("file Write only %zd at %d, error: %s \n", retVal, pos, strerror(errno));
+            return -1;
+        }
+    }
+
+    elapsed = nowNs() - start;
+    if (elapsed && (uint64_t) len * 1000000000ULL / elapsed < SLOW_WRITE_RATE)
+        LOGW ("Slow device, %d bytes took %llu us\n", len, (unsigned long long) (elapsed / 1000));
+    return skipped;
+}
+
+/**
+ * Report progress with average throughput since start
+ */
+static void reportProgress(const FlashCallbacks *callbacks, uint32_t written, uint32_t total, uint64_t start)
+{
+    if (!callbacks || !callbacks->progress)
+        return;
+    uint64_t elapsed = nowNs() - start;
+    callbacks->progress(callbacks->context, written, total,
+                        elapsed ? (uint32_t) ((uint64_t) written * 1000000000ULL / elapsed) : 0);
+}
+
+/**
+ * @return true if caller asked to stop, logged once per check which stops
+ */
+static bool isCancelled(const FlashCallbacks *callbacks, uint32_t written, uint32_t total)
+{
+    if (!callbacks || !callbacks->cancelled || !callbacks->cancelled(callbacks->context))
+        return false;
+    LOGW("Flashing cancelled at %d of %d bytes\n", written, total);
+    return true;
+}
+
+/**
+ * Report duration of a phase since start
+ */
+static void reportTiming(const FlashCallbacks *callbacks, int phase, uint64_t start, uint32_t bytes)
+{
+    if (callbacks && callbacks->timing)
+        callbacks->timing(callbacks->context, phase, nowNs() - start, bytes);
+}
+
+/**
+ * fsync device and report its duration
+ */
+static void syncDevice(int fd, const FlashCallbacks *callbacks)
+{
+    uint64_t start = nowNs();
+    fsync(fd);
+    reportTiming(callbacks, PHASE_SYNC, start, 0);
+}
+
 /**
  * Main function for flashing into <b>lcp11u68</b> <br>
  * - calculate firmware file size <br>
- * - load firmware file size <br>
- * - write down into mcu
+ * - stream firmware file through {@link ChunkQueue}, reading next chunk while writing current one <br>
+ * - write down into mcu (whole image, or changed sectors only in delta mode)
+ * @param path: firmware file path
+ * @param devPath: device file path, NULL to search in /dev/block
+ * @param delta: only write sectors which differ from device
+ * @param callbacks: progress after each chunk and phase timing, can be NULL
+ * @return number of bytes skipped (always 0 if not delta), -1 if fail
  */
-extern "C"
-JNIEXPORT jint JNICALL
-Java_com_example_nfc_1programmer_FlashTask_program(JNIEnv *env, jobject instance,
-                                                    jstring path_) {
-    DIR *dir;
-    FILE *srcFile;
-    uint32_t fileSize;
-    int fd;
-    ssize_t retVal;
-    const char *path = env->GetStringUTFChars(path_, 0);
+ssize_t flash(const char *path, const char *devPath, bool delta, const FlashCallbacks *callbacks)
+{
+    struct stat st;
+    uint32_t fileSize, written = 0;
+    int fd, srcFd, slot;
+    ssize_t retVal, len, skipped = 0;
+    uint64_t start;
+    pthread_t reader;
 
     // Check is gpio-boot-reset driver is loaded
 //    if ((dir = opendir(RESET_DRIVER_PATH)) == NULL)
@@ -66,8 +368,9 @@ Java_com_example_nfc_1programmer_FlashTask_program(JNIEnv *env, jobject instance
 //    closedir(dir);
 
     // Load new update file
-    srcFile = fopen(path, "r");
-    if (srcFile)
+    start = nowNs();
+    srcFd = open(path, O_RDONLY);
+    if (srcFd != -1)
         LOGI("firmware upgrade file %s loaded\n", path);
     else
     {
@@ -76,80 +379,552 @@ Java_com_example_nfc_1programmer_FlashTask_program(JNIEnv *env, jobject instance
     }
 
     // Calculate file size
-    fseek(srcFile, 0, SEEK_END);
-    fileSize = ftell(srcFile);
-    if (!fileSize)
+    if (fstat(srcFd, &st) == -1 || !st.st_size)
     {
         LOGE("Error when calculate firmware upgrade file size: %s", strerror(errno));
+        close(srcFd);
+        return -1;
     }
-    if (fileSize > SIZE_MAX)
+    if (st.st_size > MAXSIZE)
     {
         LOGE("Size of firmware upgrade is greater than size of disk. Stopped upgrade firmware");
+        close(srcFd);
         return -1;
     }
+    fileSize = st.st_size;
     LOGI("Size of firmware upgrade is %d\n", fileSize);
-    fclose (srcFile);
+    reportTiming(callbacks, PHASE_FILE_LOAD, start, 0);
 
-    // Read data from update firmware file (binary mode)
-    fd = open(path, O_RDONLY);
+    fd = openDevice(devPath);
     if (fd == -1)
     {
-        LOGE("Can't load firmware upgrade file in binary, error: %s\n", strerror(errno));
-
+        close(srcFd);
         return -1;
     }
-    auto *buffer = (uint8_t *) malloc(fileSize);
-    retVal = read(fd, buffer, fileSize);
-    if (retVal != fileSize)
+
+    // Start reader thread
+    auto *queue = (ChunkQueue *) calloc(1, sizeof(ChunkQueue));
+    if (queue == NULL)
     {
-        free(buffer);
+        LOGE ("Can't allocate chunk queue\n");
         close(fd);
-        LOGE ("Read firmware upgrade file error, error: %s\n", strerror(errno));
+        close(srcFd);
         return -1;
     }
+    queue->srcFd = srcFd;
+    pthread_mutex_init(&queue->lock, NULL);
+    pthread_cond_init(&queue->notEmpty, NULL);
+    pthread_cond_init(&queue->notFull, NULL);
+    if (pthread_create(&reader, NULL, readChunks, queue) != 0)
+    {
+        LOGE ("Can't start firmware reader thread\n");
+        skipped = -1;
+        goto cleanup;
+    }
+
+    // Flashing device
+    LOGI(delta ? "Writing changed sectors to disk\n" : "Writing firmware data to disk\n");
+    start = nowNs();
+    while (true)
+    {
+        pthread_mutex_lock(&queue->lock);
+        while (queue->count == 0)
+            pthread_cond_wait(&queue->notEmpty, &queue->lock);
+        slot = queue->head;
+        len = queue->length[slot];
+        pthread_mutex_unlock(&queue->lock);
+
+        if (len <= 0)
+        {
+            if (len == -1 || written != fileSize)
+            {
+                LOGE ("Firmware upgrade file ended at %d of %d bytes\n", written, fileSize);
+                skipped = -1;
+            }
+            break;
+        }
+
+        retVal = writeChunk(fd, queue->data[slot], len, written, delta);
+        if (retVal == -1)
+        {
+            skipped = -1;
+            break;
+        }
+        skipped += retVal;
+        written += len;
+
+        // Release buffer to reader
+        pthread_mutex_lock(&queue->lock);
+        queue->head = (queue->head + 1) % CHUNK_COUNT;
+        queue->count--;
+        pthread_cond_signal(&queue->notFull);
+        pthread_mutex_unlock(&queue->lock);
+
+        reportProgress(callbacks, written, fileSize, start);
+        if (isCancelled(callbacks, written, fileSize))
+        {
+            skipped = -1;
+            break;
+        }
+    }
+
+    // Stop reader if we bailed out early
+    pthread_mutex_lock(&queue->lock);
+    queue->stop = true;
+    pthread_cond_signal(&queue->notFull);
+    pthread_mutex_unlock(&queue->lock);
+    pthread_join(reader, NULL);
+
+    if (skipped != -1)
+    {
+        reportTiming(callbacks, PHASE_WRITE, start, fileSize);
+        syncDevice(fd, callbacks);
+        if (delta)
+            LOGI("Delta flash skipped %zd of %d bytes\n", skipped, fileSize);
+        LOGI("Finished!!!\n");
+    }
+
+    //reset_device();
+
+cleanup:
+    pthread_cond_destroy(&queue->notFull);
+    pthread_cond_destroy(&queue->notEmpty);
+    pthread_mutex_destroy(&queue->lock);
+    free(queue);
     close(fd);
-    LOGI ("Read firmware upgrade file complete \n");
+    close(srcFd);
+    return skipped;
+}
 
-    // find device
-    char name = findSdx(), devPath[20];
-    if ('\0' == name)
+/**
+ * Flashing firmware which is already in memory into <b>lcp11u68</b>, no file access at all
+ * @param image: firmware data
+ * @param size: firmware size
+ * @param devPath: device file path, NULL to search in /dev/block
+ * @param delta: only write sectors which differ from device
+ * @param callbacks: progress after each chunk and phase timing, can be NULL
+ * @return number of bytes skipped (always 0 if not delta), -1 if fail
+ */
+ssize_t flashBuffer(const uint8_t *image, uint32_t size, const char *devPath, bool delta,
+                    const FlashCallbacks *callbacks)
+{
+    int fd;
+    uint32_t written = 0, len;
+    ssize_t retVal, skipped = 0;
+    uint64_t start;
+
+    if (!size || size > MAXSIZE)
     {
-        LOGE ("Can't find sdx file in /dev/block, did nfc boot into programming mode yet?, error: %s\n", strerror(errno));
-        free(buffer);
+        LOGE("Size of firmware upgrade %d is invalid. Stopped upgrade firmware", size);
         return -1;
     }
 
-    // find device file
-    size_t len = strlen(NFC_DEVICE_PATH);
-    strcpy(devPath, NFC_DEVICE_PATH);
-    devPath[len] = name;
-    devPath[len+1] = '\0';
-    LOGI ("Device found at %s \n", devPath);
+    fd = openDevice(devPath);
+    if (fd == -1)
+        return -1;
 
-    // open device file
-    fd = open(devPath, O_RDWR);
+    LOGI(delta ? "Writing changed sectors to disk\n" : "Writing firmware data to disk\n");
+    start = nowNs();
+    while (written < size)
+    {
+        len = (size - written < CHUNK_SIZE) ? size - written : CHUNK_SIZE;
+        retVal = writeChunk(fd, image + written, len, written, delta);
+        if (retVal == -1)
+        {
+            close(fd);
+            return -1;
+        }
+        skipped += retVal;
+        written += len;
+        reportProgress(callbacks, written, size, start);
+        if (isCancelled(callbacks, written, size))
+        {
+            close(fd);
+            return -1;
+        }
+    }
+
+    reportTiming(callbacks, PHASE_WRITE, start, size);
+    syncDevice(fd, callbacks);
+    close(fd);
+    if (delta)
+        LOGI("Delta flash skipped %zd of %d bytes\n", skipped, size);
+    LOGI("Finished!!!\n");
+    return skipped;
+}
+
+/**
+ * Flashing only extents of firmware in memory which hold data, target flash must be erased <br>
+ * Progress is reported as position in image, ending at size.
+ * @param image: firmware data
+ * @param size: firmware size
+ * @param extents: start, end pairs in image, sorted, sector aligned
+ * @param count: number of extents
+ * @param devPath: device file path, NULL to search in /dev/block
+ * @param callbacks: progress after each chunk and phase timing, can be NULL
+ * @return number of erased bytes not written, -1 if fail
+ */
+ssize_t flashExtents(const uint8_t *image, uint32_t size, const uint32_t *extents, uint32_t count,
+                     const char *devPath, const FlashCallbacks *callbacks)
+{
+    int fd;
+    uint32_t i, pos, end, len, dataBytes = 0;
+    uint64_t start;
+
+    if (!size || size > MAXSIZE)
+    {
+        LOGE("Size of firmware upgrade %d is invalid. Stopped upgrade firmware", size);
+        return -1;
+    }
+    for (i = 0; i < count; ++i)
+    {
+        if (extents[2*i] >= extents[2*i + 1] || extents[2*i + 1] > size)
+        {
+            LOGE("Invalid extent %d-%d of %d bytes image\n", extents[2*i], extents[2*i + 1], size);
+            return -1;
+        }
+    }
+
+    fd = openDevice(devPath);
     if (fd == -1)
+        return -1;
+
+    LOGI("Writing %d extents to disk\n", count);
+    start = nowNs();
+    for (i = 0; i < count; ++i)
     {
-        LOGE ("Can't open nfc file %s, error: %s\n", devPath ,strerror(errno));
-        free(buffer);
+        for (pos = extents[2*i]; pos < extents[2*i + 1]; pos += len)
+        {
+            end = extents[2*i + 1];
+            len = (end - pos < CHUNK_SIZE) ? end - pos : CHUNK_SIZE;
+            if (writeChunk(fd, image + pos, len, pos, false) == -1)
+            {
+                close(fd);
+                return -1;
+            }
+            dataBytes += len;
+            reportProgress(callbacks, pos + len, size, start);
+            if (isCancelled(callbacks, pos + len, size))
+            {
+                close(fd);
+                return -1;
+            }
+        }
+    }
+    // erased tail, nothing written but image is done
+    if (!count || extents[2*count - 1] != size)
+        reportProgress(callbacks, size, size, start);
+
+    reportTiming(callbacks, PHASE_WRITE, start, dataBytes);
+    syncDevice(fd, callbacks);
+    close(fd);
+    LOGI("Erased run elision skipped %d of %d bytes\n", size - dataBytes, size);
+    LOGI("Finished!!!\n");
+    return size - dataBytes;
+}
+
+/**
+ * Progress of {@link flashDirect} for one extent, mapped to image position
+ */
+struct DirectContext {
+    const FlashCallbacks *callbacks;
+    uint32_t base, size;
+    uint64_t start;
+};
+
+static bool directProgress(void *context, uint32_t completed)
+{
+    auto *direct = (DirectContext *) context;
+    reportProgress(direct->callbacks, direct->base + completed, direct->size, direct->start);
+    return !isCancelled(direct->callbacks, direct->base + completed, direct->size);
+}
+
+/**
+ * Flashing firmware in memory through the {@link DirectWriter} engine: page aligned buffers, block aligned
+ * O_DIRECT writes, several requests in flight with Linux AIO, each falling back to plain writes if refused
+ * @param image: firmware data
+ * @param size: firmware size
+ * @param extents: start, end pairs in image to write, sorted. NULL to write the whole image
+ * @param count: number of extents
+ * @param devPath: device file path, NULL to search in /dev/block
+ * @param callbacks: progress after each completed request and phase timing, can be NULL
+ * @return number of image bytes not written (outside extents), -1 if fail
+ */
+ssize_t flashDirect(const uint8_t *image, uint32_t size, const uint32_t *extents, uint32_t count,
+                    const char *devPath, const FlashCallbacks *callbacks)
+{
+    int fd;
+    uint32_t i, dataBytes = 0;
+    uint32_t whole[2] = {0, size};
+    DirectWriter writer;
+    DirectContext context = {callbacks, 0, size, 0};
+
+    if (!size || size > MAXSIZE)
+    {
+        LOGE("Size of firmware upgrade %d is invalid. Stopped upgrade firmware", size);
         return -1;
     }
+    if (extents == NULL)
+    {
+        extents = whole;
+        count = 1;
+    }
+    for (i = 0; i < count; ++i)
+    {
+        if (extents[2*i] >= extents[2*i + 1] || extents[2*i + 1] > size)
+        {
+            LOGE("Invalid extent %d-%d of %d bytes image\n", extents[2*i], extents[2*i + 1], size);
+            return -1;
+        }
+    }
 
-    // Flashing device
-    lseek(fd, 0x800, SEEK_SET);
-    LOGI("Writing firmware data to disk\n");
-    retVal = write(fd, buffer, fileSize);
-    if (retVal != fileSize)
-        LOGE ("file Write only %d, error: %s \n",retVal ,strerror(errno));
-    fsync(fd);
+    fd = openDevice(devPath);
+    if (fd == -1)
+        return -1;
+    directInit(&writer, fd, true, true);
+
+    LOGI("Writing %d extents to disk, direct I/O\n", count);
+    context.start = nowNs();
+    for (i = 0; i < count; ++i)
+    {
+        context.base = extents[2*i];
+        if (directWrite(&writer, image + extents[2*i], extents[2*i + 1] - extents[2*i],
+                        FIRMWARE_OFFSET + extents[2*i], directProgress, &context) == -1)
+        {
+            directRelease(&writer);
+            close(fd);
+            return -1;
+        }
+        dataBytes += extents[2*i + 1] - extents[2*i];
+    }
+    // erased tail, nothing written but image is done
+    if (!count || extents[2*count - 1] != size)
+        reportProgress(callbacks, size, size, context.start);
+
+    reportTiming(callbacks, PHASE_WRITE, context.start, dataBytes);
+    directRelease(&writer);
+    syncDevice(fd, callbacks);
     close(fd);
     LOGI("Finished!!!\n");
+    return size - dataBytes;
+}
 
-    //reset_device();
+/**
+ * JNI bridge from flashing engine to <i>FlashProgressListener.onFlashProgress(long, long, long)</i>
+ * and <i>FlashMetrics.recordNative(int, long, long)</i>, cancelled when calling java thread is interrupted
+ */
+struct JniCallbacks : FlashCallbacks {
+    JNIEnv *env;
+    jobject listener;
+    jmethodID onProgress;
+    jclass metrics;
+    jmethodID recordNative;
+    jclass thread;
+    jmethodID currentThread, isInterrupted;
+
+    JniCallbacks(JNIEnv *env, jobject listener) : env(env), listener(listener), onProgress(NULL) {
+        progress = jniProgress;
+        timing = jniTiming;
+        cancelled = jniCancelled;
+        context = this;
+        if (listener)
+            onProgress = env->GetMethodID(env->GetObjectClass(listener), "onFlashProgress", "(JJJ)V");
+        metrics = env->FindClass("com/example/nfc_programmer/FlashMetrics");
+        recordNative = metrics ? env->GetStaticMethodID(metrics, "recordNative", "(IJJ)V") : NULL;
+        thread = env->FindClass("java/lang/Thread");
+        currentThread = thread ? env->GetStaticMethodID(thread, "currentThread", "()Ljava/lang/Thread;") : NULL;
+        isInterrupted = thread ? env->GetMethodID(thread, "isInterrupted", "()Z") : NULL;
+        if (env->ExceptionCheck())
+            env->ExceptionClear();
+    }
 
-    free (buffer);
+    static void jniProgress(void *context, uint32_t written, uint32_t total, uint32_t rate)
+    {
+        auto *jni = (JniCallbacks *) context;
+        if (!jni->onProgress)
+            return;
+        jni->env->CallVoidMethod(jni->listener, jni->onProgress, (jlong) written, (jlong) total, (jlong) rate);
+        if (jni->env->ExceptionCheck())
+            jni->env->ExceptionClear();
+    }
+
+    static bool jniCancelled(void *context)
+    {
+        auto *jni = (JniCallbacks *) context;
+        if (!jni->currentThread || !jni->isInterrupted)
+            return false;
+        jobject current = jni->env->CallStaticObjectMethod(jni->thread, jni->currentThread);
+        bool interrupted = current && jni->env->CallBooleanMethod(current, jni->isInterrupted);
+        jni->env->DeleteLocalRef(current);
+        if (jni->env->ExceptionCheck())
+        {
+            jni->env->ExceptionClear();
+            return false;
+        }
+        return interrupted;
+    }
+
+    static void jniTiming(void *context, int phase, uint64_t nanos, uint32_t bytes)
+    {
+        auto *jni = (JniCallbacks *) context;
+        if (!jni->recordNative)
+            return;
+        jni->env->CallStaticVoidMethod(jni->metrics, jni->recordNative, (jint) phase, (jlong) nanos, (jlong) bytes);
+        if (jni->env->ExceptionCheck())
+            jni->env->ExceptionClear();
+    }
+};
+
+/**
+ * JNI entry for flashing firmware file into <b>lcp11u68</b>, safe to call from several threads
+ * at the same time for different devices, see {@link flash}
+ */
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_example_nfc_1programmer_NativeFlashBackend_programDevice(JNIEnv *env, jclass type, jstring path_,
+                                                                   jstring devPath_, jboolean delta,
+                                                                   jobject listener) {
+    const char *path = env->GetStringUTFChars(path_, 0);
+    const char *devPath = devPath_ ? env->GetStringUTFChars(devPath_, 0) : NULL;
+    JniCallbacks jni(env, listener);
+    ssize_t retVal = flash(path, devPath, delta, &jni);
+    if (devPath)
+        env->ReleaseStringUTFChars(devPath_, devPath);
     env->ReleaseStringUTFChars(path_, path);
-    return true;
+
+    return retVal;
+}
+
+/**
+ * JNI entry for flashing firmware held in a direct ByteBuffer (ex: from FirmwareCache), see {@link flashBuffer}
+ */
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_example_nfc_1programmer_NativeFlashBackend_programImage(JNIEnv *env, jclass type, jobject image,
+                                                                  jint size, jstring devPath_, jboolean delta,
+                                                                  jobject listener) {
+    auto *data = (const uint8_t *) env->GetDirectBufferAddress(image);
+    if (data == NULL || size > env->GetDirectBufferCapacity(image))
+    {
+        LOGE("Firmware image is not a direct buffer or smaller than %d bytes\n", size);
+        return -1;
+    }
+    const char *devPath = devPath_ ? env->GetStringUTFChars(devPath_, 0) : NULL;
+    JniCallbacks jni(env, listener);
+    ssize_t retVal = flashBuffer(data, size, devPath, delta, &jni);
+    if (devPath)
+        env->ReleaseStringUTFChars(devPath_, devPath);
+
+    return retVal;
+}
+
+/**
+ * JNI entry for flashing only data extents of firmware held in a direct ByteBuffer, see {@link flashExtents}
+ */
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_example_nfc_1programmer_NativeFlashBackend_programExtents(JNIEnv *env, jclass type, jobject image,
+                                                                    jint size, jintArray extents_,
+                                                                    jstring devPath_, jobject listener) {
+    auto *data = (const uint8_t *) env->GetDirectBufferAddress(image);
+    if (data == NULL || size > env->GetDirectBufferCapacity(image))
+    {
+        LOGE("Firmware image is not a direct buffer or smaller than %d bytes\n", size);
+        return -1;
+    }
+    jsize count = env->GetArrayLength(extents_) / 2;
+    jint *extents = env->GetIntArrayElements(extents_, NULL);
+    const char *devPath = devPath_ ? env->GetStringUTFChars(devPath_, 0) : NULL;
+    JniCallbacks jni(env, listener);
+    ssize_t retVal = flashExtents(data, size, (const uint32_t *) extents, count, devPath, &jni);
+    if (devPath)
+        env->ReleaseStringUTFChars(devPath_, devPath);
+    env->ReleaseIntArrayElements(extents_, extents, JNI_ABORT);
+
+    return retVal;
+}
+
+/**
+ * JNI entry for flashing firmware held in a direct ByteBuffer with direct I/O engine, see {@link flashDirect}
+ */
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_example_nfc_1programmer_NativeFlashBackend_programDirect(JNIEnv *env, jclass type, jobject image,
+                                                                   jint size, jintArray extents_,
+                                                                   jstring devPath_, jobject listener) {
+    auto *data = (const uint8_t *) env->GetDirectBufferAddress(image);
+    if (data == NULL || size > env->GetDirectBufferCapacity(image))
+    {
+        LOGE("Firmware image is not a direct buffer or smaller than %d bytes\n", size);
+        return -1;
+    }
+    jsize count = extents_ ? env->GetArrayLength(extents_) / 2 : 0;
+    jint *extents = extents_ ? env->GetIntArrayElements(extents_, NULL) : NULL;
+    const char *devPath = devPath_ ? env->GetStringUTFChars(devPath_, 0) : NULL;
+    JniCallbacks jni(env, listener);
+    ssize_t retVal = flashDirect(data, size, (const uint32_t *) extents, count, devPath, &jni);
+    if (devPath)
+        env->ReleaseStringUTFChars(devPath_, devPath);
+    if (extents)
+        env->ReleaseIntArrayElements(extents_, extents, JNI_ABORT);
+
+    return retVal;
+}
+
+/**
+ * JNI entry for reading back a range of device without page cache, see {@link directRead}
+ * @return bytes read into buffer, -1 if fail
+ */
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_example_nfc_1programmer_NativeFlashBackend_readUncached(JNIEnv *env, jclass type, jstring devPath_,
+                                                                  jlong offset, jobject buffer, jint len) {
+    auto *data = (uint8_t *) env->GetDirectBufferAddress(buffer);
+    if (data == NULL || len < 0 || len > env->GetDirectBufferCapacity(buffer))
+    {
+        LOGE("Read back buffer is not a direct buffer or smaller than %d bytes\n", len);
+        return -1;
+    }
+    const char *devPath = env->GetStringUTFChars(devPath_, 0);
+    int fd = open(devPath, O_RDONLY);
+    if (fd == -1)
+    {
+        LOGE("Can't open %s for read back, error: %s\n", devPath, strerror(errno));
+        env->ReleaseStringUTFChars(devPath_, devPath);
+        return -1;
+    }
+    DirectWriter reader;
+    directInit(&reader, fd, true, false);
+    ssize_t retVal = directRead(&reader, data, (uint32_t) len, (off_t) offset);
+    directRelease(&reader);
+    close(fd);
+    env->ReleaseStringUTFChars(devPath_, devPath);
+    return (jint) retVal;
+}
+
+/**
+ * Find all device files in /dev/block (ex: /dev/block/sda, /dev/block/sdb)
+ * @return array of device path, empty if no device found
+ */
+extern "C"
+JNIEXPORT jobjectArray JNICALL
+Java_com_example_nfc_1programmer_NativeFlashBackend_listDevices(JNIEnv *env, jclass type) {
+    char name, path[20], found[26][20];
+    int count = 0;
+    size_t len = strlen(NFC_DEVICE_PATH);
+    for (name = 'a'; name <= 'z'; ++name)
+    {
+        strcpy(path, NFC_DEVICE_PATH);
+        path[len] = name;
+        path[len+1] = '\0';
+        if (access(path, F_OK) == 0)
+            strcpy(found[count++], path);
+    }
+
+    jobjectArray devices = env->NewObjectArray(count, env->FindClass("java/lang/String"), NULL);
+    for (int i = 0; i < count; ++i)
+        env->SetObjectArrayElement(devices, i, env->NewStringUTF(found[i]));
+    return devices;
 }
 
 /**
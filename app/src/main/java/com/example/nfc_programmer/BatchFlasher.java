@@ -0,0 +1,222 @@
+package com.example.nfc_programmer;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Flash the same firmware into several <b>lcp11u68</b> boards at the same time <br>
+ * Each device is flashed by one worker of a bounded pool, so a slow or failed board
+ * does not stall the others. Each device get its own progress, result and timing.
+ * Devices cut off by timeout or interrupt are cancelled and waited for, up to {@link #STOP_TIMEOUT},
+ * so the caller doesn't reset a board which is still being written.
+ */
+public class BatchFlasher {
+    final static String TAG = "Batch Flasher";
+    final static int MAX_WORKERS = 4;
+    // time given to cancelled workers to stop writing
+    final static long STOP_TIMEOUT = 5000;
+
+    /**
+     * Per device callback, called from worker threads
+     */
+    public interface Listener {
+        void onDeviceProgress(String devPath, long written, long total, long bytesPerSecond);
+
+        void onDeviceFinished(Result result);
+    }
+
+    /**
+     * Result of flashing one device
+     */
+    public static class Result {
+        public final String devPath;
+        public boolean success;
+        public long bytesSkipped;
+        public long durationMs;
+        public String error;
+
+        Result(String devPath) {
+            this.devPath = devPath;
+        }
+
+        @Override
+        public String toString() {
+            return devPath + (success ? " ok in " + durationMs + " ms" : " failed: " + error);
+        }
+    }
+
+    /**
+     * Write one image into one device
+     */
+    interface DeviceWriter {
+        /**
+         * @return bytes skipped, -1 if fail
+         */
+        long write(String path, String devPath, FlashProgressListener listener);
+    }
+
+    private final ExecutorService executor;
+    // devices being written right now, guarded by itself
+    private final List<String> writing = new ArrayList<>();
+    private volatile long stopTimeout = STOP_TIMEOUT;
+
+    /**
+     * Pool kept for the lifetime of its owner (ex: {@link FlashService}), batches run one after the other on it
+     * @param workers: maximum number of devices flashed at the same time
+     */
+    BatchFlasher(int workers) {
+        this.executor = Executors.newFixedThreadPool(workers);
+    }
+
+    /**
+     * Flash firmware into all given devices, block until every device finished or timeout
+     * @param path: firmware file path
+     * @param devices: device files (ex: /dev/block/sda)
+     * @param timeoutMs: time limit for the whole batch, devices not finished are reported as failed
+     * @param writer: writes one device, called from worker threads
+     * @param listener: per device callback, can be null
+     * @return one result per device, in the same order as devices
+     */
+    public List<Result> flashAll(final String path, List<String> devices, long timeoutMs, final DeviceWriter writer,
+                                 final Listener listener) {
+        List<Future<Result>> futures = new ArrayList<>();
+        List<Result> results = new ArrayList<>();
+
+        for (final String devPath : devices) {
+            futures.add(executor.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    synchronized (writing) {
+                        writing.add(devPath);
+                    }
+                    try {
+                        return flashOne(writer, path, devPath, listener);
+                    } finally {
+                        synchronized (writing) {
+                            writing.remove(devPath);
+                            writing.notifyAll();
+                        }
+                    }
+                }
+            }));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (int i = 0; i < devices.size(); i++) {
+            Result result;
+            try {
+                result = futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                futures.get(i).cancel(true);
+                result = new Result(devices.get(i));
+                result.error = "timeout";
+                result.durationMs = timeoutMs;
+            } catch (ExecutionException e) {
+                result = new Result(devices.get(i));
+                result.error = String.valueOf(e.getCause());
+            } catch (InterruptedException e) {
+                // job cancelled, stop writing this device too
+                Thread.currentThread().interrupt();
+                futures.get(i).cancel(true);
+                result = new Result(devices.get(i));
+                result.error = "interrupted";
+            }
+            results.add(result);
+        }
+
+        List<String> running = awaitWorkers();
+        for (Result result : results) {
+            if (running.contains(result.devPath)) {
+                Log.e(TAG, result.devPath + " still being written " + stopTimeout + " ms after cancel");
+                result.success = false;
+                result.error = (result.error == null ? "" : result.error + ", ") + "still writing";
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Wait for cancelled workers to leave their device, up to stop timeout. Interrupt status of caller is kept
+     * @return devices still being written
+     */
+    private List<String> awaitWorkers() {
+        boolean interrupted = Thread.interrupted();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(stopTimeout);
+        try {
+            synchronized (writing) {
+                long remaining;
+                while (!writing.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(writing, remaining);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                return new ArrayList<>(writing);
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param timeoutMs: time given to cancelled workers to stop, see {@link #STOP_TIMEOUT}
+     */
+    void setStopTimeout(long timeoutMs) {
+        stopTimeout = timeoutMs;
+    }
+
+    private Result flashOne(DeviceWriter writer, String path, final String devPath, final Listener listener) {
+        Result result = new Result(devPath);
+        long start = System.nanoTime();
+
+        Log.i(TAG, "flashing " + devPath);
+        long ret = writer.write(path, devPath, new FlashProgressListener() {
+            @Override
+            public void onFlashProgress(long written, long total, long bytesPerSecond) {
+                if (listener != null)
+                    listener.onDeviceProgress(devPath, written, total, bytesPerSecond);
+            }
+        });
+        result.durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        result.success = ret != -1;
+        result.bytesSkipped = Math.max(ret, 0);
+        if (!result.success)
+            result.error = "flash error";
+        Log.i(TAG, result.toString());
+
+        if (listener != null)
+            listener.onDeviceFinished(result);
+        return result;
+    }
+
+    /**
+     * Stop worker threads and wait for them, flasher can't be used after that
+     * @return true if every worker stopped within stop timeout
+     */
+    public boolean shutdown() {
+        executor.shutdownNow();
+        boolean interrupted = Thread.interrupted();
+        try {
+            if (executor.awaitTermination(stopTimeout, TimeUnit.MILLISECONDS))
+                return true;
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        Log.e(TAG, "workers still running " + stopTimeout + " ms after shutdown");
+        return false;
+    }
+}
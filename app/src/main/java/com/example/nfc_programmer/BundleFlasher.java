@@ -0,0 +1,86 @@
+package com.example.nfc_programmer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flash every image of a {@link FirmwareBundle} into <b>lcp11u68</b> in one bootloader session <br>
+ * Images which follow each other without gap are written with one gathering write, others at their own position.
+ * Device is synced once at the end.
+ */
+public class BundleFlasher {
+    final static String TAG = "Bundle Flasher";
+
+    /**
+     * @param bundle: images to flash
+     * @param variables: per-board values of patches (ex: serial)
+     * @param devPath: device file (ex: /dev/block/sda)
+     * @param listener: progress in bytes of all images, can be null
+     * @return number of bytes written, -1 if fail
+     */
+    public static long flash(FirmwareBundle bundle, Map<String, String> variables, String devPath,
+                             FlashProgressListener listener) {
+        try (RandomAccessFile device = new RandomAccessFile(devPath, "rw")) {
+            FileChannel dst = device.getChannel();
+            ByteBuffer[] data = bundle.render(variables);
+            long start = FlashMetrics.now();
+            long written = write(bundle.getEntries(), data, dst, listener);
+
+            FlashMetrics.get().record(FlashMetrics.Phase.WRITE, start, written);
+            start = FlashMetrics.now();
+            dst.force(false);
+            FlashMetrics.get().record(FlashMetrics.Phase.SYNC, start);
+            Log.i(TAG, "Finished!!! written " + written + " bytes of " + bundle);
+            return written;
+        } catch (IOException e) {
+            Log.e(TAG, "flash bundle " + bundle + " into " + devPath + " error: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Write runs of adjacent images with gathering writes
+     * @param entries: images in offset order
+     * @param data: rendered data of each entry
+     * @return number of bytes written
+     */
+    static long write(List<FirmwareBundle.Entry> entries, ByteBuffer[] data, FileChannel dst,
+                      FlashProgressListener listener) throws IOException {
+        long total = 0, written = 0, begin = System.nanoTime();
+        for (ByteBuffer buffer : data)
+            total += buffer.remaining();
+
+        for (int first = 0, last; first < entries.size(); first = last) {
+            for (last = first + 1; last < entries.size(); last++) {
+                if (entries.get(last - 1).end() != entries.get(last).offset)
+                    break;
+            }
+            ByteBuffer[] run = Arrays.copyOfRange(data, first, last);
+            long runBytes = 0;
+            for (ByteBuffer buffer : run)
+                runBytes += buffer.remaining();
+
+            dst.position(FlashBackend.FIRMWARE_OFFSET + entries.get(first).offset);
+            long done = 0;
+            while (done < runBytes) {
+                long len = dst.write(run);
+                if (len <= 0)
+                    throw new IOException("device accepted no data at " + dst.position());
+                done += len;
+            }
+            written += runBytes;
+            if (listener != null) {
+                long elapsed = System.nanoTime() - begin;
+                listener.onFlashProgress(written, total, elapsed > 0 ? written * 1000000000L / elapsed : 0);
+            }
+        }
+        return written;
+    }
+}
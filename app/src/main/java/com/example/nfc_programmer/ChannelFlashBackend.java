@@ -0,0 +1,223 @@
+package com.example.nfc_programmer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pure-Java {@link FlashBackend} using NIO {@link FileChannel} <br>
+ * Full flash copy firmware file into device with <i>transferTo</i> so data is not copied through the heap,
+ * in-memory image and delta flash use positional writes at {@link #FIRMWARE_OFFSET}.
+ */
+public class ChannelFlashBackend implements FlashBackend {
+    final static String TAG = "Channel Backend";
+    final static String NFC_DEVICE_PATH = "/dev/block/sd";
+    final static int CHUNK_SIZE = 4096;
+
+    @Override
+    public long flash(String path, String devPath, boolean delta, FlashProgressListener listener) {
+        File file = new File(path);
+        long size = file.length();
+        if (size <= 0 || size > MAX_IMAGE_SIZE) {
+            Log.e(TAG, "Size of firmware upgrade " + size + " is invalid. Stopped upgrade firmware");
+            return -1;
+        }
+
+        try (FileInputStream stream = new FileInputStream(file);
+             FileChannel dst = openDevice(devPath)) {
+            FileChannel src = stream.getChannel();
+            long skipped, start = FlashMetrics.now();
+
+            if (delta) {
+                // delta need the data on heap to compare anyway
+                ByteBuffer image = ByteBuffer.allocate((int) size);
+                while (image.hasRemaining()) {
+                    if (src.read(image) == -1)
+                        throw new IOException("firmware file ended at " + image.position());
+                }
+                image.flip();
+                skipped = write(image, dst, true, listener);
+            } else {
+                Progress progress = new Progress(size, listener);
+                long written = 0;
+                dst.position(FIRMWARE_OFFSET);
+                while (written < size) {
+                    long len = src.transferTo(written, Math.min(CHUNK_SIZE, size - written), dst);
+                    if (len <= 0)
+                        throw new IOException("transfer stopped at " + written + " of " + size);
+                    written += len;
+                    progress.update(written);
+                }
+                skipped = 0;
+            }
+            FlashMetrics.get().record(FlashMetrics.Phase.WRITE, start, size);
+            sync(dst);
+            Log.i(TAG, "Finished!!! skipped " + skipped + " of " + size + " bytes");
+            return skipped;
+        } catch (IOException e) {
+            Log.e(TAG, "flash " + path + " error: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    @Override
+    public long flash(ByteBuffer image, String devPath, boolean delta, FlashProgressListener listener) {
+        int size = image.remaining();
+        if (size <= 0 || size > MAX_IMAGE_SIZE) {
+            Log.e(TAG, "Size of firmware upgrade " + size + " is invalid. Stopped upgrade firmware");
+            return -1;
+        }
+
+        try (FileChannel dst = openDevice(devPath)) {
+            long start = FlashMetrics.now();
+            long skipped = write(image.slice(), dst, delta, listener);
+            FlashMetrics.get().record(FlashMetrics.Phase.WRITE, start, size);
+            sync(dst);
+            Log.i(TAG, "Finished!!! skipped " + skipped + " of " + size + " bytes");
+            return skipped;
+        } catch (IOException e) {
+            Log.e(TAG, "flash image error: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    @Override
+    public long flash(ByteBuffer image, ExtentIndex extents, String devPath, FlashProgressListener listener) {
+        ByteBuffer data = image.slice();
+        if (data.limit() != extents.getSize()) {
+            Log.e(TAG, "Extent index of " + extents.getSize() + " bytes doesn't match image of " + data.limit());
+            return -1;
+        }
+
+        try (FileChannel dst = openDevice(devPath)) {
+            Progress progress = new Progress(data.limit(), listener);
+            long start = FlashMetrics.now();
+            for (int i = 0; i < extents.getCount(); i++) {
+                for (int pos = extents.getStart(i); pos < extents.getEnd(i); pos += CHUNK_SIZE) {
+                    int end = Math.min(pos + CHUNK_SIZE, extents.getEnd(i));
+                    writeFully(dst, range(data, pos, end), FIRMWARE_OFFSET + pos);
+                    progress.update(end);
+                }
+            }
+            // erased tail, nothing written but image is done
+            int count = extents.getCount();
+            if (count == 0 || extents.getEnd(count - 1) != data.limit())
+                progress.update(data.limit());
+            FlashMetrics.get().record(FlashMetrics.Phase.WRITE, start, extents.getDataBytes());
+            sync(dst);
+            Log.i(TAG, "Finished!!! " + extents + ", saved " + extents.getSavedBytes() + " bytes");
+            return extents.getSavedBytes();
+        } catch (IOException e) {
+            Log.e(TAG, "flash extents error: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    @Override
+    public String[] findDevices() {
+        List<String> devices = new ArrayList<>();
+        for (char name = 'a'; name <= 'z'; name++) {
+            if (new File(NFC_DEVICE_PATH + name).exists())
+                devices.add(NFC_DEVICE_PATH + name);
+        }
+        return devices.toArray(new String[0]);
+    }
+
+    /**
+     * Open device for positional writes, overridden by the simulator to add device latency
+     * @param devPath: device file, null to use first device in /dev/block
+     * @return read/write channel of device
+     * @throws IOException if no device found or it can't be opened
+     */
+    protected FileChannel openDevice(String devPath) throws IOException {
+        if (devPath == null) {
+            String[] devices = findDevices();
+            if (devices.length == 0)
+                throw new IOException("Can't find sdx file in /dev/block, did nfc boot into programming mode yet?");
+            devPath = devices[0];
+        }
+        Log.i(TAG, "Device found at " + devPath);
+        return new RandomAccessFile(devPath, "rw").getChannel();
+    }
+
+    /**
+     * Write image chunk by chunk with positional writes
+     * @param image: firmware data from position 0 to limit
+     * @return number of bytes skipped (always 0 if not delta)
+     */
+    private static long write(ByteBuffer image, FileChannel dst, boolean delta, FlashProgressListener listener) throws IOException {
+        Progress progress = new Progress(image.limit(), listener);
+        ByteBuffer current = delta ? ByteBuffer.allocate(SECTOR_SIZE) : null;
+        long skipped = 0;
+
+        for (int pos = 0; pos < image.limit(); pos += CHUNK_SIZE) {
+            int end = Math.min(pos + CHUNK_SIZE, image.limit());
+            if (delta) {
+                for (int sector = pos; sector < end; sector += SECTOR_SIZE) {
+                    ByteBuffer data = range(image, sector, Math.min(sector + SECTOR_SIZE, end));
+                    if (sameAsDevice(dst, data, current, FIRMWARE_OFFSET + sector))
+                        skipped += data.remaining();
+                    else
+                        writeFully(dst, data, FIRMWARE_OFFSET + sector);
+                }
+            } else
+                writeFully(dst, range(image, pos, end), FIRMWARE_OFFSET + pos);
+            progress.update(end);
+        }
+        return skipped;
+    }
+
+    private static ByteBuffer range(ByteBuffer image, int start, int end) {
+        ByteBuffer data = image.duplicate();
+        data.limit(end).position(start);
+        return data;
+    }
+
+    private static boolean sameAsDevice(FileChannel dst, ByteBuffer data, ByteBuffer current, long position) throws IOException {
+        current.clear().limit(data.remaining());
+        while (current.hasRemaining()) {
+            if (dst.read(current, position + current.position()) <= 0)
+                return false;
+        }
+        current.flip();
+        return current.equals(data);
+    }
+
+    private static void sync(FileChannel dst) throws IOException {
+        long start = FlashMetrics.now();
+        dst.force(false);
+        FlashMetrics.get().record(FlashMetrics.Phase.SYNC, start);
+    }
+
+    private static void writeFully(FileChannel dst, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining())
+            position += dst.write(data, position);
+    }
+
+    /**
+     * Forward written bytes and average throughput to listener
+     */
+    private static class Progress {
+        private final long total, start = System.nanoTime();
+        private final FlashProgressListener listener;
+
+        Progress(long total, FlashProgressListener listener) {
+            this.total = total;
+            this.listener = listener;
+        }
+
+        void update(long written) {
+            if (listener == null)
+                return;
+            long elapsed = System.nanoTime() - start;
+            listener.onFlashProgress(written, total, elapsed > 0 ? written * 1000000000L / elapsed : 0);
+        }
+    }
+}
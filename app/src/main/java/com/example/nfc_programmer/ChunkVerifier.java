@@ -0,0 +1,289 @@
+package com.example.nfc_programmer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Read-back verification running alongside the flashing backend <br>
+ * Used as the backend progress listener: completely written chunks are verified in batches of {@link #BATCH_CHUNKS}
+ * on a separate thread, while the backend keep writing later chunks. Each batch syncs the device once, is read back
+ * around the page cache with {@link NativeFlashBackend#readUncached}, so what is compared is what the device holds,
+ * and the CRC32 of each chunk compared with the image.
+ * At the end only chunks which failed are re-written. Verified chunks can be recorded in a {@link WriteJournal}.
+ */
+public class ChunkVerifier implements FlashProgressListener {
+    final static String TAG = "Chunk Verifier";
+    final static int CHUNK_SIZE = 4096;
+    // chunks synced and read back together
+    final static int BATCH_CHUNKS = 16;
+    final static int MAX_REWRITES = 2;
+    final static long VERIFY_TIMEOUT = 10000;
+
+    /**
+     * Verification result, one entry per {@link #CHUNK_SIZE} chunk of the image
+     */
+    public static class Result {
+        public final boolean[] chunkPassed;
+        public int rewritten;
+        // verification was still running when given up, outcome of chunks is unknown
+        public boolean unfinished;
+
+        Result(boolean[] chunkPassed) {
+            this.chunkPassed = chunkPassed;
+        }
+
+        public List<Integer> failedChunks() {
+            List<Integer> failed = new ArrayList<>();
+            for (int i = 0; i < chunkPassed.length; i++) {
+                if (!chunkPassed[i])
+                    failed.add(i);
+            }
+            return failed;
+        }
+
+        public boolean success() {
+            return !unfinished && failedChunks().isEmpty();
+        }
+    }
+
+    // native-lib not loaded (ex: unit test on JVM), reads go through page cache
+    private static volatile boolean cachedReadOnly;
+
+    private final ByteBuffer image;
+    private final String devPath;
+    // read back of one batch and crc input of direct buffers, used by one thread at a time:
+    // verify thread, then finish() once it terminated
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BATCH_CHUNKS * CHUNK_SIZE);
+    private final byte[] crcBuffer = new byte[CHUNK_SIZE];
+    private final FlashProgressListener listener;
+    private final RandomAccessFile device;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final boolean[] passed;
+    private int submitted;
+    private volatile WriteJournal journal;
+
+    /**
+     * @param image: firmware data from position to limit, which is being written
+     * @param devPath: device file being written
+     * @param listener: downstream progress listener, can be null
+     * @throws IOException if device can't be opened
+     */
+    ChunkVerifier(ByteBuffer image, String devPath, FlashProgressListener listener) throws IOException {
+        this.image = image.slice();
+        this.listener = listener;
+        this.devPath = devPath;
+        this.device = new RandomAccessFile(devPath, "rw");
+        this.passed = new boolean[(this.image.limit() + CHUNK_SIZE - 1) / CHUNK_SIZE];
+    }
+
+    /**
+     * @param journal: record chunks which passed verification, so an interrupted flash can resume. Can be null
+     */
+    void setJournal(WriteJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Forward progress and queue verification of chunks which are completely written
+     */
+    @Override
+    public void onFlashProgress(long written, long total, long bytesPerSecond) {
+        if (listener != null)
+            listener.onFlashProgress(written, total, bytesPerSecond);
+        submitUpTo(written >= image.limit() ? passed.length : (int) (written / CHUNK_SIZE));
+    }
+
+    private synchronized void submitUpTo(int chunks) {
+        // wait for a full batch, except the last one
+        if (chunks < passed.length && chunks - submitted < BATCH_CHUNKS)
+            return;
+        while (submitted < chunks) {
+            final int first = submitted;
+            final int end = Math.min(chunks, first + BATCH_CHUNKS);
+            submitted = end;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    verify(first, end);
+                }
+            });
+        }
+    }
+
+    /**
+     * Wait for pending verification, then re-write and re-verify failed chunks
+     * Call after backend returned, verifier can't be used after that
+     * @return per chunk result
+     */
+    public Result finish() {
+        submitUpTo(passed.length);
+        executor.shutdown();
+        boolean terminated = false;
+        try {
+            terminated = executor.awaitTermination(VERIFY_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!terminated) {
+            // a batch blocked in a device read would race re-verify on read buffer and results: give up
+            executor.shutdownNow();
+            Log.e(TAG, "verification still running after " + VERIFY_TIMEOUT + " ms, flash failed");
+            Result result = new Result(passed.clone());
+            result.unfinished = true;
+            try {
+                device.close();
+            } catch (IOException ignored) {}
+            return result;
+        }
+
+        Result result = new Result(passed);
+        try {
+            for (int round = 0; round < MAX_REWRITES && !result.success(); round++) {
+                List<Integer> failed = result.failedChunks();
+                for (int chunk : failed) {
+                    Log.w(TAG, "chunk " + chunk + " failed verification, re-writing");
+                    rewrite(chunk);
+                    result.rewritten++;
+                }
+                for (int chunk : failed)
+                    verify(chunk, chunk + 1);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "re-write error: " + e.getMessage());
+        } finally {
+            try {
+                device.close();
+            } catch (IOException ignored) {}
+        }
+
+        Log.i(TAG, (result.success() ? "verified " : "verification failed, ") + passed.length
+                + " chunks, " + result.rewritten + " re-written");
+        return result;
+    }
+
+    private ByteBuffer chunkData(int chunk) {
+        ByteBuffer data = image.duplicate();
+        data.position(chunk * CHUNK_SIZE).limit(Math.min((chunk + 1) * CHUNK_SIZE, image.limit()));
+        return data;
+    }
+
+    /**
+     * Sync device once, read chunks back from device and compare CRC32 of each one with image
+     * @param first: first chunk
+     * @param end: chunk after last one, at most {@link #BATCH_CHUNKS} after first
+     */
+    private void verify(int first, int end) {
+        int start = first * CHUNK_SIZE, len = Math.min(end * CHUNK_SIZE, image.limit()) - start;
+        ByteBuffer actual;
+        try {
+            device.getChannel().force(false);
+            actual = readBack(FlashBackend.FIRMWARE_OFFSET + start, len);
+        } catch (IOException e) {
+            Log.e(TAG, "read back chunks " + first + "-" + end + " error: " + e.getMessage());
+            for (int chunk = first; chunk < end; chunk++)
+                passed[chunk] = false;
+            return;
+        }
+        for (int chunk = first; chunk < end; chunk++) {
+            ByteBuffer expected = chunkData(chunk);
+            ByteBuffer read = actual.duplicate();
+            read.position(Math.min((chunk - first) * CHUNK_SIZE, actual.limit()));
+            read.limit(Math.min(read.position() + expected.remaining(), actual.limit()));
+            passed[chunk] = read.remaining() == expected.remaining() && crc(expected) == crc(read);
+            if (passed[chunk])
+                commit(chunk);
+        }
+        syncJournal();
+    }
+
+    /**
+     * Read range of device without page cache, through it only if native-lib isn't there
+     * @return data read, from 0 to limit
+     */
+    private ByteBuffer readBack(long position, int len) throws IOException {
+        ByteBuffer buffer = readBuffer;
+        buffer.clear();
+        if (!cachedReadOnly) {
+            try {
+                int read = NativeFlashBackend.readUncached(devPath, position, buffer, len);
+                if (read < 0)
+                    throw new IOException("uncached read of " + len + " bytes at " + position + " failed");
+                buffer.limit(read);
+                return buffer;
+            } catch (LinkageError e) {
+                cachedReadOnly = true;
+                Log.w(TAG, "native-lib not available, read back goes through page cache");
+            }
+        }
+        buffer.limit(len);
+        FileChannel channel = device.getChannel();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) <= 0)
+                break;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void commit(int chunk) {
+        WriteJournal journal = this.journal;
+        if (journal == null)
+            return;
+        try {
+            journal.commit(chunk);
+        } catch (IOException e) {
+            // flash itself is fine, only a later resume is affected
+            Log.w(TAG, "journal commit of chunk " + chunk + " error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Make commits of a batch durable at once, device was synced before the batch was read back
+     */
+    private void syncJournal() {
+        WriteJournal journal = this.journal;
+        if (journal == null)
+            return;
+        try {
+            journal.sync();
+        } catch (IOException e) {
+            Log.w(TAG, "journal sync error: " + e.getMessage());
+        }
+    }
+
+    private void rewrite(int chunk) throws IOException {
+        ByteBuffer data = chunkData(chunk);
+        long position = FlashBackend.FIRMWARE_OFFSET + chunk * CHUNK_SIZE;
+        FileChannel channel = device.getChannel();
+        while (data.hasRemaining())
+            position += channel.write(data, position);
+    }
+
+    /**
+     * CRC32 of data from position to limit, direct buffers are copied out in slices of {@link #crcBuffer}
+     */
+    private long crc(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        if (data.hasArray()) {
+            crc.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            ByteBuffer slice = data.duplicate();
+            while (slice.hasRemaining()) {
+                int len = Math.min(slice.remaining(), crcBuffer.length);
+                slice.get(crcBuffer, 0, len);
+                crc.update(crcBuffer, 0, len);
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,230 @@
+package com.example.nfc_programmer;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Block devices in /dev/block linked to the usb device behind them (VID, PID, serial) <br>
+ * Kept up to date from block node create / delete events (inotify), sysfs is only read for a node when it appears.
+ * Lookup by node or serial is a hash map access, no rescan of /dev/block.
+ */
+public class DeviceRegistry {
+    final static String TAG = "Device Registry";
+    final static String BLOCK_DEVICE_DIR = "/dev/block";
+    final static String SYSFS_DIR = "/sys";
+
+    /**
+     * Whole-disk block device of a usb mass storage device
+     */
+    public static class Device {
+        // device node (ex: /dev/block/sda)
+        public final String node;
+        // -1 if the block device is not on usb
+        public final int vendorId, productId;
+        // usb serial number, null if device has none
+        public final String serial;
+        // block device number "major:minor" (ex: 8:0)
+        public final String devNumber;
+
+        Device(String node, int vendorId, int productId, String serial, String devNumber) {
+            this.node = node;
+            this.vendorId = vendorId;
+            this.productId = productId;
+            this.serial = serial;
+            this.devNumber = devNumber;
+        }
+
+        public boolean matches(int vendorId, int productId) {
+            return this.vendorId == vendorId && this.productId == productId;
+        }
+
+        @Override
+        public String toString() {
+            if (vendorId == -1)
+                return node + " (not usb) dev " + devNumber;
+            return String.format("%s %04x:%04x serial %s dev %s", node, vendorId, productId, serial, devNumber);
+        }
+    }
+
+    /**
+     * Called from observer thread when a device appear or disappear
+     */
+    public interface Listener {
+        void onDeviceAdded(Device device);
+
+        void onDeviceRemoved(Device device);
+    }
+
+    private final File devDir, sysDir;
+    private final ConcurrentHashMap<String, Device> byNode = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Device> bySerial = new ConcurrentHashMap<>();
+    private volatile Listener listener;
+    private final FileObserver observer;
+
+    DeviceRegistry() {
+        this(new File(BLOCK_DEVICE_DIR), new File(SYSFS_DIR));
+    }
+
+    /**
+     * @param devDir: directory of block device nodes
+     * @param sysDir: sysfs root, or a stand-in tree for tests
+     */
+    DeviceRegistry(File devDir, File sysDir) {
+        this.devDir = devDir;
+        this.sysDir = sysDir;
+        observer = new FileObserver(devDir.getPath(), FileObserver.CREATE | FileObserver.DELETE) {
+            @Override
+            public void onEvent(int event, String name) {
+                if ((event & FileObserver.CREATE) != 0)
+                    onNodeAdded(name);
+                else if ((event & FileObserver.DELETE) != 0)
+                    onNodeRemoved(name);
+            }
+        };
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Start watching, then register devices already present
+     */
+    public void start() {
+        observer.startWatching();
+        String[] names = devDir.list();
+        if (names != null) {
+            for (String name : names)
+                onNodeAdded(name);
+        }
+    }
+
+    public void stop() {
+        observer.stopWatching();
+    }
+
+    /**
+     * @param node: device node (ex: /dev/block/sda)
+     * @return device, null if not registered
+     */
+    public Device get(String node) {
+        return byNode.get(node);
+    }
+
+    /**
+     * @param serial: usb serial number of board
+     * @return device of that board, null if not attached
+     */
+    public Device findBySerial(String serial) {
+        return bySerial.get(serial);
+    }
+
+    /**
+     * @return nodes of all devices with this VID:PID (ex: every board in boot mode), sorted
+     */
+    public String[] findNodes(int vendorId, int productId) {
+        List<String> nodes = new ArrayList<>();
+        for (Device device : byNode.values()) {
+            if (device.matches(vendorId, productId))
+                nodes.add(device.node);
+        }
+        Collections.sort(nodes);
+        return nodes.toArray(new String[0]);
+    }
+
+    public int size() {
+        return byNode.size();
+    }
+
+    /**
+     * Register a block node, called on create event or by tests
+     * @param name: node name in device directory (ex: sda), partitions and other devices are ignored
+     */
+    void onNodeAdded(String name) {
+        if (!isDisk(name))
+            return;
+        Device device = resolve(name);
+        Device old = byNode.put(device.node, device);
+        if (old != null && old.serial != null)
+            bySerial.remove(old.serial, old);
+        if (device.serial != null)
+            bySerial.put(device.serial, device);
+        Log.i(TAG, "added " + device);
+        Listener listener = this.listener;
+        if (listener != null)
+            listener.onDeviceAdded(device);
+    }
+
+    /**
+     * Forget a block node, called on delete event or by tests
+     */
+    void onNodeRemoved(String name) {
+        if (!isDisk(name))
+            return;
+        Device device = byNode.remove(new File(devDir, name).getPath());
+        if (device == null)
+            return;
+        if (device.serial != null)
+            bySerial.remove(device.serial, device);
+        Log.i(TAG, "removed " + device);
+        Listener listener = this.listener;
+        if (listener != null)
+            listener.onDeviceRemoved(device);
+    }
+
+    /**
+     * @return true for whole disks sda..sdz, sdaa.., not partitions (sda1)
+     */
+    private static boolean isDisk(String name) {
+        if (name == null || name.length() < 3 || !name.startsWith("sd"))
+            return false;
+        for (int i = 2; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < 'a' || c > 'z')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Follow /sys/block/sdX to the device directory and walk up to the usb device holding idVendor / idProduct
+     */
+    private Device resolve(String name) {
+        String node = new File(devDir, name).getPath();
+        File block = new File(new File(sysDir, "block"), name);
+        String devNumber = readLine(new File(block, "dev"));
+        try {
+            for (File dir = block.getCanonicalFile(); dir != null; dir = dir.getParentFile()) {
+                String vendor = readLine(new File(dir, "idVendor"));
+                String product = readLine(new File(dir, "idProduct"));
+                if (vendor != null && product != null) {
+                    return new Device(node, Integer.parseInt(vendor, 16), Integer.parseInt(product, 16),
+                            readLine(new File(dir, "serial")), devNumber);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "can't resolve usb device of " + name + ": " + e.getMessage());
+        }
+        return new Device(node, -1, -1, null, devNumber);
+    }
+
+    private static String readLine(File file) {
+        if (!file.isFile())
+            return null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            return line == null ? null : line.trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.nfc_programmer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Sector aligned ranges of an image which hold data, erased (all 0xFF) sectors are left out <br>
+ * Built with one scan of the image, used to skip linker padding when the target flash is already erased.
+ */
+public class ExtentIndex {
+    // start, end pairs of extents in image, sorted and not adjacent
+    private final int[] bounds;
+    private final int size;
+    private final int dataBytes;
+
+    private ExtentIndex(int[] bounds, int count, int size) {
+        this.bounds = new int[count * 2];
+        System.arraycopy(bounds, 0, this.bounds, 0, count * 2);
+        this.size = size;
+        int data = 0;
+        for (int i = 0; i < count; i++)
+            data += bounds[i * 2 + 1] - bounds[i * 2];
+        this.dataBytes = data;
+    }
+
+    /**
+     * Scan image sector by sector
+     * @param image: firmware data from position to limit
+     * @param sectorSize: device sector size, extents are aligned to it
+     * @return index of non erased extents
+     */
+    public static ExtentIndex build(ByteBuffer image, int sectorSize) {
+        ByteBuffer data = image.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int size = data.limit();
+        int[] bounds = new int[2 * ((size + sectorSize - 1) / sectorSize)];
+        int count = 0;
+
+        for (int sector = 0; sector < size; sector += sectorSize) {
+            int end = Math.min(sector + sectorSize, size);
+            if (isErased(data, sector, end))
+                continue;
+            if (count > 0 && bounds[count * 2 - 1] == sector) {
+                bounds[count * 2 - 1] = end;
+            } else {
+                bounds[count * 2] = sector;
+                bounds[count * 2 + 1] = end;
+                count++;
+            }
+        }
+        return new ExtentIndex(bounds, count, size);
+    }
+
+    /**
+     * @param size: image size
+     * @return index with the whole image as one extent
+     */
+    public static ExtentIndex full(int size) {
+        return new ExtentIndex(new int[]{0, size}, size > 0 ? 1 : 0, size);
+    }
+
+    /**
+     * @param offset: image position, sector aligned
+     * @return index of same image with extents before offset left out
+     */
+    public ExtentIndex from(int offset) {
+        int[] clipped = new int[bounds.length];
+        int count = 0;
+        for (int i = 0; i < getCount(); i++) {
+            if (getEnd(i) <= offset)
+                continue;
+            clipped[count * 2] = Math.max(getStart(i), offset);
+            clipped[count * 2 + 1] = getEnd(i);
+            count++;
+        }
+        return new ExtentIndex(clipped, count, size);
+    }
+
+    private static boolean isErased(ByteBuffer data, int start, int end) {
+        int i = start;
+        for (; i + 8 <= end; i += 8) {
+            if (data.getLong(i) != -1L)
+                return false;
+        }
+        for (; i < end; i++) {
+            if (data.get(i) != (byte) 0xFF)
+                return false;
+        }
+        return true;
+    }
+
+    public int getCount() {
+        return bounds.length / 2;
+    }
+
+    public int getStart(int extent) {
+        return bounds[extent * 2];
+    }
+
+    public int getEnd(int extent) {
+        return bounds[extent * 2 + 1];
+    }
+
+    /**
+     * @return start, end pairs of all extents, for native backend
+     */
+    public int[] toArray() {
+        return bounds.clone();
+    }
+
+    /**
+     * @return image size
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return bytes which need to be written
+     */
+    public int getDataBytes() {
+        return dataBytes;
+    }
+
+    /**
+     * @return bytes of erased sectors which are not written
+     */
+    public int getSavedBytes() {
+        return size - dataBytes;
+    }
+
+    @Override
+    public String toString() {
+        return getCount() + " extents, " + dataBytes + "/" + size + " bytes";
+    }
+}
@@ -0,0 +1,280 @@
+package com.example.nfc_programmer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Several images flashed in one bootloader session (ex: firmware + calibration blob) <br>
+ * A bundle is a zip archive holding the images and a text <i>manifest</i>, one directive per line:
+ * <pre>
+ * # image  name  offset  sha256
+ * image firmware.bin 0x0 9f86d081884c7d65...
+ * image config.bin 0x3e000 2c26b46b68ffc68f...
+ * # patch  image  offset  length  variable  [ascii|u32]
+ * patch config.bin 0x10 16 serial ascii
+ * </pre>
+ * Offsets are firmware addresses (device offset {@link FlashBackend#FIRMWARE_OFFSET} + offset),
+ * checksums are of the images before patching. Patches fill per-board values in at flash time, see {@link #render(Map)}.
+ */
+public class FirmwareBundle {
+    final static String TAG = "Firmware Bundle";
+    final static String MANIFEST = "manifest";
+    final static String EXTENSION = ".bundle";
+    final static Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Per-board value written into an image
+     */
+    public static class Patch {
+        // offset in image
+        public final int offset;
+        public final int length;
+        public final String variable;
+        // u32 little endian number instead of ascii text padded with 0
+        public final boolean numeric;
+
+        Patch(int offset, int length, String variable, boolean numeric) {
+            this.offset = offset;
+            this.length = length;
+            this.variable = variable;
+            this.numeric = numeric;
+        }
+    }
+
+    /**
+     * One image of bundle
+     */
+    public static class Entry {
+        public final String name;
+        public final int offset;
+        public final String sha256;
+        private final byte[] data;
+        private final List<Patch> patches = new ArrayList<>();
+
+        Entry(String name, int offset, String sha256, byte[] data) {
+            this.name = name;
+            this.offset = offset;
+            this.sha256 = sha256;
+            this.data = data;
+        }
+
+        public int size() {
+            return data.length;
+        }
+
+        /**
+         * @return firmware address after image, as long so a bad offset can't wrap around
+         */
+        public long end() {
+            return (long) offset + data.length;
+        }
+
+        public List<Patch> getPatches() {
+            return Collections.unmodifiableList(patches);
+        }
+    }
+
+    private final List<Entry> entries;
+
+    private FirmwareBundle(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * @return true if name is a bundle file, by extension
+     */
+    static boolean isBundle(String name) {
+        return name != null && name.toLowerCase().endsWith(EXTENSION);
+    }
+
+    /**
+     * Read and validate bundle: every image listed, checksum matching, inside flash, not overlapping
+     * @param in: bundle zip archive, not closed
+     * @return bundle with images in offset order
+     * @throws IOException if bundle can't be read or is not valid
+     */
+    static FirmwareBundle read(InputStream in) throws IOException {
+        Map<String, byte[]> files = new HashMap<>();
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry zipEntry;
+        while ((zipEntry = zip.getNextEntry()) != null) {
+            if (!zipEntry.isDirectory())
+                files.put(zipEntry.getName(), readEntry(zip, zipEntry.getName()));
+        }
+        byte[] manifest = files.get(MANIFEST);
+        if (manifest == null)
+            throw new IOException("bundle has no " + MANIFEST);
+        return parse(new String(manifest, ASCII), files);
+    }
+
+    private static byte[] readEntry(InputStream in, String name) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+            if (out.size() > FirmwareCache.MAX_IMAGE_SIZE)
+                throw new IOException(name + " is larger than flash");
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param manifest: manifest text
+     * @param files: content of bundle files by name
+     */
+    static FirmwareBundle parse(String manifest, Map<String, byte[]> files) throws IOException {
+        Map<String, Entry> byName = new HashMap<>();
+        List<Entry> entries = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new StringReader(manifest));
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] words = line.split("\\s+");
+            try {
+                if (words[0].equals("image") && words.length == 4) {
+                    byte[] data = files.get(words[1]);
+                    if (data == null)
+                        throw new IOException("missing image " + words[1]);
+                    String hash = sha256(data);
+                    if (!hash.equalsIgnoreCase(words[3]))
+                        throw new IOException("checksum mismatch of " + words[1] + ": " + hash);
+                    Entry entry = new Entry(words[1], parseInt(words[2]), words[3], data);
+                    if (entry.offset < 0 || entry.end() > FirmwareCache.MAX_IMAGE_SIZE)
+                        throw new IOException(entry.name + " at " + entry.offset + " is outside of flash");
+                    if (byName.put(entry.name, entry) != null)
+                        throw new IOException("image " + entry.name + " listed twice");
+                    entries.add(entry);
+                } else if (words[0].equals("patch") && (words.length == 5 || words.length == 6)) {
+                    Entry entry = byName.get(words[1]);
+                    if (entry == null)
+                        throw new IOException("patch of unknown image " + words[1]);
+                    boolean numeric = words.length == 6 && words[5].equals("u32");
+                    if (words.length == 6 && !numeric && !words[5].equals("ascii"))
+                        throw new IOException("unknown patch format " + words[5]);
+                    Patch patch = new Patch(parseInt(words[2]), parseInt(words[3]), words[4], numeric);
+                    if (patch.offset < 0 || patch.length <= 0 || (long) patch.offset + patch.length > entry.size()
+                            || (numeric && patch.length != 4))
+                        throw new IOException("patch " + patch.variable + " outside of " + entry.name);
+                    entry.patches.add(patch);
+                } else {
+                    throw new IOException("unknown directive");
+                }
+            } catch (IOException | NumberFormatException e) {
+                throw new IOException("manifest line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+        if (entries.isEmpty())
+            throw new IOException("bundle lists no image");
+
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+            }
+        });
+        for (int i = 1; i < entries.size(); i++) {
+            if (entries.get(i - 1).end() > entries.get(i).offset)
+                throw new IOException(entries.get(i - 1).name + " overlaps " + entries.get(i).name);
+        }
+        return new FirmwareBundle(entries);
+    }
+
+    private static int parseInt(String value) {
+        return value.startsWith("0x") ? Integer.parseInt(value.substring(2), 16) : Integer.parseInt(value);
+    }
+
+    static String sha256(byte[] data) throws IOException {
+        try {
+            return FirmwareCache.toHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return images in offset order
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return bytes of all images
+     */
+    public long getDataBytes() {
+        long bytes = 0;
+        for (Entry entry : entries)
+            bytes += entry.size();
+        return bytes;
+    }
+
+    /**
+     * Data of one board: images with patches applied, bundle itself is not changed
+     * @param variables: value of patch variables (ex: serial), ascii text or decimal / 0x number for u32
+     * @return one buffer per entry, in offset order
+     * @throws IOException if a variable is missing or doesn't fit its patch
+     */
+    public ByteBuffer[] render(Map<String, String> variables) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[entries.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            Entry entry = entries.get(i);
+            if (entry.patches.isEmpty()) {
+                buffers[i] = ByteBuffer.wrap(entry.data).asReadOnlyBuffer();
+                continue;
+            }
+            ByteBuffer data = ByteBuffer.wrap(entry.data.clone()).order(ByteOrder.LITTLE_ENDIAN);
+            for (Patch patch : entry.patches) {
+                String value = variables.get(patch.variable);
+                if (value == null)
+                    throw new IOException("no value for " + patch.variable + " of " + entry.name);
+                if (patch.numeric) {
+                    try {
+                        data.putInt(patch.offset, (int) Long.decode(value).longValue());
+                    } catch (NumberFormatException e) {
+                        throw new IOException(patch.variable + " is not a number: " + value);
+                    }
+                } else {
+                    byte[] text = value.getBytes(ASCII);
+                    if (text.length > patch.length)
+                        throw new IOException(patch.variable + " longer than " + patch.length + " bytes: " + value);
+                    for (int j = 0; j < patch.length; j++)
+                        data.put(patch.offset + j, j < text.length ? text[j] : 0);
+                }
+            }
+            buffers[i] = data;
+        }
+        return buffers;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Entry entry : entries) {
+            if (builder.length() > 0)
+                builder.append(", ");
+            builder.append(entry.name).append('@').append(Integer.toHexString(entry.offset));
+        }
+        return builder.toString();
+    }
+}
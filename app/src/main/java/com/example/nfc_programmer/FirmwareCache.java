@@ -0,0 +1,222 @@
+package com.example.nfc_programmer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of firmware images keyed by content hash (SHA-256) <br>
+ * Image is loaded and validated once into an off-heap (direct) buffer. Repeat flashes of the same file find
+ * the image from its cache key ({@link FirmwareSource#getCacheKey()}: path, size, times and inode from one stat),
+ * without reading the file. A rebuilt file gets another key and is loaded again.
+ * Least recently used images are evicted when cache is over its size.
+ */
+public class FirmwareCache {
+    final static String TAG = "Firmware Cache";
+    final static int MAX_IMAGE_SIZE = FlashBackend.MAX_IMAGE_SIZE;
+    final static int MAX_FILE_KEYS = 64;
+
+    /**
+     * Validated firmware image, data is read only and positioned at 0
+     */
+    public static class Image {
+        public final String hash;
+        public final int size;
+        private final ByteBuffer data;
+        private volatile ExtentIndex extents;
+
+        Image(String hash, ByteBuffer data) {
+            this.hash = hash;
+            this.size = data.limit();
+            this.data = data;
+        }
+
+        /**
+         * @return direct read only view of image, safe to use from several threads
+         */
+        public ByteBuffer data() {
+            return data.duplicate();
+        }
+
+        /**
+         * @return sector extents of image which are not erased, built on first use and kept with the image
+         */
+        public ExtentIndex extents() {
+            ExtentIndex index = extents;
+            if (index == null) {
+                // racing threads build the same index, either one can be kept
+                index = ExtentIndex.build(data.duplicate(), FlashBackend.SECTOR_SIZE);
+                extents = index;
+            }
+            return index;
+        }
+    }
+
+    private final long maxBytes;
+    // access ordered, first entry is least recently used
+    private final LinkedHashMap<String, Image> images = new LinkedHashMap<>(16, 0.75f, true);
+    // file cache key -> content hash, least recently used keys dropped
+    private final LinkedHashMap<String, String> hashByFile = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_FILE_KEYS;
+        }
+    };
+    private long cachedBytes, hits, misses, evictions;
+
+    /**
+     * @param maxBytes: total size of cached images
+     */
+    FirmwareCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get image of firmware file, load it if not cached yet
+     * @param path: firmware file path
+     * @return cached image
+     * @throws IOException if file can't be read or is not a valid firmware
+     */
+    public Image get(String path) throws IOException {
+        return get(FirmwareSource.fromPath(path));
+    }
+
+    /**
+     * Get image of firmware, load it if not cached yet <br>
+     * Sources without cache key are read every time, but still share the cached image if content is the same
+     * @param source: firmware file or descriptor
+     * @return cached image
+     * @throws IOException if source can't be read or is not a valid firmware
+     */
+    public synchronized Image get(FirmwareSource source) throws IOException {
+        Image image = getCached(source);
+        if (image != null)
+            return image;
+
+        String fileKey = source.getCacheKey();
+        misses++;
+        image = load(source);
+        Log.i(TAG, "loaded " + source + " sha256 " + image.hash);
+        if (fileKey != null)
+            hashByFile.put(fileKey, image.hash);
+
+        // same content may already be cached under another file
+        Image cached = images.get(image.hash);
+        if (cached != null)
+            return cached;
+        images.put(image.hash, image);
+        cachedBytes += image.size;
+        evict();
+        return image;
+    }
+
+    /**
+     * @param source: firmware file or descriptor
+     * @return cached image of source found from its cache key without reading it, null if not cached
+     */
+    public synchronized Image getCached(FirmwareSource source) {
+        String fileKey = source.getCacheKey();
+        String hash = fileKey == null ? null : hashByFile.get(fileKey);
+        Image image = hash == null ? null : images.get(hash);
+        if (image != null)
+            hits++;
+        return image;
+    }
+
+    /**
+     * Remove least recently used images until cache fit in its size
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Image>> it = images.entrySet().iterator();
+        while (cachedBytes > maxBytes && it.hasNext()) {
+            Image image = it.next().getValue();
+            it.remove();
+            cachedBytes -= image.size;
+            evictions++;
+            hashByFile.values().removeAll(Collections.singleton(image.hash));
+        }
+    }
+
+    private static Image load(FirmwareSource source) throws IOException {
+        long length = source.size();
+        if (length == 0 || length > MAX_IMAGE_SIZE)
+            throw new IOException("invalid firmware size " + length + " of " + source);
+
+        // unknown size is read up to one byte past the limit to detect oversized firmware
+        ByteBuffer data = ByteBuffer.allocateDirect(length > 0 ? (int) length : MAX_IMAGE_SIZE + 1);
+        try (ReadableByteChannel channel = source.openChannel()) {
+            while (data.hasRemaining()) {
+                if (channel.read(data) == -1) {
+                    if (length > 0)
+                        throw new IOException("firmware " + source + " ended at " + data.position());
+                    break;
+                }
+            }
+        }
+        data.flip();
+        if (length < 0) {
+            if (data.limit() == 0 || data.limit() > MAX_IMAGE_SIZE)
+                throw new IOException("invalid firmware size " + data.limit() + " of " + source);
+            data = ByteBuffer.allocateDirect(data.limit()).put(data);
+            data.flip();
+        }
+        checkVectorTable(data);
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        digest.update(data.duplicate());
+        return new Image(toHex(digest.digest()), data.asReadOnlyBuffer());
+    }
+
+    /**
+     * <b>lcp11u68</b> only boot user code when the first 8 vector table words sum to 0
+     */
+    private static void checkVectorTable(ByteBuffer data) {
+        if (data.limit() < 32) {
+            Log.w(TAG, "firmware smaller than vector table");
+            return;
+        }
+        ByteBuffer words = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int sum = 0;
+        for (int i = 0; i < 8; i++)
+            sum += words.getInt(i * 4);
+        if (sum != 0)
+            Log.w(TAG, "vector table checksum mismatch, mcu may not boot the firmware");
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            builder.append(String.format("%02x", b & 0xff));
+        return builder.toString();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return hit/miss statistics, for logging
+     */
+    public synchronized String stats() {
+        return "hits " + hits + ", misses " + misses + ", evictions " + evictions
+                + ", " + images.size() + " images / " + cachedBytes + " bytes";
+    }
+}
@@ -0,0 +1,271 @@
+package com.example.nfc_programmer;
+
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Where firmware comes from: a file path, or an open file descriptor (ex: from a content uri) <br>
+ * Descriptors are read in place, without resolving a path or copying to a temporary file.
+ * Closing the source closes the descriptor.
+ */
+public abstract class FirmwareSource implements Closeable {
+    final static String TAG = "Firmware Source";
+
+    /**
+     * @return file name, used in logs and to recognize bundles
+     */
+    public abstract String getName();
+
+    /**
+     * @return key which change when content change, null if content can't be identified without reading it
+     */
+    public abstract String getCacheKey();
+
+    /**
+     * @return size in bytes, -1 if unknown (ex: pipe)
+     */
+    public abstract long size() throws IOException;
+
+    /**
+     * @return new channel reading firmware from the start, independent of channels opened before
+     * @throws IOException if source can't be read (again)
+     */
+    public abstract ReadableByteChannel openChannel() throws IOException;
+
+    /**
+     * @param length: bytes wanted
+     * @return first bytes of firmware, fewer if it is shorter. A source which can only be read once keeps them
+     * for its channel
+     * @throws IOException if source can't be read
+     */
+    public byte[] peek(int length) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(length);
+        try (ReadableByteChannel channel = openChannel()) {
+            while (head.hasRemaining() && channel.read(head) != -1) {
+            }
+        }
+        return Arrays.copyOf(head.array(), head.position());
+    }
+
+    public InputStream openStream() throws IOException {
+        return Channels.newInputStream(openChannel());
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    /**
+     * @param path: firmware file path
+     */
+    public static FirmwareSource fromPath(String path) {
+        return new PathSource(path);
+    }
+
+    /**
+     * @param descriptor: opened firmware, owned by the source from now on
+     * @param name: display name of firmware
+     */
+    public static FirmwareSource fromDescriptor(ParcelFileDescriptor descriptor, String name) {
+        return new DescriptorSource(descriptor.getFileDescriptor(), name, descriptor);
+    }
+
+    /**
+     * @param descriptor: opened firmware
+     * @param name: display name of firmware
+     * @param owner: closed with the source, can be null
+     */
+    static FirmwareSource fromDescriptor(FileDescriptor descriptor, String name, Closeable owner) {
+        return new DescriptorSource(descriptor, name, owner);
+    }
+
+    private static class PathSource extends FirmwareSource {
+        private final String path;
+
+        PathSource(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public String getName() {
+            return path;
+        }
+
+        /**
+         * Path, size and modified time, plus inode and change time: a file replaced by a rebuild has another inode,
+         * one rewritten in place a new change time even if its modified time was put back. Only a stat, no read
+         */
+        @Override
+        public String getCacheKey() {
+            File file = new File(path);
+            StringBuilder key = new StringBuilder(path).append(':').append(file.length())
+                    .append(':').append(file.lastModified());
+            try {
+                StructStat stat = Os.stat(path);
+                if (stat != null)
+                    key.append(':').append(stat.st_ino).append(':').append(stat.st_ctime);
+            } catch (ErrnoException e) {
+                Log.w(TAG, "can't stat " + path + ". Error msg: " + e.getMessage());
+                return null;
+            }
+            return key.toString();
+        }
+
+        @Override
+        public long size() {
+            return new File(path).length();
+        }
+
+        @Override
+        public ReadableByteChannel openChannel() throws IOException {
+            return new FileInputStream(path).getChannel();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Regular files are read with positional reads, so several readers don't share the descriptor offset.
+     * Pipes and sockets can only be read once.
+     */
+    private static class DescriptorSource extends FirmwareSource {
+        private final String name;
+        private final Closeable owner;
+        private final FileInputStream stream;
+        private final FileChannel channel;
+        private final boolean seekable;
+        private boolean opened;
+        // bytes peeked from a source which can't seek, replayed first by its channel
+        private ByteBuffer head = ByteBuffer.allocate(0);
+
+        DescriptorSource(FileDescriptor descriptor, String name, Closeable owner) {
+            this.name = name;
+            this.owner = owner;
+            this.stream = new FileInputStream(descriptor);
+            this.channel = stream.getChannel();
+            boolean seekable;
+            try {
+                // pipes fail to seek
+                channel.position();
+                seekable = true;
+            } catch (IOException e) {
+                seekable = false;
+            }
+            this.seekable = seekable;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getCacheKey() {
+            return null;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return seekable ? channel.size() : -1;
+        }
+
+        @Override
+        public synchronized byte[] peek(int length) throws IOException {
+            if (seekable)
+                return super.peek(length);
+            if (opened)
+                throw new IOException(name + " is not seekable and was already read");
+            if (head.limit() < length) {
+                ByteBuffer more = ByteBuffer.allocate(length);
+                more.put(head);
+                while (more.hasRemaining() && channel.read(more) != -1) {
+                }
+                more.flip();
+                head = more;
+            }
+            return Arrays.copyOf(head.array(), Math.min(length, head.limit()));
+        }
+
+        @Override
+        public synchronized ReadableByteChannel openChannel() throws IOException {
+            if (seekable)
+                return new PositionalChannel(channel);
+            if (opened)
+                throw new IOException(name + " is not seekable and was already read");
+            opened = true;
+            final ByteBuffer replay = head.duplicate();
+            return new PositionalChannel(null) {
+                @Override
+                public int read(ByteBuffer dst) throws IOException {
+                    if (!replay.hasRemaining())
+                        return channel.read(dst);
+                    int n = Math.min(replay.remaining(), dst.remaining());
+                    ByteBuffer part = replay.duplicate();
+                    part.limit(part.position() + n);
+                    dst.put(part);
+                    replay.position(replay.position() + n);
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                stream.close();
+            } finally {
+                if (owner != null)
+                    owner.close();
+            }
+        }
+    }
+
+    /**
+     * Read a shared channel from position 0 without moving its position, closing does not close the channel
+     */
+    private static class PositionalChannel implements ReadableByteChannel {
+        private final FileChannel channel;
+        private long position;
+        private boolean open = true;
+
+        PositionalChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int n = channel.read(dst, position);
+            if (n > 0)
+                position += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
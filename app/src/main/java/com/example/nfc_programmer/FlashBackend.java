@@ -0,0 +1,50 @@
+package com.example.nfc_programmer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Low-level access to <b>lcp11u68</b> block device, write firmware at {@link #FIRMWARE_OFFSET} <br>
+ * Implementations must be safe to use from several threads for different devices.
+ * All methods return -1 on failure, reason is logged.
+ */
+public interface FlashBackend {
+    long FIRMWARE_OFFSET = 0x800;
+    int SECTOR_SIZE = 512;
+    int MAX_IMAGE_SIZE = 256000;
+
+    /**
+     * Flash firmware file
+     * @param path: full path to firmware binary file
+     * @param devPath: device file to write (ex: /dev/block/sda), null to use first device in /dev/block
+     * @param delta: only write sectors which differ from device
+     * @param listener: progress, can be null
+     * @return number of bytes skipped (always 0 if not delta), -1 if fail
+     */
+    long flash(String path, String devPath, boolean delta, FlashProgressListener listener);
+
+    /**
+     * Flash firmware which is already in memory
+     * @param image: firmware data from position to limit, direct buffer for native backend
+     * @param devPath: device file to write (ex: /dev/block/sda), null to use first device in /dev/block
+     * @param delta: only write sectors which differ from device
+     * @param listener: progress, can be null
+     * @return number of bytes skipped (always 0 if not delta), -1 if fail
+     */
+    long flash(ByteBuffer image, String devPath, boolean delta, FlashProgressListener listener);
+
+    /**
+     * Flash only extents of image which hold data, target flash must already be erased (0xFF) <br>
+     * Progress is reported as position in image, so a listener sees written = image size at the end.
+     * @param image: firmware data from position to limit, direct buffer for native backend
+     * @param extents: index built from the same image
+     * @param devPath: device file to write (ex: /dev/block/sda), null to use first device in /dev/block
+     * @param listener: progress, can be null
+     * @return number of erased bytes not written, -1 if fail
+     */
+    long flash(ByteBuffer image, ExtentIndex extents, String devPath, FlashProgressListener listener);
+
+    /**
+     * @return all device files in /dev/block (ex: /dev/block/sda, /dev/block/sdb)
+     */
+    String[] findDevices();
+}
@@ -0,0 +1,742 @@
+package com.example.nfc_programmer;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only log of every flash cycle, kept across app restarts to follow yield, slow stations and throughput <br>
+ * Records have a fixed size and go into segment files of {@link #SEGMENT_RECORDS} records. Once there are
+ * {@link #MAX_SEGMENTS} segments the oldest one is deleted, so disk and memory use are bounded.
+ * Device ids and image hashes are stored once in a name table, records refer to them by id. Ids stay the same for
+ * the life of a name, names no longer used by any segment are compacted out of the table after segments are deleted,
+ * and images with no record left are dropped from the index. <br>
+ * An in-memory index keeps record numbers per image and counters per device, queries read only the records they need.
+ * Sealed segments have their part of the index saved next to them, only the last segment is scanned when opened.
+ * <pre>
+ * segment: magic, version, phase count, record size, records
+ * record:  time (ms), device id, image id, result, bytes written, duration of each phase (us, -1 if not run)
+ * names:   id, length, UTF-8 name
+ * </pre>
+ */
+public class FlashHistory implements Closeable {
+    final static String TAG = "Flash History";
+    final static int MAGIC = 0x48495354;        // "HIST"
+    final static int INDEX_MAGIC = 0x48494458;  // "HIDX"
+    final static int VERSION = 1;
+    final static int HEADER_SIZE = 16;
+    final static int FIXED_SIZE = 24;
+    final static int SEGMENT_RECORDS = 16384;
+    final static int MAX_SEGMENTS = 32;
+    // name table is rewritten once it has more unused names than this and than used ones
+    final static int MIN_UNUSED_NAMES = 64;
+    final static String NAMES = "names";
+    final static String SEGMENT = "segment-";
+    final static String INDEX = ".index";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int PHASES = FlashMetrics.Phase.values().length;
+
+    /**
+     * How a flash cycle ended
+     */
+    public enum Result {
+        OK,
+        FLASH_ERROR,    // write or verification failed
+        CANCELLED,      // cancelled or timed out
+        FAILED          // never wrote: prog mode, mount, firmware file
+    }
+
+    /**
+     * One flash cycle of one device
+     */
+    public static class Record {
+        public final long time;
+        // usb serial, device node if board has none, empty if job failed before finding a board
+        public final String device;
+        // content hash of image, file name for decoded files and bundles
+        public final String image;
+        public final Result result;
+        public final long bytes;
+        private final long[] micros = new long[PHASES];
+
+        /**
+         * @param traces: phase durations of the cycle, summed. Bytes written are those of WRITE
+         */
+        Record(String device, String image, Result result, FlashMetrics.Trace... traces) {
+            this.time = System.currentTimeMillis();
+            this.device = device;
+            this.image = image;
+            this.result = result;
+            long bytes = 0;
+            Arrays.fill(micros, -1);
+            for (FlashMetrics.Trace trace : traces) {
+                for (FlashMetrics.Phase phase : FlashMetrics.Phase.values()) {
+                    long nanos = trace.getNanos(phase);
+                    if (nanos >= 0)
+                        micros[phase.ordinal()] = Math.max(micros[phase.ordinal()], 0) + nanos / 1000;
+                }
+                bytes += trace.getBytes(FlashMetrics.Phase.WRITE);
+            }
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return duration of phase (us), -1 if phase didn't run
+         */
+        public long getMicros(FlashMetrics.Phase phase) {
+            return micros[phase.ordinal()];
+        }
+    }
+
+    /**
+     * Flash counters of one device
+     */
+    public static class DeviceStats {
+        public long flashes, failures, cancelled, bytes;
+
+        private void add(Result result, long bytes) {
+            flashes++;
+            if (result == Result.CANCELLED)
+                cancelled++;
+            else if (result != Result.OK)
+                failures++;
+            this.bytes += bytes;
+        }
+
+        private void add(DeviceStats other, int sign) {
+            flashes += sign * other.flashes;
+            failures += sign * other.failures;
+            cancelled += sign * other.cancelled;
+            bytes += sign * other.bytes;
+        }
+
+        /**
+         * @return failed cycles over cycles which ran to the end, cancelled ones left out
+         */
+        public double getFailureRate() {
+            long finished = flashes - cancelled;
+            return finished == 0 ? 0 : (double) failures / finished;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d flashes, %.1f%% failed, %d cancelled, %d bytes",
+                    flashes, getFailureRate() * 100, cancelled, bytes);
+        }
+    }
+
+    /**
+     * Growable list of record numbers in increasing order, dropped from the front when segments are deleted
+     */
+    private static class Postings {
+        private long[] values = new long[16];
+        private int start, end;
+
+        void add(long value) {
+            if (end == values.length) {
+                if (start > values.length / 2) {
+                    System.arraycopy(values, start, values, 0, end - start);
+                } else {
+                    values = Arrays.copyOf(values, values.length * 2);
+                    System.arraycopy(values, start, values, 0, end - start);
+                }
+                end -= start;
+                start = 0;
+            }
+            values[end++] = value;
+        }
+
+        void dropBelow(long value) {
+            while (start < end && values[start] < value)
+                start++;
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        long get(int i) {
+            return values[start + i];
+        }
+    }
+
+    /**
+     * One segment file and its share of the index
+     */
+    private static class Segment {
+        final long seq;
+        final File file;
+        final FileChannel channel;
+        int phaseCount, recordSize, count;
+        final Map<Integer, DeviceStats> devices = new HashMap<>();
+        final Map<Integer, List<Integer>> images = new HashMap<>();
+
+        Segment(long seq, File file, FileChannel channel) {
+            this.seq = seq;
+            this.file = file;
+            this.channel = channel;
+        }
+
+        File indexFile() {
+            return new File(file.getPath() + INDEX);
+        }
+    }
+
+    private final File dir;
+    private final int segmentRecords, maxSegments;
+    private final Map<Integer, String> names = new HashMap<>();
+    private final Map<String, Integer> nameIds = new HashMap<>();
+    private int nextNameId;
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<Integer, Postings> byImage = new HashMap<>();
+    private final Map<Integer, DeviceStats> byDevice = new HashMap<>();
+    private final ByteBuffer value = ByteBuffer.allocate(4);
+    private RandomAccessFile namesFile;
+    private boolean closed;
+
+    FlashHistory(File dir, int segmentRecords, int maxSegments) {
+        this.dir = dir;
+        this.segmentRecords = segmentRecords;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Open history and rebuild its index
+     * @param dir: directory holding the segments, created if needed
+     * @return history
+     * @throws IOException if directory or name table can't be opened
+     */
+    public static FlashHistory open(File dir) throws IOException {
+        return open(dir, SEGMENT_RECORDS, MAX_SEGMENTS);
+    }
+
+    static FlashHistory open(File dir, int segmentRecords, int maxSegments) throws IOException {
+        FlashHistory history = new FlashHistory(dir, segmentRecords, maxSegments);
+        try {
+            history.load();
+        } catch (IOException e) {
+            history.close();
+            throw e;
+        }
+        return history;
+    }
+
+    private void load() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("can't create history directory " + dir);
+        loadNames();
+
+        List<File> files = new ArrayList<>();
+        File[] listed = dir.listFiles();
+        if (listed != null) {
+            for (File file : listed) {
+                if (file.getName().matches(SEGMENT + "[0-9]+"))
+                    files.add(file);
+            }
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long x = seqOf(a), y = seqOf(b);
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            boolean last = i == files.size() - 1;
+            Segment segment = null;
+            try {
+                segment = openSegment(file, seqOf(file), last);
+                if (last || !loadIndex(segment)) {
+                    scan(segment);
+                    if (!last)
+                        saveIndex(segment);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "dropping unreadable segment " + file + ". Error msg: " + e.getMessage());
+                if (segment != null)
+                    segment.channel.close();
+                delete(file);
+                continue;
+            }
+            addToIndex(segment);
+        }
+        while (segments.size() > maxSegments)
+            dropOldest();
+        compactNames();
+        Log.i(TAG, size() + " records in " + segments.size() + " segments, " + names.size() + " names");
+    }
+
+    private static long seqOf(File file) {
+        return Long.parseLong(file.getName().substring(SEGMENT.length()));
+    }
+
+    /**
+     * Name table: id and length prefixed UTF-8 strings. A torn last entry is cut off
+     */
+    private void loadNames() throws IOException {
+        namesFile = new RandomAccessFile(new File(dir, NAMES), "rw");
+        long length = namesFile.length(), position = 0;
+        while (position + 6 <= length) {
+            namesFile.seek(position);
+            int id = namesFile.readInt();
+            int size = namesFile.readUnsignedShort();
+            if (position + 6 + size > length)
+                break;
+            byte[] bytes = new byte[size];
+            namesFile.readFully(bytes);
+            String name = new String(bytes, UTF8);
+            nameIds.put(name, id);
+            names.put(id, name);
+            nextNameId = Math.max(nextNameId, id + 1);
+            position += 6 + size;
+        }
+        if (position != length) {
+            Log.w(TAG, "cutting torn name table at " + position);
+            namesFile.setLength(position);
+        }
+    }
+
+    private int nameId(String name) throws IOException {
+        Integer id = nameIds.get(name);
+        if (id != null)
+            return id;
+        byte[] bytes = name.getBytes(UTF8);
+        if (bytes.length > 0xffff)
+            throw new IOException("name too long: " + name.length());
+        namesFile.seek(namesFile.length());
+        writeName(namesFile, nextNameId, bytes);
+        // records refer to it, so it must be on disk before them
+        namesFile.getFD().sync();
+        nameIds.put(name, nextNameId);
+        names.put(nextNameId, name);
+        return nextNameId++;
+    }
+
+    private static void writeName(DataOutput out, int id, byte[] bytes) throws IOException {
+        out.writeInt(id);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Rewrite name table with only the names records still refer to, once unused ones outnumber them.
+     * Ids are kept, so records don't change. If it fails the old table stays, it is only larger
+     */
+    private void compactNames() {
+        Map<Integer, String> used = new HashMap<>();
+        for (Map.Entry<Integer, String> entry : names.entrySet()) {
+            if (byDevice.containsKey(entry.getKey()) || byImage.containsKey(entry.getKey()))
+                used.put(entry.getKey(), entry.getValue());
+        }
+        int unused = names.size() - used.size();
+        if (unused <= MIN_UNUSED_NAMES || unused <= used.size())
+            return;
+
+        File file = new File(dir, NAMES), tmp = new File(dir, NAMES + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            for (Map.Entry<Integer, String> entry : used.entrySet())
+                writeName(out, entry.getKey(), entry.getValue().getBytes(UTF8));
+            out.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "can't compact name table. Error msg: " + e.getMessage());
+            delete(tmp);
+            return;
+        }
+        try {
+            namesFile.close();
+            if (!tmp.renameTo(file))
+                Log.w(TAG, "can't rename " + tmp);
+            namesFile = new RandomAccessFile(file, "rw");
+        } catch (IOException e) {
+            // table is reopened by next append
+            Log.w(TAG, "can't reopen name table. Error msg: " + e.getMessage());
+            namesFile = null;
+            return;
+        }
+        names.keySet().retainAll(used.keySet());
+        nameIds.values().retainAll(used.keySet());
+        Log.i(TAG, "name table compacted, " + unused + " unused names dropped");
+    }
+
+    private Segment openSegment(File file, long seq, boolean writable) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, writable ? "rw" : "r").getChannel();
+        Segment segment = new Segment(seq, file, channel);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.read(header, 0) != HEADER_SIZE)
+                throw new IOException("short header");
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION)
+                throw new IOException("not a history segment");
+            segment.phaseCount = header.getInt();
+            segment.recordSize = header.getInt();
+            if (segment.recordSize != FIXED_SIZE + 4 * segment.phaseCount)
+                throw new IOException("bad record size " + segment.recordSize);
+            long records = (channel.size() - HEADER_SIZE) / segment.recordSize;
+            segment.count = (int) Math.min(records, segmentRecords);
+            long end = HEADER_SIZE + (long) segment.count * segment.recordSize;
+            if (writable && channel.size() != end) {
+                Log.w(TAG, "cutting torn record of " + file);
+                channel.truncate(end);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return segment;
+    }
+
+    private Segment createSegment(long seq) throws IOException {
+        File file = new File(dir, SEGMENT + seq);
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        Segment segment = new Segment(seq, file, channel);
+        segment.phaseCount = PHASES;
+        segment.recordSize = FIXED_SIZE + 4 * PHASES;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(segment.phaseCount).putInt(segment.recordSize).flip();
+        try {
+            channel.truncate(0);
+            channel.write(header, 0);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return segment;
+    }
+
+    /**
+     * Build index of segment from its records, read in large blocks
+     */
+    private void scan(Segment segment) throws IOException {
+        segment.devices.clear();
+        segment.images.clear();
+        int perBlock = Math.max(1, 65536 / segment.recordSize);
+        ByteBuffer block = ByteBuffer.allocate(perBlock * segment.recordSize);
+        for (int first = 0; first < segment.count; first += perBlock) {
+            int n = Math.min(perBlock, segment.count - first);
+            block.clear();
+            block.limit(n * segment.recordSize);
+            long position = HEADER_SIZE + (long) first * segment.recordSize;
+            while (block.hasRemaining()) {
+                if (segment.channel.read(block, position + block.position()) < 0)
+                    throw new IOException("segment shorter than its records");
+            }
+            for (int i = 0; i < n; i++) {
+                int base = i * segment.recordSize;
+                int device = block.getInt(base + 8), image = block.getInt(base + 12), result = block.getInt(base + 16);
+                indexRecord(segment, first + i, device, image, result, block.getInt(base + 20) & 0xffffffffL);
+            }
+        }
+    }
+
+    private static void indexRecord(Segment segment, int index, int device, int image, int result, long bytes) {
+        Result[] results = Result.values();
+        DeviceStats stats = segment.devices.get(device);
+        if (stats == null) {
+            stats = new DeviceStats();
+            segment.devices.put(device, stats);
+        }
+        stats.add(result >= 0 && result < results.length ? results[result] : Result.FAILED, bytes);
+        List<Integer> records = segment.images.get(image);
+        if (records == null) {
+            records = new ArrayList<>();
+            segment.images.put(image, records);
+        }
+        records.add(index);
+    }
+
+    /**
+     * Index file of a sealed segment: magic, record count, device counters, record numbers per image
+     * @return false if there is none or it doesn't match the segment
+     */
+    private boolean loadIndex(Segment segment) {
+        File file = segment.indexFile();
+        if (!file.isFile())
+            return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != segment.count)
+                return false;
+            for (int i = in.readInt(); i > 0; i--) {
+                int device = in.readInt();
+                DeviceStats stats = new DeviceStats();
+                stats.flashes = in.readInt();
+                stats.failures = in.readInt();
+                stats.cancelled = in.readInt();
+                stats.bytes = in.readLong();
+                segment.devices.put(device, stats);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                int image = in.readInt();
+                int n = in.readInt();
+                List<Integer> records = new ArrayList<>(n);
+                for (int j = 0; j < n; j++)
+                    records.add(in.readInt());
+                segment.images.put(image, records);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "rebuilding index of " + segment.file + ". Error msg: " + e.getMessage());
+            segment.devices.clear();
+            segment.images.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Save index of a sealed segment, if it fails the segment is scanned again next time history is opened
+     */
+    private void saveIndex(Segment segment) {
+        File file = segment.indexFile();
+        if (file.isFile())
+            return;
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(segment.count);
+            out.writeInt(segment.devices.size());
+            for (Map.Entry<Integer, DeviceStats> entry : segment.devices.entrySet()) {
+                DeviceStats stats = entry.getValue();
+                out.writeInt(entry.getKey());
+                out.writeInt((int) stats.flashes);
+                out.writeInt((int) stats.failures);
+                out.writeInt((int) stats.cancelled);
+                out.writeLong(stats.bytes);
+            }
+            out.writeInt(segment.images.size());
+            for (Map.Entry<Integer, List<Integer>> entry : segment.images.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (int index : entry.getValue())
+                    out.writeInt(index);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "can't save index of " + segment.file + ". Error msg: " + e.getMessage());
+            delete(tmp);
+            return;
+        }
+        if (!tmp.renameTo(file))
+            Log.w(TAG, "can't rename " + tmp);
+    }
+
+    /**
+     * Add index of a segment newer than all the others to the history index
+     */
+    private void addToIndex(Segment segment) {
+        segments.add(segment);
+        for (Map.Entry<Integer, DeviceStats> entry : segment.devices.entrySet())
+            deviceStats(entry.getKey()).add(entry.getValue(), 1);
+        for (Map.Entry<Integer, List<Integer>> entry : segment.images.entrySet()) {
+            Postings postings = postings(entry.getKey());
+            for (int index : entry.getValue())
+                postings.add(segment.seq * segmentRecords + index);
+        }
+        // sealed segments keep their index on disk, only counters are needed in memory
+        if (segments.size() > 1)
+            segments.get(segments.size() - 2).images.clear();
+    }
+
+    private DeviceStats deviceStats(int device) {
+        DeviceStats stats = byDevice.get(device);
+        if (stats == null) {
+            stats = new DeviceStats();
+            byDevice.put(device, stats);
+        }
+        return stats;
+    }
+
+    private Postings postings(int image) {
+        Postings postings = byImage.get(image);
+        if (postings == null) {
+            postings = new Postings();
+            byImage.put(image, postings);
+        }
+        return postings;
+    }
+
+    private void dropOldest() throws IOException {
+        Segment oldest = segments.remove(0);
+        oldest.channel.close();
+        for (Map.Entry<Integer, DeviceStats> entry : oldest.devices.entrySet()) {
+            DeviceStats stats = deviceStats(entry.getKey());
+            stats.add(entry.getValue(), -1);
+            if (stats.flashes == 0)
+                byDevice.remove(entry.getKey());
+        }
+        long first = segments.isEmpty() ? Long.MAX_VALUE : segments.get(0).seq * segmentRecords;
+        Iterator<Postings> postings = byImage.values().iterator();
+        while (postings.hasNext()) {
+            Postings image = postings.next();
+            image.dropBelow(first);
+            if (image.size() == 0)
+                postings.remove();
+        }
+        delete(oldest.indexFile());
+        delete(oldest.file);
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete())
+            Log.w(TAG, "can't delete " + file);
+    }
+
+    /**
+     * Append record, starting a new segment if the last one is full. Not synced: a crash loses at most
+     * the records still in page cache, a torn one is cut off when opened again
+     * @param record: flash cycle
+     * @throws IOException if record can't be written
+     */
+    public synchronized void append(Record record) throws IOException {
+        if (closed)
+            return;
+        if (namesFile == null)
+            namesFile = new RandomAccessFile(new File(dir, NAMES), "rw");
+        int device = nameId(record.device), image = nameId(record.image);
+        boolean dropped = false;
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.count >= segmentRecords || segment.phaseCount != PHASES) {
+            if (segment != null)
+                saveIndex(segment);
+            segment = createSegment(segment == null ? 0 : segment.seq + 1);
+            addToIndex(segment);
+            while (segments.size() > maxSegments) {
+                dropOldest();
+                dropped = true;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(segment.recordSize);
+        buffer.putLong(record.time).putInt(device).putInt(image).putInt(record.result.ordinal())
+                .putInt((int) Math.min(record.bytes, 0xffffffffL));
+        for (long micros : record.micros)
+            buffer.putInt((int) Math.min(micros, Integer.MAX_VALUE));
+        buffer.flip();
+        long position = HEADER_SIZE + (long) segment.count * segment.recordSize;
+        while (buffer.hasRemaining())
+            segment.channel.write(buffer, position + buffer.position());
+
+        int index = segment.count++;
+        indexRecord(segment, index, device, image, record.result.ordinal(), record.bytes);
+        deviceStats(device).add(record.result, record.bytes);
+        postings(image).add(segment.seq * segmentRecords + index);
+        if (dropped)
+            compactNames();
+    }
+
+    /**
+     * Latency of one phase over the last flashes of an image, only the records of that image are read
+     * @param image: image hash, see {@link Record#image}
+     * @param phase: phase to look at, cycles in which it didn't run are left out
+     * @param lastFlashes: number of most recent cycles of image to look at
+     * @return histogram of phase durations, empty if image was never flashed
+     * @throws IOException if segments can't be read
+     */
+    public synchronized LatencyHistogram histogram(String image, FlashMetrics.Phase phase, int lastFlashes)
+            throws IOException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Integer id = nameIds.get(image);
+        Postings postings = id == null ? null : byImage.get(id);
+        if (postings == null)
+            return histogram;
+        int segmentIndex = segments.size() - 1;
+        for (int i = postings.size() - 1; i >= Math.max(0, postings.size() - lastFlashes); i--) {
+            long number = postings.get(i);
+            while (segments.get(segmentIndex).seq > number / segmentRecords)
+                segmentIndex--;
+            Segment segment = segments.get(segmentIndex);
+            if (phase.ordinal() >= segment.phaseCount)
+                continue;
+            long position = HEADER_SIZE + (number % segmentRecords) * segment.recordSize + FIXED_SIZE
+                    + 4 * phase.ordinal();
+            value.clear();
+            while (value.hasRemaining()) {
+                if (segment.channel.read(value, position + value.position()) < 0)
+                    throw new IOException("record " + number + " is missing");
+            }
+            int micros = value.getInt(0);
+            if (micros >= 0)
+                histogram.record(micros * 1000L, 0);
+        }
+        return histogram;
+    }
+
+    /**
+     * @param percentile: 0 to 100
+     * @return duration (us) of phase at percentile over the last flashes of image, 0 if none
+     * @see #histogram(String, FlashMetrics.Phase, int)
+     */
+    public long percentileMicros(String image, FlashMetrics.Phase phase, double percentile, int lastFlashes)
+            throws IOException {
+        return histogram(image, phase, lastFlashes).getPercentileMicros(percentile);
+    }
+
+    /**
+     * @return counters of every device in history, from the in-memory index
+     */
+    public synchronized Map<String, DeviceStats> deviceStats() {
+        Map<String, DeviceStats> stats = new HashMap<>();
+        for (Map.Entry<Integer, DeviceStats> entry : byDevice.entrySet()) {
+            DeviceStats copy = new DeviceStats();
+            copy.add(entry.getValue(), 1);
+            stats.put(names.get(entry.getKey()), copy);
+        }
+        return stats;
+    }
+
+    /**
+     * @param device: usb serial or device node, see {@link Record#device}
+     * @return counters of device, all 0 if it is not in history
+     */
+    public synchronized DeviceStats deviceStats(String device) {
+        DeviceStats copy = new DeviceStats();
+        Integer id = nameIds.get(device);
+        DeviceStats stats = id == null ? null : byDevice.get(id);
+        if (stats != null)
+            copy.add(stats, 1);
+        return copy;
+    }
+
+    /**
+     * @return number of records kept
+     */
+    public synchronized long size() {
+        long size = 0;
+        for (Segment segment : segments)
+            size += segment.count;
+        return size;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        for (Segment segment : segments)
+            segment.channel.close();
+        if (namesFile != null)
+            namesFile.close();
+    }
+}
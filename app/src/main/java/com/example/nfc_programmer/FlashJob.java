@@ -0,0 +1,683 @@
+package com.example.nfc_programmer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One flash cycle of <b>lcp11u68</b>, queued and run by {@link FlashService} with its warm resources
+ * The process divided into 4 part
+ * - reset mcu into bootloader mode
+ * - unmount partition of lcp11u68 which automount
+ * - begin flashing process
+ * - reset mcu into normal mode
+ * Firmware is loaded, validated and hashed alongside, from job submit until the device is ready, see {@link #prepare(Executor)}
+ * Phase durations and result of each board are appended to {@link FlashService#history} when the job is done
+ */
+public class FlashJob implements Callable<String>, FlashProgressListener {
+    final static String TAG = "Flash Job";
+    final static String UUID = "0000-0000";
+    final static long BATCH_TIMEOUT = 60000;
+    // deadline of volume wait until learned, and bound of deadline + grace, see ResetTiming
+    final static long MOUNT_DEADLINE = 5000;
+    final static long MOUNT_TIMEOUT = 10000;
+
+    /**
+     * Progress message of job, called from worker thread
+     */
+    public interface Listener {
+        void onJobProgress(String message);
+    }
+
+    /**
+     * How to flash
+     */
+    public static class Options {
+        // only write sectors which differ from what is already on the mcu
+        public boolean delta;
+        // flash every attached board at the same time instead of the first one found
+        public boolean allDevices;
+        // read back and check every chunk while flashing, re-write chunks which failed
+        public boolean verify;
+        // bootloader erased the flash, so erased (0xFF) sectors of image are not written, wins over delta
+        // leave off when the bootloader doesn't guarantee it, image is then written in full
+        public boolean erased;
+        // values of bundle patches, "serial" defaults to usb serial of each board, "device" is its node
+        public Map<String, String> variables = new HashMap<>();
+    }
+
+    private final FlashService service;
+    private final FirmwareSource source;
+    private final Options options;
+    private final Listener listener;
+    private final long submitTime = FlashMetrics.now();
+    private volatile boolean cancelled;
+    private final AtomicBoolean started = new AtomicBoolean();
+    // firmware load, overlapping queue wait, reset and mount
+    private volatile FutureTask<FirmwareCache.Image> prepared;
+    // set by load() if firmware is a bundle
+    private volatile FirmwareBundle bundle;
+    // history key of firmware, image hash once loaded
+    private volatile String imageId;
+    // phases of the whole job, and of each board written
+    private final FlashMetrics.Trace trace = new FlashMetrics.Trace();
+    private final List<Outcome> outcomes = Collections.synchronizedList(new ArrayList<Outcome>());
+
+    /**
+     * Write of one board, for {@link FlashService#history}
+     */
+    private static class Outcome {
+        final String device;
+        final FlashMetrics.Trace trace;
+        final boolean success;
+
+        Outcome(String device, FlashMetrics.Trace trace, boolean success) {
+            this.device = device;
+            this.trace = trace;
+            this.success = success;
+        }
+    }
+
+    /**
+     * @param service: service which own reset, storage and backend
+     * @param source: firmware file or descriptor, closed when job finished
+     * @param options: how to flash
+     * @param listener: progress message, can be null
+     */
+    FlashJob(FlashService service, FirmwareSource source, Options options, Listener listener) {
+        this.service = service;
+        this.source = source;
+        this.options = options;
+        this.listener = listener;
+        this.imageId = source.getName();
+    }
+
+    /**
+     * Start loading firmware on given executor, so file I/O is hidden behind queue wait and mcu reset latency <br>
+     * Without it firmware is loaded when the job starts, before touching the mcu
+     * @param executor: runs the load, not the job worker
+     */
+    void prepare(Executor executor) {
+        FutureTask<FirmwareCache.Image> task = new FutureTask<>(new Callable<FirmwareCache.Image>() {
+            @Override
+            public FirmwareCache.Image call() throws IOException {
+                FlashMetrics.Trace previous = FlashMetrics.attach(trace);
+                try {
+                    return load();
+                } finally {
+                    FlashMetrics.attach(previous);
+                }
+            }
+        });
+        prepared = task;
+        executor.execute(task);
+    }
+
+    /**
+     * Load firmware into cache: read, size check, vector table check, hash. Extents too if target is erased
+     * @return cached image, null for hex, elf and compressed files which are decoded while flashing, see SegmentFlasher,
+     * and for bundles which are loaded into {@link #bundle}
+     * @throws IOException if firmware can't be loaded
+     */
+    private FirmwareCache.Image load() throws IOException {
+        if (FirmwareBundle.isBundle(source.getName())) {
+            if (options.delta || options.verify || options.erased)
+                Log.w(TAG, "delta, verify and erased need a binary image, " + source + " is fully written without them");
+            long start = FlashMetrics.now();
+            try (InputStream in = source.openStream()) {
+                bundle = FirmwareBundle.read(in);
+            }
+            FlashMetrics.get().record(FlashMetrics.Phase.FILE_LOAD, start, bundle.getDataBytes());
+            Log.i(TAG, "bundle " + bundle);
+            return null;
+        }
+        long start = FlashMetrics.now();
+        // only plain binaries are cached, format is read from content on a miss
+        FirmwareCache.Image image = service.firmwareCache.getCached(source);
+        if (image == null && ImageDecoder.needsDecoding(source)) {
+            if (options.delta || options.verify)
+                Log.w(TAG, "delta and verify need a binary image, " + source + " is fully written without them");
+            return null;
+        }
+        if (image == null)
+            image = service.firmwareCache.get(source);
+        if (options.erased)
+            image.extents();
+        FlashMetrics.get().record(FlashMetrics.Phase.FILE_LOAD, start, image.size);
+        imageId = image.hash;
+        Log.d(TAG, "firmware cache " + service.firmwareCache.stats());
+        return image;
+    }
+
+    /**
+     * @return prepared image, null for firmware decoded while flashing
+     * @throws IOException if firmware can't be loaded
+     */
+    private FirmwareCache.Image awaitImage() throws IOException, InterruptedException {
+        try {
+            return prepared.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return true if firmware load already failed, checked before each reset so a bad file costs as few as possible
+     */
+    private boolean loadFailed() {
+        if (!prepared.isDone())
+            return false;
+        try {
+            awaitImage();
+            return false;
+        } catch (IOException e) {
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Stop at next check point, called by {@link FlashJobFuture#cancel(boolean)} <br>
+     * A write in progress is stopped by interrupting the worker thread
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Put mcu back into normal mode after job was cancelled
+     * @param phase: what the job was doing
+     * @return : Result message
+     */
+    private String cancelled(String phase) {
+        Log.w(TAG, "cancelled while " + phase);
+        try {
+            service.reset.enterNormalModeNonBlock();
+        } catch (IOException e) {
+            Log.e(TAG, "Can't reset mcu after cancel. Error msg: " + e.getMessage());
+        }
+        return ("flash cancelled");
+    }
+
+    private void progress(String message) {
+        if (listener != null)
+            listener.onJobProgress(message);
+    }
+
+    /**
+     * Flashing MCU, then close firmware source
+     * @return : Result message which will show in toast later
+     */
+    @Override
+    public String call() {
+        if (!started.compareAndSet(false, true))
+            return ("flash cancelled");
+        FlashMetrics.Trace previous = FlashMetrics.attach(trace);
+        String result = null;
+        try {
+            result = flash();
+            return result;
+        } finally {
+            FlashMetrics.attach(previous);
+            closeSource();
+            record(result);
+            if (service != null && service.resetTiming != null)
+                service.resetTiming.save();
+        }
+    }
+
+    /**
+     * Close firmware source of a job cancelled before it started, no-op once started
+     */
+    void discard() {
+        if (started.compareAndSet(false, true))
+            closeSource();
+    }
+
+    private void closeSource() {
+        try {
+            source.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Can't close " + source + ". Error msg: " + e.getMessage());
+        }
+    }
+
+    private String flash() {
+        int ret;
+        final FirmwareCache.Image image;
+        FlashMetrics metrics = FlashMetrics.get();
+        long cycleStart = FlashMetrics.now(), start;
+        metrics.record(FlashMetrics.Phase.JOB_WAIT, submitTime);
+
+        // Not prepared at submit: load firmware before touching the mcu, so a bad file doesn't cost a reset cycle
+        if (prepared == null) {
+            prepare(new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    command.run();
+                }
+            });
+        }
+        if (loadFailed())
+            return firmwareError();
+        if (cancelled)
+            return ("flash cancelled");
+
+        try {
+            // Make lcp mcu go into bootloader mode, firmware may still be loading
+            // watcher is armed first so the mount event can't slip in before we wait for it
+            service.volumeWatcher.arm();
+            try {
+                progress("Entering program mode");
+                start = FlashMetrics.now();
+                service.reset.enterNormalMode();
+                metrics.record(FlashMetrics.Phase.NORMAL_RESET, start);
+                start = FlashMetrics.now();
+                boolean progMode = service.reset.enterProgMode();
+                metrics.record(FlashMetrics.Phase.PROG_MODE, start);
+                if (!progMode)
+                {
+                    Log.e(TAG, "Can't enter program mode, did lcp connected?");
+
+                    return ("can't go into prog mode");
+                }
+                if (loadFailed()) {
+                    service.reset.enterNormalModeNonBlock();
+                    return firmwareError();
+                }
+            } catch (InterruptedException e) {
+                return cancelled("entering program mode");
+            }
+
+            // Recognize lcp partition and unmount it
+            if (!service.canUnmount()) {
+                Log.w(TAG, "private storage API missing, device not unmounted");
+                progress("can't unmount device");
+            } else {
+                Object volumeInfo = null;
+                try {
+                    // Wait for volume to mounted, woken up by block device / mount events
+                    progress("Waiting for device to mount");
+                    start = FlashMetrics.now();
+                    volumeInfo = awaitVolume();
+                    metrics.record(FlashMetrics.Phase.VOLUME_WAIT, start);
+
+                    String mVolumeId = null;
+                    mVolumeId = (String) service.getId.invoke(volumeInfo);
+
+                    progress("unmount device with id " + mVolumeId);
+
+                    Log.d(TAG, "volume id: " + mVolumeId);
+                    start = FlashMetrics.now();
+                    service.unmount.invoke(service.storageManager, mVolumeId);
+                    metrics.record(FlashMetrics.Phase.UNMOUNT, start);
+                } catch (InvocationTargetException e) {
+                    e.printStackTrace();
+                    Log.e(TAG,"unmount not success. Error msg:" + e.getMessage() + ". Cause: " + e.getCause());
+                    service.reset.enterNormalModeNonBlock();
+
+                    return ("unmount error");
+                } catch (ReflectiveOperationException e) {
+                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    if (cancelled)
+                        return cancelled("waiting for device");
+                    e.printStackTrace();
+                    Log.e(TAG,"Error: coundn't found device with UUID: " + UUID + ". Error msg: " + e.getMessage());
+                    Log.e(TAG,"Timeout Interrupted");
+                    service.reset.enterNormalModeNonBlock();
+
+                    return ("Couldn't found device, Timeout");
+                }
+            }
+
+            if (cancelled)
+                return cancelled("unmounting");
+
+            // Device is ready, firmware should be too
+            try {
+                start = FlashMetrics.now();
+                image = awaitImage();
+                metrics.record(FlashMetrics.Phase.IMAGE_WAIT, start);
+            } catch (IOException e) {
+                service.reset.enterNormalModeNonBlock();
+                return firmwareError();
+            } catch (InterruptedException e) {
+                return cancelled("loading firmware");
+            }
+
+            // Begin flashing process, cancel interrupts the write, then mcu is reset as usual
+            progress("Begin flashing");
+//            ret = program("/data/lpc11u_surisdk_v0_0_6.bin");
+            if (options.allDevices) {
+                ret = flashAllDevices(image);
+            } else {
+                String[] devices = findDevices();
+                long skipped = devices.length == 0 ? -1 : flashTraced(image, devices[0], this);
+                ret = skipped == -1 ? -1 : 0;
+                if (options.delta && !options.erased && skipped != -1)
+                    progress("Skipped " + skipped + " unchanged bytes");
+                else if (skipped > 0)
+                    progress("Skipped " + skipped + " erased or already flashed bytes");
+            }
+
+            // reset lpc, also after cancel(true): its interrupt would end the wait for normal mode at once,
+            // so it is cleared for the reset and restored after
+            boolean interrupted = Thread.interrupted();
+            try {
+                progress("Reseting mcu");
+                start = FlashMetrics.now();
+                boolean normalMode = service.reset.enterNormalMode();
+                metrics.record(FlashMetrics.Phase.FINAL_RESET, start);
+                if(!normalMode){
+                    Log.e(TAG, "Can't go into normal mode, may be firmware corrupted");
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+                metrics.record(FlashMetrics.Phase.FINAL_RESET, start);
+                Log.w(TAG, "Interrupted while waiting for normal mode, mcu may still be in boot mode");
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+
+            if (cancelled)
+                return ("flash cancelled");
+            if (ret == -1)
+                return ("flash error");
+            else
+                return ("flash finish");
+
+        } catch (IOException e){
+            e.printStackTrace();
+            Log.e(TAG, "Can't open reset driver file. Error msg: " + e.getMessage());
+        } finally {
+            metrics.record(FlashMetrics.Phase.CYCLE, cycleStart);
+            metrics.record(FlashMetrics.Phase.JOB, submitTime);
+        }
+
+        return "Success";
+    }
+
+    /**
+     * Wait for bootloader volume as long as {@link FlashService#resetTiming} learned it takes on this board,
+     * a fixed {@link #MOUNT_TIMEOUT} without it
+     * @return volume info
+     * @throws InterruptedException if volume isn't mounted in time
+     */
+    private Object awaitVolume() throws InterruptedException, ReflectiveOperationException {
+        VolumeWatcher.Probe<Object> probe = new VolumeWatcher.Probe<Object>() {
+            @Override
+            public Object check() throws ReflectiveOperationException {
+                return service.findVolumeByUuid.invoke(service.storageManager, UUID);
+            }
+        };
+        ResetTiming timing = service.resetTiming;
+        if (timing == null) {
+            Object volumeInfo = service.volumeWatcher.await(probe, MOUNT_TIMEOUT);
+            if (volumeInfo == null)
+                throw new InterruptedException("volume not mounted after " + MOUNT_TIMEOUT + " ms");
+            return volumeInfo;
+        }
+
+        long start = FlashMetrics.now();
+        String serial = service.reset.getSerial(ResetUtil.VID_boot, ResetUtil.PID_boot);
+        ResetTiming.Budget budget = timing.budget(ResetTiming.VOLUME, serial, MOUNT_DEADLINE, MOUNT_TIMEOUT,
+                VolumeWatcher.RECHECK_INTERVAL);
+        Object volumeInfo = service.volumeWatcher.await(probe, budget.deadline, budget.pollInterval);
+        if (volumeInfo == null && budget.grace > 0) {
+            Log.w(TAG, "volume late, " + budget);
+            volumeInfo = service.volumeWatcher.await(probe, budget.grace, budget.pollInterval);
+        }
+        if (volumeInfo == null) {
+            timing.timeout(ResetTiming.VOLUME, serial);
+            throw new InterruptedException("volume not mounted after " + (budget.deadline + budget.grace) + " ms");
+        }
+        timing.record(ResetTiming.VOLUME, serial, (FlashMetrics.now() - start) / 1000000);
+        return volumeInfo;
+    }
+
+    private String firmwareError() {
+        try {
+            awaitImage();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.e(TAG, "Can't load firmware file. Error msg: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return ("firmware file error");
+    }
+
+    /**
+     * Boards in boot mode, looked up in {@link DeviceRegistry} so other usb storage (ex: usb stick) is never written <br>
+     * If no board is registered (ex: sysfs not readable) fall back to scanning /dev/block,
+     * still leaving out nodes known to belong to another usb device
+     * @return device nodes
+     */
+    private String[] findDevices() {
+        DeviceRegistry registry = service.deviceRegistry;
+        String[] devices = registry.findNodes(ResetUtil.VID_boot, ResetUtil.PID_boot);
+        if (devices.length > 0)
+            return devices;
+
+        List<String> scanned = new ArrayList<>();
+        for (String devPath : service.backend.findDevices()) {
+            DeviceRegistry.Device device = registry.get(devPath);
+            if (device == null || device.vendorId == -1)
+                scanned.add(devPath);
+            else
+                Log.d(TAG, "not a board in boot mode: " + device);
+        }
+        Log.w(TAG, "no board in device registry, scanned " + scanned);
+        return scanned.toArray(new String[0]);
+    }
+
+    /**
+     * Flash every board found in /dev/block concurrently on the service {@link BatchFlasher}
+     * @param image: cached content of firmware file, null to stream decoded segments
+     * @return -1 if any board failed, 0 if all success
+     */
+    private int flashAllDevices(final FirmwareCache.Image image) {
+        List<String> devices = Arrays.asList(findDevices());
+        progress("Flashing " + devices.size() + " devices");
+
+        BatchFlasher.DeviceWriter writer = new BatchFlasher.DeviceWriter() {
+            @Override
+            public long write(String path, String devPath, FlashProgressListener listener) {
+                return flashTraced(image, devPath, listener);
+            }
+        };
+        // workers are joined before results come back, so the boards are not reset while being written
+        List<BatchFlasher.Result> results = service.batchFlasher.flashAll(source.getName(), devices, BATCH_TIMEOUT,
+                writer, new BatchFlasher.Listener() {
+                    @Override
+                    public void onDeviceProgress(String devPath, long written, long total, long bytesPerSecond) {
+                        progress(devPath + ": " + size(written, total) + " bytes (" + bytesPerSecond / 1024 + " KB/s)");
+                    }
+
+                    @Override
+                    public void onDeviceFinished(BatchFlasher.Result result) {
+                        progress(result.toString());
+                    }
+                });
+
+        int failed = 0;
+        for (BatchFlasher.Result result : results) {
+            if (!result.success)
+                failed++;
+        }
+        Log.i(TAG, "batch finished, " + (results.size() - failed) + "/" + results.size() + " devices ok");
+        return (failed > 0 || results.isEmpty()) ? -1 : 0;
+    }
+
+    /**
+     * {@link #flashDevice} with phases of the board traced on the calling thread, outcome kept for history
+     */
+    private long flashTraced(FirmwareCache.Image image, String devPath, FlashProgressListener listener) {
+        DeviceRegistry.Device device = service.deviceRegistry == null ? null : service.deviceRegistry.get(devPath);
+        FlashMetrics.Trace deviceTrace = new FlashMetrics.Trace();
+        FlashMetrics.Trace previous = FlashMetrics.attach(deviceTrace);
+        long skipped = -1;
+        try {
+            skipped = flashDevice(image, devPath, listener);
+            return skipped;
+        } finally {
+            FlashMetrics.attach(previous);
+            outcomes.add(new Outcome(device != null && device.serial != null ? device.serial : devPath,
+                    deviceTrace, skipped != -1));
+        }
+    }
+
+    /**
+     * Append one record per board written into {@link FlashService#history},
+     * one with no device if the job ended before writing any
+     * @param message: result message of job, null if it threw
+     */
+    private void record(String message) {
+        FlashHistory history = service == null ? null : service.history;
+        if (history == null)
+            return;
+        List<FlashHistory.Record> records = new ArrayList<>();
+        synchronized (outcomes) {
+            for (Outcome outcome : outcomes) {
+                FlashHistory.Result result = cancelled ? FlashHistory.Result.CANCELLED
+                        : (outcome.success ? FlashHistory.Result.OK : FlashHistory.Result.FLASH_ERROR);
+                records.add(new FlashHistory.Record(outcome.device, imageId, result, trace, outcome.trace));
+            }
+        }
+        if (records.isEmpty()) {
+            FlashHistory.Result result = cancelled || "flash cancelled".equals(message)
+                    ? FlashHistory.Result.CANCELLED : FlashHistory.Result.FAILED;
+            records.add(new FlashHistory.Record("", imageId, result, trace));
+        }
+        try {
+            for (FlashHistory.Record record : records)
+                history.append(record);
+        } catch (IOException e) {
+            Log.w(TAG, "Can't append flash history. Error msg: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Flash one device with selected backend, verify while writing if enabled <br>
+     * With verify (and not delta) verified chunks are journaled, a retry of the same image on the same board
+     * (usb serial, device node if unknown) resumes after the last chunk committed
+     * @param image: firmware to flash, null to stream decoded segments of {@link #source} or write {@link #bundle}
+     * @param devPath: device file (ex: /dev/block/sda)
+     * @param listener: progress
+     * @return number of bytes skipped, -1 if fail or verification failed
+     */
+    private long flashDevice(FirmwareCache.Image image, String devPath, FlashProgressListener listener) {
+        if (bundle != null)
+            return BundleFlasher.flash(bundle, variables(devPath), devPath, listener) == -1 ? -1 : 0;
+        if (image == null)
+            return SegmentFlasher.flash(source, devPath, listener) == -1 ? -1 : 0;
+        if (!options.verify)
+            return write(image, devPath, 0, listener);
+
+        ChunkVerifier verifier;
+        try {
+            verifier = new ChunkVerifier(image.data(), devPath, listener);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't open " + devPath + " for verification. Error msg: " + e.getMessage());
+            return -1;
+        }
+        WriteJournal journal = null;
+        int resume = 0;
+        if (!options.delta) {
+            try {
+                DeviceRegistry.Device device = service.deviceRegistry == null ? null
+                        : service.deviceRegistry.get(devPath);
+                String board = device != null && device.serial != null ? device.serial : devPath;
+                journal = WriteJournal.open(service.journalDir, board, image.hash, image.size);
+                verifier.setJournal(journal);
+                resume = journal.getResumeOffset();
+                if (resume > 0)
+                    progress(devPath + ": resuming at " + resume + "/" + image.size + " bytes");
+            } catch (IOException e) {
+                Log.w(TAG, "Can't open write journal, flashing without it. Error msg: " + e.getMessage());
+            }
+        }
+
+        // in erased mode verification also catches a target which was not erased after all,
+        // those chunks are re-written in full. Resumed chunks are verified again the same way
+        long skipped = write(image, devPath, resume, verifier);
+        ChunkVerifier.Result result = verifier.finish();
+        boolean success = skipped != -1 && result.success();
+        if (journal != null) {
+            if (success) {
+                journal.complete();
+            } else {
+                try {
+                    journal.close();
+                } catch (IOException ignored) {}
+            }
+        }
+        if (!success)
+            return -1;
+        if (result.rewritten > 0)
+            progress(devPath + ": " + result.rewritten + " chunks re-written after verification");
+        return skipped;
+    }
+
+    /**
+     * @return bundle patch values of one board: options, then its node and usb serial unless given
+     */
+    private Map<String, String> variables(String devPath) {
+        Map<String, String> variables = new HashMap<>(options.variables);
+        if (!variables.containsKey("device"))
+            variables.put("device", devPath);
+        DeviceRegistry.Device device = service.deviceRegistry == null ? null : service.deviceRegistry.get(devPath);
+        if (!variables.containsKey("serial") && device != null && device.serial != null)
+            variables.put("serial", device.serial);
+        return variables;
+    }
+
+    /**
+     * Write image with selected backend, only its data extents if target is erased
+     * @param resume: image offset to start writing at, chunks before it are already on device
+     * @return number of bytes skipped, -1 if fail
+     */
+    private long write(FirmwareCache.Image image, String devPath, int resume, FlashProgressListener listener) {
+        if (options.erased || resume > 0) {
+            ExtentIndex extents = (options.erased ? image.extents() : ExtentIndex.full(image.size)).from(resume);
+            Log.d(TAG, "writing " + extents + " from " + resume);
+            return service.backend.flash(image.data(), extents, devPath, listener);
+        }
+        return service.backend.flash(image.data(), devPath, options.delta, listener);
+    }
+
+    /**
+     * Called from flashing backend after each chunk written into <b>lcp11u68</b>
+     * @param written: bytes written so far
+     * @param total: firmware size
+     * @param bytesPerSecond: average write throughput
+     */
+    @Override
+    public void onFlashProgress(long written, long total, long bytesPerSecond) {
+        progress("Flashing " + size(written, total) + " bytes (" + bytesPerSecond / 1024 + " KB/s)");
+    }
+
+    private static String size(long written, long total) {
+        return total > 0 ? written + "/" + total : String.valueOf(written);
+    }
+
+}
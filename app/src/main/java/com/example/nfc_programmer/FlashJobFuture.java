@@ -0,0 +1,117 @@
+package com.example.nfc_programmer;
+
+import android.util.Log;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pending result of a {@link FlashJob}, run it on any executor <br>
+ * Cancelling stops the job at its next check point: between phases, or after the chunk being written.
+ * The mcu is then put back into normal mode by the job itself: the future is done right away,
+ * {@link #isFinished()} only once the job returned.
+ */
+public class FlashJobFuture extends FutureTask<String> {
+    final static String TAG = "Flash Job Future";
+
+    private final FlashJob job;
+    private volatile boolean timedOut;
+    // run by executor, job returned or was cancelled before it started
+    private volatile boolean running, finished;
+    private volatile ScheduledFuture<?> timer;
+
+    FlashJobFuture(FlashJob job) {
+        super(job);
+        this.job = job;
+    }
+
+    @Override
+    public void run() {
+        running = true;
+        try {
+            super.run();
+        } finally {
+            finished = true;
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        job.cancel();
+        return super.cancel(mayInterruptIfRunning);
+    }
+
+    /**
+     * Cancel job if not done within timeout
+     * @param timeoutMs: deadline from now, includes time waiting in queue
+     * @param scheduler: runs the timeout
+     * @return this
+     */
+    public FlashJobFuture expireAfter(long timeoutMs, ScheduledExecutorService scheduler) {
+        timer = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timedOut = true;
+                if (cancel(true))
+                    Log.w(TAG, "flash job timeout");
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        if (isDone())
+            timer.cancel(false);
+        return this;
+    }
+
+    /**
+     * Job finished or cancelled, timeout not needed anymore. A job cancelled in queue still closes its source
+     */
+    @Override
+    protected void done() {
+        ScheduledFuture<?> timer = this.timer;
+        if (timer != null)
+            timer.cancel(false);
+        if (isCancelled()) {
+            job.discard();
+            // cancelled before it ran, the job never starts
+            if (!running)
+                finished = true;
+        }
+    }
+
+    /**
+     * @return true once the job doesn't touch the board anymore: it returned, including the reset of a cancelled
+     * job, or it was cancelled before it started
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return true if job was cancelled by {@link #expireAfter(long, ScheduledExecutorService)}
+     */
+    public boolean isTimedOut() {
+        return timedOut && isCancelled();
+    }
+
+    /**
+     * Result message for the user, call once {@link #isDone()}
+     * @return job result, or why there is none
+     */
+    public String getMessage() {
+        try {
+            return get();
+        } catch (CancellationException e) {
+            return isTimedOut() ? "flash timeout" : "flash cancelled";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ("flash interrupted");
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            Log.e(TAG, "flash job failed. Error msg: " + e.getCause());
+            return ("flash error");
+        }
+    }
+}
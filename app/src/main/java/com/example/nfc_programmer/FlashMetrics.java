@@ -0,0 +1,164 @@
+package com.example.nfc_programmer;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency of every phase of a flash cycle, shared by {@link FlashTask}, {@link ResetUtil}, backends and native code <br>
+ * Usage: <i>long start = FlashMetrics.now(); ... FlashMetrics.get().record(Phase.WRITE, start, bytes);</i> <br>
+ * Export as JSON or dump into logcat. Phases of one cycle are also collected into a {@link Trace} attached to the threads running it.
+ */
+public class FlashMetrics {
+    final static String TAG = "Flash Metrics";
+
+    /**
+     * Phases of a flash cycle, ordinal of native phases must match native-lib
+     */
+    public enum Phase {
+        NORMAL_RESET,       // reset into normal mode before flashing
+        PROG_MODE,          // reset into boot mode, until usb attach
+        VOLUME_WAIT,        // wait for bootloader volume
+        UNMOUNT,            // unmount bootloader volume
+        FILE_LOAD,          // load firmware file (native: 4)
+        WRITE,              // write firmware into device (native: 5)
+        SYNC,               // fsync device (native: 6)
+        FINAL_RESET,        // reset into normal mode after flashing
+        RESET_MODE_WRITE,   // ResetUtil: write into gpio-boot-reset mode file
+        USB_ENUMERATION,    // ResetUtil: from mode write until usb attach event
+        CYCLE,              // whole flash cycle
+        JOB_WAIT,           // FlashService: time job spent in queue
+        JOB,                // FlashService: from job submit until result
+        IMAGE_WAIT          // FlashJob: wait for firmware load once device is ready, 0 when hidden behind reset
+    }
+
+    /**
+     * Phase durations of one flash cycle, filled by the threads it is attached to, see {@link #attach(Trace)}
+     */
+    public static class Trace {
+        private final AtomicLongArray nanos = new AtomicLongArray(Phase.values().length);
+        private final AtomicLongArray counts = new AtomicLongArray(Phase.values().length);
+        private final AtomicLongArray bytes = new AtomicLongArray(Phase.values().length);
+
+        void add(int phase, long duration, long byteCount) {
+            nanos.addAndGet(phase, duration);
+            counts.incrementAndGet(phase);
+            bytes.addAndGet(phase, byteCount);
+        }
+
+        /**
+         * @return total duration of phase, -1 if phase was not recorded
+         */
+        public long getNanos(Phase phase) {
+            return counts.get(phase.ordinal()) == 0 ? -1 : nanos.get(phase.ordinal());
+        }
+
+        public long getBytes(Phase phase) {
+            return bytes.get(phase.ordinal());
+        }
+    }
+
+    private static final FlashMetrics instance = new FlashMetrics();
+    private static final ThreadLocal<Trace> traces = new ThreadLocal<>();
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Phase.values().length];
+
+    FlashMetrics() {
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new LatencyHistogram();
+    }
+
+    /**
+     * @return process wide metrics
+     */
+    public static FlashMetrics get() {
+        return instance;
+    }
+
+    /**
+     * @return high resolution timestamp to pass to {@link #record(Phase, long)}
+     */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Attach trace to calling thread, phases recorded by the thread from now on are added to it too
+     * @param trace: trace of a flash cycle, null to detach
+     * @return trace attached before, to put back when done
+     */
+    static Trace attach(Trace trace) {
+        Trace previous = traces.get();
+        traces.set(trace);
+        return previous;
+    }
+
+    public void record(Phase phase, long start) {
+        record(phase.ordinal(), System.nanoTime() - start, 0);
+    }
+
+    public void record(Phase phase, long start, long bytes) {
+        record(phase.ordinal(), System.nanoTime() - start, bytes);
+    }
+
+    private void record(int phase, long nanos, long bytes) {
+        histograms[phase].record(nanos, bytes);
+        Trace trace = traces.get();
+        if (trace != null)
+            trace.add(phase, nanos, bytes);
+    }
+
+    /**
+     * Called from native-lib with duration already measured
+     * @param phase: ordinal of {@link Phase}
+     * @param nanos: duration
+     * @param bytes: bytes processed
+     */
+    static void recordNative(int phase, long nanos, long bytes) {
+        if (phase >= 0 && phase < instance.histograms.length)
+            instance.record(phase, nanos, bytes);
+    }
+
+    public LatencyHistogram histogram(Phase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    /**
+     * @return {"PHASE": {"count":n, "mean_us":.., "p50_us":.., "p95_us":.., "p99_us":.., "max_us":.., "bytes_per_s":..}, ...}
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram h = histogram(phase);
+            if (json.length() > 1)
+                json.append(',');
+            json.append('"').append(phase.name()).append("\":{")
+                    .append("\"count\":").append(h.getCount())
+                    .append(",\"mean_us\":").append(h.getMeanMicros())
+                    .append(",\"p50_us\":").append(h.getPercentileMicros(50))
+                    .append(",\"p95_us\":").append(h.getPercentileMicros(95))
+                    .append(",\"p99_us\":").append(h.getPercentileMicros(99))
+                    .append(",\"max_us\":").append(h.getMaxMicros())
+                    .append(",\"bytes_per_s\":").append(h.getThroughput())
+                    .append('}');
+        }
+        return json.append('}').toString();
+    }
+
+    /**
+     * Print one line per recorded phase into logcat
+     */
+    public void dump() {
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram h = histogram(phase);
+            if (h.getCount() == 0)
+                continue;
+            Log.i(TAG, phase.name() + ": n=" + h.getCount()
+                    + " p50=" + h.getPercentileMicros(50) / 1000.0 + "ms"
+                    + " p95=" + h.getPercentileMicros(95) / 1000.0 + "ms"
+                    + " p99=" + h.getPercentileMicros(99) / 1000.0 + "ms"
+                    + " max=" + h.getMaxMicros() / 1000.0 + "ms"
+                    + (h.getThroughput() > 0 ? " " + h.getThroughput() / 1024 + "KB/s" : ""));
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.example.nfc_programmer;
+
+/**
+ * Receive byte-level progress from flashing engine, called after each chunk written into <b>lcp11u68</b>
+ */
+public interface FlashProgressListener {
+    /**
+     * @param written: bytes written so far
+     * @param total: firmware size
+     * @param bytesPerSecond: average write throughput
+     */
+    void onFlashProgress(long written, long total, long bytesPerSecond);
+}
@@ -0,0 +1,213 @@
+package com.example.nfc_programmer;
+
+import android.app.Service;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbManager;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.storage.StorageManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Class.forName;
+
+/**
+ * Long-lived flashing service <br>
+ * Private API lookup, reset driver and its learned timing, usb broadcast receiver, volume watcher, device registry, firmware cache, backend and batch workers are set up once,
+ * flash jobs are queued and run one by one on a worker thread, so back-to-back flashes start without setup cost.
+ */
+public class FlashService extends Service {
+    final static String TAG = "Flash Service";
+    final static long CACHE_SIZE = 4 * FirmwareCache.MAX_IMAGE_SIZE;
+
+    /**
+     * Local binder, service is only used inside the app
+     */
+    public class LocalBinder extends Binder {
+        FlashService getService() {
+            return FlashService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private ThreadPoolExecutor executor;
+    // job timeouts
+    private ScheduledExecutorService scheduler;
+    // firmware loads of queued jobs, overlapping mcu reset of the running one
+    private ExecutorService prepareExecutor;
+
+    // Warm resources used by FlashJob
+    StorageManager storageManager;
+    Method unmount = null, findVolumeByUuid = null, getId = null;
+    ResetUtil reset;
+    VolumeWatcher volumeWatcher;
+    // block device -> usb VID / PID / serial, updated from /dev/block events
+    DeviceRegistry deviceRegistry;
+    FlashBackend backend;
+    // workers of multi-device jobs
+    BatchFlasher batchFlasher;
+    // Repeat flashes of the same build skip file I/O
+    FirmwareCache firmwareCache;
+    // write journals of interrupted flashes, survive app restart
+    File journalDir;
+    // reset and mount wait times learned per board, survive app restart
+    ResetTiming resetTiming;
+    // every flash cycle, null until opened or if it can't be
+    volatile FlashHistory history;
+
+    /**
+     * Init private API access, reset Util + broadcast receiver, volume watcher and job queue
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Init private method which use to detect and unmount lpc partition
+        storageManager = getSystemService(StorageManager.class);
+        try {
+            Class<?> storageManagerClass = forName("android.os.storage.StorageManager");
+            Class<?> volumeInfoClass = forName("android.os.storage.VolumeInfo");
+            unmount = storageManagerClass.getMethod("unmount", String.class);
+            findVolumeByUuid = storageManagerClass.getDeclaredMethod("findVolumeByUuid", String.class);
+            getId = volumeInfoClass.getDeclaredMethod("getId");
+            unmount.setAccessible(true);
+            findVolumeByUuid.setAccessible(true);
+            getId.setAccessible(true);
+        } catch (ReflectiveOperationException | SecurityException e) {
+            Log.e(TAG, "Private storage API not available, partitions won't be unmounted. Error msg: " + e.getMessage());
+            unmount = null;
+            findVolumeByUuid = null;
+            getId = null;
+        }
+
+        // setup broadcast controller, kept registered for the lifetime of the service
+        reset = new ResetUtil();
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+        registerReceiver(reset.getUsbBroadcastReceiver(), filter);
+        resetTiming = new ResetTiming(new File(getFilesDir(), "reset-timing"));
+        reset.setTiming(resetTiming);
+
+        volumeWatcher = new VolumeWatcher(this);
+        volumeWatcher.start();
+        deviceRegistry = new DeviceRegistry();
+        deviceRegistry.start();
+
+        backend = createBackend(BuildConfig.FLASH_BACKEND);
+        Log.d(TAG, "using " + backend.getClass().getSimpleName());
+        firmwareCache = new FirmwareCache(CACHE_SIZE);
+        batchFlasher = new BatchFlasher(BatchFlasher.MAX_WORKERS);
+        journalDir = new File(getFilesDir(), "journal");
+
+        // one mcu reset line, so jobs run one by one
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        prepareExecutor = Executors.newSingleThreadExecutor();
+        // opened off the main thread, before the firmware load of the first job
+        prepareExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    history = FlashHistory.open(new File(getFilesDir(), "history"));
+                } catch (IOException e) {
+                    Log.e(TAG, "Can't open flash history. Error msg: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        executor.shutdownNow();
+        scheduler.shutdownNow();
+        prepareExecutor.shutdownNow();
+        batchFlasher.shutdown();
+        volumeWatcher.stop();
+        deviceRegistry.stop();
+        unregisterReceiver(reset.getUsbBroadcastReceiver());
+        resetTiming.save();
+        if (history != null) {
+            try {
+                history.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Can't close flash history. Error msg: " + e.getMessage());
+            }
+        }
+
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    /**
+     * Queue a flash job on the service worker
+     * @param source: firmware file or descriptor, closed when the job finished
+     * @param options: how to flash
+     * @param listener: progress message, called from worker thread, can be null
+     * @param timeoutMs: job is cancelled if not done within it, counted from now. 0 for no timeout
+     * @return result message of the job, cancellable
+     */
+    public FlashJobFuture submit(FirmwareSource source, FlashJob.Options options, FlashJob.Listener listener,
+                                 long timeoutMs) {
+        return submit(source, options, listener, timeoutMs, executor);
+    }
+
+    /**
+     * Run a flash job on given executor, jobs sharing a reset line must not run at the same time <br>
+     * Firmware starts loading right away on a separate thread, while the job waits in queue and resets the mcu
+     * @param executor: runs the job (ex: single thread executor of a test, or the service worker)
+     * @see #submit(FirmwareSource, FlashJob.Options, FlashJob.Listener, long)
+     */
+    public FlashJobFuture submit(FirmwareSource source, FlashJob.Options options, FlashJob.Listener listener,
+                                 long timeoutMs, Executor executor) {
+        FlashJob job = new FlashJob(this, source, options, listener);
+        job.prepare(prepareExecutor);
+        FlashJobFuture future = new FlashJobFuture(job);
+        if (timeoutMs > 0)
+            future.expireAfter(timeoutMs, scheduler);
+        executor.execute(future);
+        Log.d(TAG, "job queued, queue depth " + getQueueDepth());
+        return future;
+    }
+
+    /**
+     * @return number of jobs waiting, not counting the running one
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return true if private storage API was found, so lpc partition can be detected and unmounted
+     */
+    boolean canUnmount() {
+        return unmount != null && findVolumeByUuid != null && getId != null;
+    }
+
+    /**
+     * Create flashing backend from its configured name
+     * @param name: "java" for {@link ChannelFlashBackend}, "native-direct" for {@link NativeFlashBackend} with
+     *            direct I/O engine, anything else for {@link NativeFlashBackend}
+     * @return backend
+     */
+    static FlashBackend createBackend(String name) {
+        if ("java".equals(name))
+            return new ChannelFlashBackend();
+        return new NativeFlashBackend("native-direct".equals(name));
+    }
+}
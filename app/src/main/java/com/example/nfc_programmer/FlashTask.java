@@ -2,205 +2,105 @@ package com.example.nfc_programmer;
 
 import android.app.ProgressDialog;
 import android.content.Context;
-import android.content.IntentFilter;
-import android.hardware.usb.UsbManager;
-import android.os.AsyncTask;
-import android.os.storage.StorageManager;
+import android.content.DialogInterface;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-
-import static java.lang.Class.forName;
-
 /**
- * Thread that handle the process of flashing firmware into <b>lcp11u68</b>
- * The process divided into 4 part
- * - reset mcu into bootloader mode
- * - unmount partition of lcp11u68 which automount
- * - begin flashing process
- * - reset mcu into normal mode
+ * UI side of flashing firmware into <b>lcp11u68</b> <br>
+ * Queue a {@link FlashJob} into {@link FlashService}, show its progress in a ProgressDialog and its result in a toast.
+ * Everything here runs on the main thread: job progress goes into a {@link ProgressChannel} which is sampled
+ * at most {@link #FRAME_RATE} times per second, cancelling the dialog cancels the job. The dialog then stays up,
+ * not cancelable, until the job put the mcu back into normal mode.
  */
-public class FlashTask extends AsyncTask <String, String, String> {
+public class FlashTask implements Runnable {
     final static String TAG = "Flash Task";
-    final static String UUID = "0000-0000";
+    final static int FRAME_RATE = 15;
+    final static long FRAME_INTERVAL = 1000 / FRAME_RATE;
+    // whole job including queue wait, reset cycles and write
+    final static long TIMEOUT = 120000;
 
     ProgressDialog progressDialog;
     Context context;
-    private Class storageManagerClass = null, volumeInfoClass = null;
-    private Method unmount = null, findVolumeByUuid = null, getId = null;
-    private StorageManager mStorageManager;
-    private ResetUtil reset;
-
-    // Used to load the 'native-lib' library on application startup.
-    static {
-        System.loadLibrary("native-lib");
-    }
+    private final FlashService service;
+    private final FlashJob.Options options;
+    private final ProgressChannel channel = new ProgressChannel();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private FlashJobFuture future;
+    // job cancelled, waiting for it to reset the mcu
+    private boolean cancelling;
 
     /**
-     * Init reset Util + private API access parameter + ProgressDialog
      * @param context: UI context
+     * @param service: flashing service which run the job
+     * @param options: how to flash
      */
-    FlashTask(Context context){
+    FlashTask(Context context, FlashService service, FlashJob.Options options){
         this.context = context;
-
-        // Init private method which use to detect and unmount lpc partition
-        mStorageManager = context.getSystemService(StorageManager.class);
-        try {
-            storageManagerClass = forName("android.os.storage.StorageManager");
-            volumeInfoClass = forName("android.os.storage.VolumeInfo");
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            unmount = storageManagerClass.getMethod("unmount", String.class);
-            findVolumeByUuid = storageManagerClass.getDeclaredMethod("findVolumeByUuid", String.class);
-            getId = volumeInfoClass.getDeclaredMethod("getId");
-        } catch (NoSuchMethodException e) {
-            e.printStackTrace();
-        }
-        unmount.setAccessible(true);
-        findVolumeByUuid.setAccessible(true);
-        getId.setAccessible(true);
-
-        // setup broadcast controller
-        reset = new ResetUtil();
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
-        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
-        context.registerReceiver(reset.getUsbBroadcastReceiver(), filter);
+        this.service = service;
+        this.options = options;
     }
 
     /**
-     * Show ProgressDialog
+     * Show ProgressDialog, queue flash job and start sampling its progress. Call from main thread
+     * @param source: firmware file or descriptor
      */
-    @Override
-    protected void onPreExecute() {
-        progressDialog = ProgressDialog.show(context,
-                "Flashing",
-                "");
-
-        super.onPreExecute();
+    public void execute(FirmwareSource source) {
+        progressDialog = ProgressDialog.show(context, "Flashing", "", true, true,
+                new DialogInterface.OnCancelListener() {
+                    @Override
+                    public void onCancel(DialogInterface dialog) {
+                        cancel();
+                    }
+                });
+        future = service.submit(source, options, channel, TIMEOUT);
+        handler.post(this);
     }
 
     /**
-     * Update ProgressDialog message
-     * @param values: Message to show in Progress Dialog
+     * Cancel the job, result is shown once it finished its reset
      */
-    @Override
-    protected void onProgressUpdate(String... values) {
-        progressDialog.setMessage(values[0]);
+    public void cancel() {
+        if (future == null || !future.cancel(true))
+            return;
+        // cancelling dismissed the dialog, keep it while the job stops
+        showCancelling();
         progressDialog.show();
-
-        super.onProgressUpdate(values);
     }
 
-    /**
-     * Show result of flashing in toast
-     * @param s: message to show
-     */
-    @Override
-    protected void onPostExecute(String s) {
-        progressDialog.dismiss();
-        Toast.makeText(context, s, Toast.LENGTH_SHORT).show();
-        context.unregisterReceiver(reset.getUsbBroadcastReceiver());
-
-        super.onPostExecute(s);
+    private void showCancelling() {
+        cancelling = true;
+        progressDialog.setCancelable(false);
+        progressDialog.setMessage("Cancelling...");
     }
 
     /**
-     * Flashing MCU
-     * @param path: Path which firmware file located
-     * @return : Result message which will show in toast later
+     * One UI frame: show latest progress message, or the result once job finished
      */
     @Override
-    protected String doInBackground(String... path) {
-        int ret;
-
-        try {
-            // Make lcp mcu go into bootloader mode
-            try {
-                publishProgress("Entering program mode");
-                reset.enterNormalMode();
-                if (!reset.enterProgMode())
-                {
-                    Log.e(TAG, "Can't enter program mode, did lcp connected?");
-
-                    return ("can't go into prog mode");
-                }
-            } catch (InterruptedException ignored) {}
-
-            // Recognize lcp partition and unmount it
-            Object volumeInfo = null;
-            try {
-                // Wait for volume to mounteda
-//                    Thread.sleep(1000);
-                publishProgress("Waiting for device to mount");
-                do{
-                    volumeInfo = (Object) findVolumeByUuid.invoke(mStorageManager, UUID);
-                    Thread.sleep(500);
-                }while (volumeInfo == null);
-
-
-                String mVolumeId = null;
-                mVolumeId = (String) getId.invoke(volumeInfo);
-
-                publishProgress("unmount device with id " + mVolumeId);
-
-                Log.d(TAG, "volume id: " + mVolumeId);
-                unmount.invoke(mStorageManager, "public:8,0");
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            } catch (InvocationTargetException e) {
-                e.printStackTrace();
-                Log.e(TAG,"unmount not success. Error msg:" + e.getMessage() + ". Cause: " + e.getCause());
-                reset.enterNormalModeNonBlock();
-
-                return ("unmount error");
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                Log.e(TAG,"Error: coundn't found device with UUID: " + UUID + ". Error msg: " + e.getMessage());
-                Log.e(TAG,"Timeout Interrupted");
-                reset.enterNormalModeNonBlock();
-
-                return ("Couldn't found device, Timeout");
-            }
-
-            // Begin flashing process
-            publishProgress("Begin flashing");
-//            ret = program("/data/lpc11u_surisdk_v0_0_6.bin");
-            ret = program(path[0]);
-
-            // reset lpc
-            try {
-                publishProgress("Reseting mcu");
-                if(!reset.enterNormalMode()){
-                    Log.e(TAG, "Can't go into normal mode, may be firmware corrupted");
-                }
-            } catch (InterruptedException ignored) {}
-
-            if (ret == -1)
-                return ("flash error");
-            else
-                return ("flash finish");
-
-        } catch (IOException e){
-            e.printStackTrace();
-            Log.e(TAG, "Can't open reset driver file. Error msg: " + e.getMessage());
-        } finally {
-            progressDialog.dismiss();
-        }
-
-        return "Success";
+    public void run() {
+        // cancelled by timeout
+        if (future.isCancelled() && !cancelling)
+            showCancelling();
+        String message = channel.poll();
+        if (message != null)
+            progressDialog.setMessage(cancelling ? "Cancelling...\n" + message : message);
+        if (future.isFinished())
+            finish();
+        else
+            handler.postDelayed(this, FRAME_INTERVAL);
     }
 
     /**
-     * Function that handle low-level access to file, reading firmware file and writing into <b>lcp11u68</b>
-     * @param path: full path to firmware binary file which flashed into the mcu
-     * @return -1 if fail, 0 if success. (any error occur will be print in Log.i)
+     * Show result of flashing in toast
      */
-    public native int program(String path );
+    private void finish() {
+        progressDialog.dismiss();
+        Toast.makeText(context, future.getMessage(), Toast.LENGTH_SHORT).show();
+        Log.i(TAG, "queue depth " + service.getQueueDepth() + ", " + channel.getCoalesced() + "/"
+                + channel.getPosted() + " progress messages coalesced");
+        FlashMetrics.get().dump();
+    }
 }
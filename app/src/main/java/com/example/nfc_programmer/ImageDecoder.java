@@ -0,0 +1,350 @@
+package com.example.nfc_programmer;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decode firmware file as a stream of {@link SegmentSource.Segment}, without loading the whole image <br>
+ * Supported input: raw binary, Intel HEX, ELF32 (PT_LOAD segments), each one optionally compressed with gzip or LZ4 frame.
+ * Format and compression are detected from content.
+ */
+public class ImageDecoder {
+    final static int CHUNK_SIZE = 4096;
+
+    private static final int GZIP_MAGIC = 0x1f8b;
+    private static final int LZ4_MAGIC = 0x04224d18;   // 0x184D2204 little endian
+    private static final int ELF_MAGIC = 0x7f454c46;
+
+    /**
+     * @param source: firmware, only its first bytes are read
+     * @return true if firmware need decoding (not a plain binary), from its content like {@link #open}
+     * @throws IOException if source can't be read
+     */
+    public static boolean needsDecoding(FirmwareSource source) throws IOException {
+        byte[] head = source.peek(4);
+        int magic = 0;
+        for (int i = 0; i < 4; i++)
+            magic = (magic << 8) | (i < head.length ? head[i] & 0xff : 0);
+        return isCompressed(magic) || isElf(magic) || isHex(magic);
+    }
+
+    private static boolean isCompressed(int magic) {
+        return (magic >>> 16) == GZIP_MAGIC || magic == LZ4_MAGIC;
+    }
+
+    private static boolean isElf(int magic) {
+        return magic == ELF_MAGIC;
+    }
+
+    private static boolean isHex(int magic) {
+        return (magic >>> 24) == ':';
+    }
+
+    /**
+     * @param input: firmware file content, closed with the returned source
+     * @return segments of firmware
+     * @throws IOException if input can't be read
+     */
+    public static SegmentSource open(InputStream input) throws IOException {
+        input = new BufferedInputStream(input, CHUNK_SIZE);
+        int magic = peekInt(input);
+        if ((magic >>> 16) == GZIP_MAGIC)
+            input = new BufferedInputStream(new GZIPInputStream(input, CHUNK_SIZE), CHUNK_SIZE);
+        else if (magic == LZ4_MAGIC)
+            input = new BufferedInputStream(new Lz4FrameInputStream(input), CHUNK_SIZE);
+
+        magic = peekInt(input);
+        if (isElf(magic))
+            return new ElfSource(input);
+        if (isHex(magic))
+            return new HexSource(input);
+        return new RawSource(input);
+    }
+
+    private static int peekInt(InputStream input) throws IOException {
+        input.mark(4);
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = input.read();
+            value = (value << 8) | (b == -1 ? 0 : b);
+        }
+        input.reset();
+        return value;
+    }
+
+    private static int readFully(InputStream input, byte[] buffer, int offset, int length) throws IOException {
+        int done = 0;
+        while (done < length) {
+            int n = input.read(buffer, offset + done, length - done);
+            if (n == -1)
+                break;
+            done += n;
+        }
+        return done;
+    }
+
+    private static void skipFully(InputStream input, long count) throws IOException {
+        while (count > 0) {
+            long n = input.skip(count);
+            if (n <= 0) {
+                if (input.read() == -1)
+                    throw new EOFException("image ended while skipping");
+                n = 1;
+            }
+            count -= n;
+        }
+    }
+
+    /**
+     * Base of stream decoders, hold reusable segment and input
+     */
+    private static abstract class StreamSource implements SegmentSource {
+        final InputStream input;
+        final Segment segment = new Segment();
+
+        StreamSource(InputStream input) {
+            this.input = input;
+            segment.data = new byte[CHUNK_SIZE];
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    /**
+     * Plain binary, starting at flash address 0
+     */
+    private static class RawSource extends StreamSource {
+        private long address;
+
+        RawSource(InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public Segment next() throws IOException {
+            int len = readFully(input, segment.data, 0, CHUNK_SIZE);
+            if (len == 0)
+                return null;
+            segment.address = address;
+            segment.length = len;
+            address += len;
+            return segment;
+        }
+    }
+
+    /**
+     * Intel HEX, consecutive data records are merged into one segment up to {@link #CHUNK_SIZE}
+     */
+    private static class HexSource extends StreamSource {
+        private final byte[] record = new byte[255 + 5];
+        private long base;
+        private boolean end;
+        // decoded record not yet returned, because it did not fit in current segment
+        private int pendingLength = -1;
+        private long pendingAddress;
+
+        HexSource(InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public Segment next() throws IOException {
+            segment.length = 0;
+            while (true) {
+                if (pendingLength < 0 && !readRecord())
+                    break;
+                if (pendingLength < 0)
+                    continue;
+                if (segment.length > 0 && (pendingAddress != segment.address + segment.length
+                        || segment.length + pendingLength > CHUNK_SIZE))
+                    break;
+                if (segment.length == 0)
+                    segment.address = pendingAddress;
+                System.arraycopy(record, 4, segment.data, segment.length, pendingLength);
+                segment.length += pendingLength;
+                pendingLength = -1;
+            }
+            return segment.length > 0 ? segment : null;
+        }
+
+        /**
+         * Read one record, data record is left in pending
+         * @return false at end of file
+         */
+        private boolean readRecord() throws IOException {
+            if (end)
+                return false;
+            int c;
+            do {
+                c = input.read();
+                if (c == -1)
+                    throw new EOFException("hex file without end of file record");
+            } while (c != ':');
+
+            int count = readByte();
+            record[0] = (byte) count;
+            int sum = count;
+            for (int i = 1; i < count + 5; i++) {
+                int b = readByte();
+                record[i] = (byte) b;
+                sum += b;
+            }
+            if ((sum & 0xff) != 0)
+                throw new IOException("hex record checksum error");
+
+            int offset = ((record[1] & 0xff) << 8) | (record[2] & 0xff);
+            switch (record[3]) {
+                case 0x00:  // data
+                    pendingAddress = base + offset;
+                    pendingLength = count;
+                    break;
+                case 0x01:  // end of file
+                    end = true;
+                    return false;
+                case 0x02:  // extended segment address
+                    base = (((record[4] & 0xff) << 8) | (record[5] & 0xff)) << 4;
+                    break;
+                case 0x04:  // extended linear address
+                    base = (long) (((record[4] & 0xff) << 8) | (record[5] & 0xff)) << 16;
+                    break;
+                default:    // start address records, not needed for flashing
+                    break;
+            }
+            return true;
+        }
+
+        private int readByte() throws IOException {
+            return (hexDigit(input.read()) << 4) | hexDigit(input.read());
+        }
+
+        private static int hexDigit(int c) throws IOException {
+            int digit = Character.digit(c, 16);
+            if (c == -1 || digit < 0)
+                throw new IOException("invalid hex record");
+            return digit;
+        }
+    }
+
+    /**
+     * ELF32 little endian, PT_LOAD segments at their physical address <br>
+     * Segments are read in file order, so the file is streamed front to back once. Headers are kept when they are
+     * at the front, so a first segment which contains them (offset 0, as ld lays it out) is still streamed.
+     */
+    private static class ElfSource extends StreamSource {
+        private static final int PT_LOAD = 1;
+        // largest header prefix kept
+        private static final int MAX_HEAD = 64 * 1024;
+
+        private static class Load {
+            long offset, address, size;
+        }
+
+        private final List<Load> loads = new ArrayList<>();
+        // file from 0 to end of program headers, empty if they are too far in the file
+        private byte[] head = new byte[0];
+        private long position;
+        private int current;
+        private long offset, remaining, address;
+
+        ElfSource(InputStream input) throws IOException {
+            super(input);
+            byte[] header = new byte[52];
+            if (readFully(input, header, 0, 52) != 52)
+                throw new EOFException("truncated elf header");
+            position = 52;
+            if (header[4] != 1 || header[5] != 1)
+                throw new IOException("only 32-bit little endian elf is supported");
+            long phoff = u32(header, 28);
+            int phentsize = u16(header, 42), phnum = u16(header, 44);
+
+            long headEnd = phoff + (long) phentsize * phnum;
+            if (phoff >= position && headEnd <= MAX_HEAD) {
+                head = Arrays.copyOf(header, (int) headEnd);
+                if (readFully(input, head, 52, head.length - 52) != head.length - 52)
+                    throw new EOFException("truncated program header");
+                position = headEnd;
+            } else {
+                skipTo(phoff);
+            }
+            byte[] ph = new byte[phentsize];
+            for (int i = 0; i < phnum; i++) {
+                if (head.length > 0) {
+                    System.arraycopy(head, (int) phoff + i * phentsize, ph, 0, phentsize);
+                } else {
+                    if (readFully(input, ph, 0, phentsize) != phentsize)
+                        throw new EOFException("truncated program header");
+                    position += phentsize;
+                }
+                Load load = new Load();
+                load.offset = u32(ph, 4);
+                load.address = u32(ph, 12);     // p_paddr, load address in flash
+                load.size = u32(ph, 16);        // p_filesz, bss has no file data
+                if (u32(ph, 0) == PT_LOAD && load.size > 0)
+                    loads.add(load);
+            }
+            Collections.sort(loads, new Comparator<Load>() {
+                @Override
+                public int compare(Load a, Load b) {
+                    return Long.compare(a.offset, b.offset);
+                }
+            });
+            current = -1;
+        }
+
+        @Override
+        public Segment next() throws IOException {
+            while (remaining == 0) {
+                if (++current >= loads.size())
+                    return null;
+                Load load = loads.get(current);
+                if (load.offset >= head.length)
+                    skipTo(load.offset);
+                offset = load.offset;
+                remaining = load.size;
+                address = load.address;
+            }
+            int len = (int) Math.min(remaining, CHUNK_SIZE);
+            // bytes read with the headers come from head, the rest from input
+            int fromHead = offset < head.length ? (int) Math.min(len, head.length - offset) : 0;
+            System.arraycopy(head, (int) Math.min(offset, head.length), segment.data, 0, fromHead);
+            if (fromHead < len) {
+                skipTo(offset + fromHead);
+                if (readFully(input, segment.data, fromHead, len - fromHead) != len - fromHead)
+                    throw new EOFException("truncated elf segment");
+                position += len - fromHead;
+            }
+            segment.address = address;
+            segment.length = len;
+            offset += len;
+            address += len;
+            remaining -= len;
+            return segment;
+        }
+
+        private void skipTo(long offset) throws IOException {
+            if (offset < position)
+                throw new IOException("elf layout can't be streamed, offset " + offset + " is behind " + position);
+            skipFully(input, offset - position);
+            position = offset;
+        }
+
+        private static long u32(byte[] b, int i) {
+            return (b[i] & 0xffL) | (b[i + 1] & 0xffL) << 8 | (b[i + 2] & 0xffL) << 16 | (b[i + 3] & 0xffL) << 24;
+        }
+
+        private static int u16(byte[] b, int i) {
+            return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.nfc_programmer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size log-linear latency histogram, microsecond resolution <br>
+ * Values below 16 us have their own bucket, above that each power of two is split in 8 buckets (~12% error).
+ * Recording only touch atomics, no allocation and no lock, safe from any thread.
+ */
+public class LatencyHistogram {
+    private static final int LINEAR = 16;
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = LINEAR + (64 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(), sumNanos = new AtomicLong(), maxNanos = new AtomicLong(),
+            bytes = new AtomicLong();
+
+    /**
+     * @param nanos: duration
+     * @param byteCount: bytes processed during duration, 0 if not relevant
+     */
+    public void record(long nanos, long byteCount) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(bucketOf(nanos / 1000));
+        count.incrementAndGet();
+        sumNanos.addAndGet(nanos);
+        bytes.addAndGet(byteCount);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) ;
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < LINEAR)
+            return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return lowest value (us) which fall in bucket
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < LINEAR)
+            return bucket;
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        return (1L << exponent) + ((long) sub << (exponent - SUB_BITS));
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxMicros() {
+        return maxNanos.get() / 1000;
+    }
+
+    public long getMeanMicros() {
+        long n = count.get();
+        return n == 0 ? 0 : sumNanos.get() / n / 1000;
+    }
+
+    /**
+     * @return bytes per second over all recorded durations, 0 if no byte recorded
+     */
+    public long getThroughput() {
+        long nanos = sumNanos.get();
+        return nanos == 0 ? 0 : (long) (bytes.get() * 1e9 / nanos);
+    }
+
+    /**
+     * @param percentile: 0 to 100
+     * @return value (us) at percentile, midpoint of bucket
+     */
+    public long getPercentileMicros(double percentile) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                long low = lowerBound(i), high = i + 1 < BUCKETS ? lowerBound(i + 1) : low;
+                return Math.min((low + high) / 2, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+}
@@ -0,0 +1,241 @@
+package com.example.nfc_programmer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decoder for LZ4 frame format (lz4 command line output) <br>
+ * Only what firmware files need: no dictionary, checksums are skipped, not verified.
+ * Linked blocks keep last 64 KB window. Buffers are sized for firmware, not for the block size the frame declares
+ * (4 MB by default with the lz4 command line): a block decoding to more than {@link #MAX_BLOCK} is rejected.
+ */
+public class Lz4FrameInputStream extends InputStream {
+    private static final int MAGIC = 0x184D2204;
+    private static final int SKIPPABLE_MASK = 0xFFFFFFF0;
+    private static final int SKIPPABLE_MAGIC = 0x184D2A50;
+    private static final int WINDOW = 64 * 1024;
+    // largest decoded block: image is at most 256 KB, an Intel HEX of it about 3 times that
+    static final int MAX_BLOCK = 1024 * 1024;
+
+    private final InputStream input;
+    private byte[] compressed = new byte[0];
+    private int blockLimit;
+    // decoded data, first part is window of previous blocks
+    private byte[] buffer;
+    private int position, limit;
+    private boolean independent, blockChecksum, contentChecksum;
+    private boolean inFrame, eof;
+
+    /**
+     * @param input: compressed stream, closed with this stream
+     */
+    public Lz4FrameInputStream(InputStream input) {
+        this.input = input;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !fill())
+            return -1;
+        return buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (position == limit && !fill())
+            return -1;
+        int n = Math.min(len, limit - position);
+        System.arraycopy(buffer, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    /**
+     * Decode next block
+     * @return false at end of stream
+     */
+    private boolean fill() throws IOException {
+        while (!eof) {
+            if (!inFrame) {
+                readFrameHeader();
+                continue;
+            }
+            int size = readInt(true);
+            if (size == 0) {
+                if (contentChecksum)
+                    readInt(true);
+                inFrame = false;
+                continue;
+            }
+            boolean stored = (size & 0x80000000) != 0;
+            size &= 0x7FFFFFFF;
+            if (size > blockLimit)
+                throw new IOException("lz4 block of " + size + " bytes is larger than " + blockLimit);
+            if (compressed.length < size)
+                compressed = new byte[size];
+            readFully(compressed, size);
+            if (blockChecksum)
+                readInt(true);
+
+            int start = keepWindow();
+            if (stored) {
+                System.arraycopy(compressed, 0, buffer, start, size);
+                limit = start + size;
+            } else {
+                limit = decodeBlock(compressed, size, buffer, start);
+            }
+            position = start;
+            if (limit > position)
+                return true;
+        }
+        return false;
+    }
+
+    private void readFrameHeader() throws IOException {
+        int magic = readInt(false);
+        if (eof)
+            return;
+        if ((magic & SKIPPABLE_MASK) == SKIPPABLE_MAGIC) {
+            long skip = readInt(true) & 0xFFFFFFFFL;
+            while (skip > 0) {
+                long n = input.skip(skip);
+                if (n <= 0)
+                    throw new EOFException("truncated lz4 skippable frame");
+                skip -= n;
+            }
+            return;
+        }
+        if (magic != MAGIC)
+            throw new IOException("not a lz4 frame");
+
+        int flg = readByte();
+        int bd = readByte();
+        if ((flg >> 6) != 1)
+            throw new IOException("unsupported lz4 frame version");
+        if ((flg & 0x01) != 0)
+            throw new IOException("lz4 dictionary is not supported");
+        independent = (flg & 0x20) != 0;
+        blockChecksum = (flg & 0x10) != 0;
+        contentChecksum = (flg & 0x04) != 0;
+        if ((flg & 0x08) != 0) {
+            readInt(true);
+            readInt(true);
+        }
+        readByte();     // header checksum
+
+        int maxBlock = 1 << (8 + 2 * ((bd >> 4) & 0x7));
+        if (maxBlock < 64 * 1024)
+            throw new IOException("invalid lz4 block size");
+        blockLimit = Math.min(maxBlock, MAX_BLOCK);
+        if (buffer == null || buffer.length < WINDOW + blockLimit)
+            buffer = new byte[WINDOW + blockLimit];
+        position = limit = 0;
+        inFrame = true;
+    }
+
+    /**
+     * Move last {@link #WINDOW} bytes of decoded data to front of buffer for linked blocks
+     * @return offset where next block is decoded
+     */
+    private int keepWindow() {
+        if (independent)
+            return 0;
+        int keep = Math.min(limit, WINDOW);
+        System.arraycopy(buffer, limit - keep, buffer, 0, keep);
+        return keep;
+    }
+
+    /**
+     * Decode LZ4 block format
+     * @param src: compressed block
+     * @param srcLen: compressed block size
+     * @param dst: output buffer, data before dstStart can be referenced by matches
+     * @param dstStart: output position
+     * @return output end position
+     */
+    static int decodeBlock(byte[] src, int srcLen, byte[] dst, int dstStart) throws IOException {
+        int s = 0, d = dstStart;
+        try {
+            while (s < srcLen) {
+                int token = src[s++] & 0xff;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[s++] & 0xff;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, s, dst, d, literals);
+                s += literals;
+                d += literals;
+                if (s >= srcLen)
+                    break;      // last sequence has only literals
+
+                int offset = (src[s] & 0xff) | (src[s + 1] & 0xff) << 8;
+                s += 2;
+                if (offset == 0 || offset > d)
+                    throw new IOException("invalid lz4 match offset");
+                int match = (token & 0x0f) + 4;
+                if ((token & 0x0f) == 15) {
+                    int b;
+                    do {
+                        b = src[s++] & 0xff;
+                        match += b;
+                    } while (b == 255);
+                }
+                // matches can overlap their own output, so copy byte by byte
+                int from = d - offset;
+                for (int i = 0; i < match; i++)
+                    dst[d++] = dst[from + i];
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("corrupted lz4 block, or it decodes to more than " + (dst.length - dstStart) + " bytes");
+        }
+        return d;
+    }
+
+    private int readByte() throws IOException {
+        int b = input.read();
+        if (b == -1)
+            throw new EOFException("truncated lz4 frame");
+        return b;
+    }
+
+    /**
+     * @param required: false to accept end of stream before first byte
+     */
+    private int readInt(boolean required) throws IOException {
+        int b0 = input.read();
+        if (b0 == -1 && !required) {
+            eof = true;
+            return 0;
+        }
+        if (b0 == -1)
+            throw new EOFException("truncated lz4 frame");
+        return b0 | readByte() << 8 | readByte() << 16 | readByte() << 24;
+    }
+
+    private void readFully(byte[] b, int len) throws IOException {
+        int done = 0;
+        while (done < len) {
+            int n = input.read(b, done, len - done);
+            if (n == -1)
+                throw new EOFException("truncated lz4 block");
+            done += n;
+        }
+    }
+}
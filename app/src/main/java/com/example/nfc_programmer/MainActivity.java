@@ -1,13 +1,26 @@
 package com.example.nfc_programmer;
 
 import android.annotation.SuppressLint;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.FileNotFoundException;
 
 /**
  * Example program show how to flash <b>lcp11u68</b> with JNI function and {@link ResetUtil}
@@ -16,17 +29,20 @@ public class MainActivity extends AppCompatActivity {
 
     public Button flash_btn, choose_btn;
     public TextView file_text;
+    public CheckBox delta_check, erased_check, all_check, verify_check;
     public FlashTask flash;
+    private FlashService flashService;
 
     private String FWPath = "/storage/emulated/0/lpc11u_surisdk.bin";
+    // picked firmware, opened as file descriptor at flash time so no filesystem path is needed
+    private Uri FWUri;
 
     final static String TAG = "nfc_programmer_main";
     final static int FILE_REQUEST = 7;
 
     /**
      * Init the program <br>
-     * - get hidden api for unmount partition <br>
-     * - register broadcast receiver for {@link ResetUtil} <br>
+     * - bind {@link FlashService} which own hidden api and broadcast receiver for {@link ResetUtil} <br>
      * - Create {@link FlashTask} and implement button click listener <br>
      *
      * @param savedInstanceState
@@ -40,17 +56,38 @@ public class MainActivity extends AppCompatActivity {
         flash_btn = findViewById(R.id.flash_btn);
         choose_btn = findViewById(R.id.choose_btn);
         file_text = findViewById(R.id.file_text);
+        delta_check = findViewById(R.id.delta_check);
+        erased_check = findViewById(R.id.erased_check);
+        all_check = findViewById(R.id.all_check);
+        verify_check = findViewById(R.id.verify_check);
         file_text.setText(FWPath);
 
+        bindService(new Intent(this, FlashService.class), serviceConnection, Context.BIND_AUTO_CREATE);
+
         /*
-          Create 2 thread, one for flashing and other for kill flashing thread (timeout)
-          Flashing thread is using flashTask class
+          Queue flash job in the service, flashTask show its progress and cancel it on timeout
          */
         flash_btn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                flash = new FlashTask(MainActivity.this);
-                flash.execute(FWPath);
+                if (flashService == null)
+                    return;
+                FlashJob.Options options = new FlashJob.Options();
+                options.delta = delta_check.isChecked();
+                options.erased = erased_check.isChecked();
+                options.allDevices = all_check.isChecked();
+                options.verify = verify_check.isChecked();
+                FirmwareSource source;
+                try {
+                    source = openFirmware();
+                } catch (FileNotFoundException e) {
+                    Log.e(TAG, "Can't open firmware " + FWUri + ". Error msg: " + e.getMessage());
+                    Toast.makeText(MainActivity.this, "firmware file error", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                flash = new FlashTask(MainActivity.this, flashService, options);
+                // several clicks are queued in the service
+                flash.execute(source);
             }
         });
 
@@ -65,14 +102,57 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    @Override
+    protected void onDestroy() {
+        unbindService(serviceConnection);
+        super.onDestroy();
+    }
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            flashService = ((FlashService.LocalBinder) service).getService();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            flashService = null;
+        }
+    };
+
+    /**
+     * @return picked firmware as file descriptor, or default firmware path if nothing picked
+     * @throws FileNotFoundException if content provider can't open the picked file
+     */
+    private FirmwareSource openFirmware() throws FileNotFoundException {
+        if (FWUri == null)
+            return FirmwareSource.fromPath(FWPath);
+        ParcelFileDescriptor descriptor = getContentResolver().openFileDescriptor(FWUri, "r");
+        if (descriptor == null)
+            throw new FileNotFoundException("provider returned no descriptor");
+        return FirmwareSource.fromDescriptor(descriptor, FWPath);
+    }
+
+    /**
+     * @return file name of picked uri, only used to show it and to pick decoder by extension
+     */
+    private String getDisplayName(Uri uri) {
+        try (Cursor cursor = getContentResolver().query(uri, new String[]{OpenableColumns.DISPLAY_NAME},
+                null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0))
+                return cursor.getString(0);
+        }
+        return uri.getLastPathSegment();
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
         switch (requestCode) {
             case FILE_REQUEST:
                 if (resultCode == RESULT_OK) {
-                    String path = GetPath.getPath(this, data.getData());
-                    file_text.setText(path);
-                    FWPath = path;
+                    FWUri = data.getData();
+                    FWPath = getDisplayName(FWUri);
+                    file_text.setText(FWPath);
                 }
         }
         super.onActivityResult(requestCode, resultCode, data);
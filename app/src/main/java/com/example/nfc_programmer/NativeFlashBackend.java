@@ -0,0 +1,124 @@
+package com.example.nfc_programmer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link FlashBackend} using JNI flashing engine in native-lib <br>
+ * With direct I/O, in-memory images are written block aligned with O_DIRECT and several requests in flight
+ * (Linux AIO), falling back to plain writes where the device refuses either. Delta writes always use plain I/O.
+ */
+public class NativeFlashBackend implements FlashBackend {
+
+    // Used to load the 'native-lib' library on first use of the backend.
+    static {
+        System.loadLibrary("native-lib");
+    }
+
+    private final boolean directIo;
+
+    public NativeFlashBackend() {
+        this(false);
+    }
+
+    /**
+     * @param directIo: use direct I/O engine for in-memory images
+     */
+    public NativeFlashBackend(boolean directIo) {
+        this.directIo = directIo;
+    }
+
+    @Override
+    public long flash(String path, String devPath, boolean delta, FlashProgressListener listener) {
+        return programDevice(path, devPath, delta, listener);
+    }
+
+    @Override
+    public long flash(ByteBuffer image, String devPath, boolean delta, FlashProgressListener listener) {
+        ByteBuffer data = direct(image);
+        if (directIo && !delta)
+            return programDirect(data, data.remaining(), null, devPath, listener);
+        return programImage(data, data.remaining(), devPath, delta, listener);
+    }
+
+    @Override
+    public long flash(ByteBuffer image, ExtentIndex extents, String devPath, FlashProgressListener listener) {
+        ByteBuffer data = direct(image);
+        if (directIo)
+            return programDirect(data, data.remaining(), extents.toArray(), devPath, listener);
+        return programExtents(data, data.remaining(), extents.toArray(), devPath, listener);
+    }
+
+    private static ByteBuffer direct(ByteBuffer image) {
+        ByteBuffer data = image.slice();
+        if (!data.isDirect()) {
+            data = ByteBuffer.allocateDirect(image.remaining());
+            data.put(image.duplicate()).flip();
+        }
+        return data;
+    }
+
+    @Override
+    public String[] findDevices() {
+        return listDevices();
+    }
+
+    /**
+     * Function that handle low-level access to file, reading firmware file and writing into <b>lcp11u68</b>
+     * @param path: full path to firmware binary file which flashed into the mcu
+     * @param devPath: device file to write (ex: /dev/block/sda), null to search in /dev/block
+     * @param delta: only write sectors which changed
+     * @param listener: progress of this device, can be null
+     * @return number of bytes skipped (always 0 if not delta), -1 if fail
+     */
+    static native long programDevice(String path, String devPath, boolean delta, FlashProgressListener listener);
+
+    /**
+     * Flash firmware which is already in memory, no file access
+     * @param image: direct buffer holding the firmware from position 0
+     * @param size: firmware size
+     * @param devPath: device file to write (ex: /dev/block/sda), null to search in /dev/block
+     * @param delta: only write sectors which changed
+     * @param listener: progress of this device, can be null
+     * @return number of bytes skipped (always 0 if not delta), -1 if fail
+     */
+    static native long programImage(ByteBuffer image, int size, String devPath, boolean delta, FlashProgressListener listener);
+
+    /**
+     * Flash only given extents of firmware in memory, target must be erased
+     * @param image: direct buffer holding the firmware from position 0
+     * @param size: firmware size
+     * @param extents: start, end pairs in image, see {@link ExtentIndex#toArray()}
+     * @param devPath: device file to write (ex: /dev/block/sda), null to search in /dev/block
+     * @param listener: progress of this device, can be null
+     * @return number of erased bytes not written, -1 if fail
+     */
+    static native long programExtents(ByteBuffer image, int size, int[] extents, String devPath, FlashProgressListener listener);
+
+    /**
+     * Flash firmware in memory with direct I/O engine: page aligned buffers, O_DIRECT block aligned writes,
+     * several requests in flight
+     * @param image: direct buffer holding the firmware from position 0
+     * @param size: firmware size
+     * @param extents: start, end pairs in image to write, see {@link ExtentIndex#toArray()}. null for whole image
+     * @param devPath: device file to write (ex: /dev/block/sda), null to search in /dev/block
+     * @param listener: progress of this device, can be null
+     * @return number of bytes not written (outside extents), -1 if fail
+     */
+    static native long programDirect(ByteBuffer image, int size, int[] extents, String devPath, FlashProgressListener listener);
+
+    /**
+     * Read a range of device without page cache (O_DIRECT, or cached pages dropped first), so data comes
+     * from the device. Sync device before reading what was just written
+     * @param devPath: device file (ex: /dev/block/sda)
+     * @param offset: device offset
+     * @param buffer: direct buffer receiving data from position 0, position and limit are not changed
+     * @param len: bytes to read
+     * @return bytes read, less than len at end of device, -1 if fail
+     */
+    static native int readUncached(String devPath, long offset, ByteBuffer buffer, int len);
+
+    /**
+     * @return all device files in /dev/block (ex: /dev/block/sda, /dev/block/sdb)
+     */
+    private static native String[] listDevices();
+}
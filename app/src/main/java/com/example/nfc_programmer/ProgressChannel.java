@@ -0,0 +1,47 @@
+package com.example.nfc_programmer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free single slot between a flash job and the UI <br>
+ * Job threads overwrite the latest message, the UI takes it when drawing its next frame.
+ * Messages posted in between are coalesced, so byte level progress never queues work on the main thread.
+ */
+public class ProgressChannel implements FlashJob.Listener {
+    private final AtomicReference<String> latest = new AtomicReference<>();
+    private final AtomicLong posted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Called from any job thread, never blocks
+     * @param message: progress message, replace the one not taken yet
+     */
+    @Override
+    public void onJobProgress(String message) {
+        posted.incrementAndGet();
+        if (latest.getAndSet(message) != null)
+            coalesced.incrementAndGet();
+    }
+
+    /**
+     * @return latest message since previous poll, null if nothing new
+     */
+    public String poll() {
+        return latest.getAndSet(null);
+    }
+
+    /**
+     * @return number of messages posted
+     */
+    public long getPosted() {
+        return posted.get();
+    }
+
+    /**
+     * @return number of messages replaced before the UI took them
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+}
@@ -0,0 +1,220 @@
+package com.example.nfc_programmer;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reset and mount wait times learned from the latencies seen on each board <br>
+ * For each kind of wait (usb attach of a VID:PID after a mode change, bootloader volume mount) a profile keeps the
+ * last {@link #WINDOW} latencies of the board type, and one more profile per board serial.
+ * A wait gets a deadline at p99 * {@link #MARGIN} of the board profile, or of the type profile until the board has
+ * {@link #MIN_SAMPLES} of its own, then a grace period for outliers: a late device is waited for and learned,
+ * so a slow board widens its own deadline instead of failing the cycle. Consecutive timeouts multiply the deadline
+ * by {@link #BACKOFF} until the device shows up again. Unknown waits use the caller defaults. <br>
+ * Profiles survive app restart in a text file, one per line: <i>key consecutive-timeouts latency-ms...</i>
+ */
+public class ResetTiming {
+    final static String TAG = "Reset Timing";
+    final static String VOLUME = "volume";
+    final static int WINDOW = 64;
+    final static int MIN_SAMPLES = 8;
+    final static double MARGIN = 1.5;
+    final static long SLACK = 50;
+    final static int BACKOFF = 2;
+    final static long MIN_DEADLINE = 100;
+    final static long MIN_POLL = 20;
+    // one profile per board serial, least recently used ones dropped
+    final static int MAX_PROFILES = 256;
+
+    /**
+     * How long to wait for one event
+     */
+    public static class Budget {
+        // expected latency bound, a device later than it is an outlier
+        public final long deadline;
+        // extra wait after deadline before giving up
+        public final long grace;
+        // recheck interval of waits which can miss events
+        public final long pollInterval;
+
+        Budget(long deadline, long grace, long pollInterval) {
+            this.deadline = deadline;
+            this.grace = grace;
+            this.pollInterval = pollInterval;
+        }
+
+        @Override
+        public String toString() {
+            return "deadline " + deadline + " ms + " + grace + " ms, poll " + pollInterval + " ms";
+        }
+    }
+
+    private static class Profile {
+        final int[] samples = new int[WINDOW];
+        int count, next, timeouts;
+
+        void add(long ms) {
+            samples[next] = (int) Math.min(Math.max(ms, 0), Integer.MAX_VALUE);
+            next = (next + 1) % WINDOW;
+            count = Math.min(count + 1, WINDOW);
+        }
+
+        long percentile(double percentile) {
+            int[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int rank = (int) Math.max(1, Math.ceil(count * percentile / 100));
+            return sorted[rank - 1];
+        }
+    }
+
+    private final File file;
+    private final Map<String, Profile> profiles = new LinkedHashMap<String, Profile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Profile> eldest) {
+            return size() > MAX_PROFILES;
+        }
+    };
+    private boolean dirty;
+
+    /**
+     * @param file: saved profiles, loaded now if it exists. null to keep them in memory only
+     */
+    ResetTiming(File file) {
+        this.file = file;
+        if (file != null && file.isFile())
+            load();
+    }
+
+    /**
+     * @return type key of a usb attach wait
+     */
+    static String usb(int vendorId, int productId) {
+        return String.format("%04x:%04x", vendorId, productId);
+    }
+
+    private static String key(String type, String serial) {
+        return serial == null ? type : type + "/" + serial.replaceAll("\\s", "_");
+    }
+
+    /**
+     * @param type: kind of wait, {@link #usb(int, int)} or {@link #VOLUME}
+     * @param serial: usb serial of the board, null if unknown
+     * @param defaultMs: deadline while nothing is learned
+     * @param maxMs: upper bound of deadline + grace
+     * @param defaultPoll: poll interval while nothing is learned, also its upper bound
+     * @return wait budget
+     */
+    public synchronized Budget budget(String type, String serial, long defaultMs, long maxMs, long defaultPoll) {
+        Profile typeProfile = profiles.get(type);
+        Profile boardProfile = serial == null ? null : profiles.get(key(type, serial));
+        Profile profile = boardProfile != null && boardProfile.count >= MIN_SAMPLES ? boardProfile : typeProfile;
+
+        long deadline = defaultMs, poll = defaultPoll;
+        if (profile != null && profile.count >= MIN_SAMPLES) {
+            deadline = (long) (profile.percentile(99) * MARGIN) + SLACK;
+            poll = profile.percentile(50) / 4;
+        }
+        int timeouts = Math.max(typeProfile == null ? 0 : typeProfile.timeouts,
+                boardProfile == null ? 0 : boardProfile.timeouts);
+        for (int i = 0; i < timeouts && deadline < maxMs; i++)
+            deadline *= BACKOFF;
+        deadline = Math.min(Math.max(deadline, MIN_DEADLINE), maxMs);
+        long grace = Math.max(0, Math.min(deadline * (BACKOFF - 1), maxMs - deadline));
+        return new Budget(deadline, grace, Math.min(Math.max(poll, MIN_POLL), defaultPoll));
+    }
+
+    /**
+     * Learn a latency, clear timeouts of type and board
+     * @param ms: time from trigger (ex: mode write) until event
+     */
+    public synchronized void record(String type, String serial, long ms) {
+        for (Profile profile : profilesOf(type, serial)) {
+            profile.add(ms);
+            profile.timeouts = 0;
+        }
+        dirty = true;
+    }
+
+    /**
+     * Event didn't come, even after grace: back off next deadlines of type and board
+     */
+    public synchronized void timeout(String type, String serial) {
+        for (Profile profile : profilesOf(type, serial))
+            profile.timeouts++;
+        dirty = true;
+    }
+
+    private Profile[] profilesOf(String type, String serial) {
+        return serial == null ? new Profile[]{profile(type)} : new Profile[]{profile(type), profile(key(type, serial))};
+    }
+
+    private Profile profile(String key) {
+        Profile profile = profiles.get(key);
+        if (profile == null) {
+            profile = new Profile();
+            profiles.put(key, profile);
+        }
+        return profile;
+    }
+
+    private void load() {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] words = line.trim().split("\\s+");
+                if (words.length < 2)
+                    continue;
+                try {
+                    Profile profile = new Profile();
+                    profile.timeouts = Integer.parseInt(words[1]);
+                    for (int i = 2; i < words.length; i++)
+                        profile.add(Long.parseLong(words[i]));
+                    profiles.put(words[0], profile);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "skipping bad profile " + words[0]);
+                }
+            }
+            Log.i(TAG, profiles.size() + " profiles loaded");
+        } catch (IOException e) {
+            Log.w(TAG, "Can't load " + file + ", starting over. Error msg: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Save profiles if anything was learned since last save, replacing the file at once
+     */
+    public synchronized void save() {
+        if (file == null || !dirty)
+            return;
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new FileWriter(tmp)) {
+            StringBuilder line = new StringBuilder();
+            for (Map.Entry<String, Profile> entry : profiles.entrySet()) {
+                Profile profile = entry.getValue();
+                line.setLength(0);
+                line.append(entry.getKey()).append(' ').append(profile.timeouts);
+                // oldest first, so they are added back in the same order
+                int first = profile.count < WINDOW ? 0 : profile.next;
+                for (int i = 0; i < profile.count; i++)
+                    line.append(' ').append(profile.samples[(first + i) % WINDOW]);
+                writer.write(line.append('\n').toString());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't save " + file + ". Error msg: " + e.getMessage());
+            return;
+        }
+        if (!tmp.renameTo(file))
+            Log.w(TAG, "Can't rename " + tmp);
+        else
+            dirty = false;
+    }
+}
@@ -10,94 +10,250 @@ import android.util.Log;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * ResetUtil class that using <b>gpio-boot-reset</b> to drive <b>lcp11u68</b> into boot mode or normal mode <br>
- * Verify mcu mode using a usb attach dettach broadcast receiver with <i>wait</i> <i>notify</i> mechanic <br>
+ * Verify mcu mode using a usb attach broadcast receiver completing a {@link UsbEventLatch} <br>
+ * How long to wait for it is learned per board by {@link ResetTiming} if set, else a fixed mode timeout <br>
  * normal mode: mcu in running mode <br>
  * boot mode: mcu in state that can be program <br>
  */
 public class ResetUtil {
     private static final String TAG = "ResetUtil: ";
     private static final String ResetFilePath = "/sys/class/gpio-boot-reset/nfc/mode";
+    final static int VID_boot = 0x1fc9;
+    final static int PID_boot = 0x0017;
+    final static int VID = 0x23eb;
+    final static int PID = 0x0004;
+    final static long DEFAULT_MODE_TIMEOUT = 1000;
+    // deadline + grace bound of adaptive timing
+    final static long MAX_MODE_TIMEOUT = 5000;
 
-    private static File file;
-    private final Object bootToken;
-    private final Object resetToken;
-    private boolean resetFlag = false, bootFlag = false;
+    private final File file;
+    // latches waiting for an attach event, by VID:PID
+    private final ConcurrentHashMap<Integer, UsbEventLatch> armed = new ConcurrentHashMap<>();
+    // usb serial of last device attached, by VID:PID
+    private final ConcurrentHashMap<Integer, String> serials = new ConcurrentHashMap<>();
+    private volatile long modeTimeout = DEFAULT_MODE_TIMEOUT;
+    private volatile ResetTiming timing;
 
     /**
-     * Init driver file path and token object for verify mcu mode
+     * Init driver file path
      */
     ResetUtil() {
-        file = new File(ResetFilePath);
-        bootToken = new Object();
-        resetToken = new Object();
+        this(new File(ResetFilePath));
     }
 
     /**
-     * Drive mcu into boot mode without verify (<i>wait</i> mechanic)
+     * @param modeFile: <b>gpio-boot-reset</b> mode file, or a stand-in for tests
+     */
+    ResetUtil(File modeFile) {
+        file = modeFile;
+    }
+
+    /**
+     * @param timeoutMs: how long {@link #enterProgMode()} and {@link #enterNormalMode()} wait for usb event,
+     *                 when no {@link ResetTiming} is set
+     */
+    public void setModeTimeout(long timeoutMs) {
+        modeTimeout = timeoutMs;
+    }
+
+    public long getModeTimeout() {
+        return modeTimeout;
+    }
+
+    /**
+     * @param timing: learn usb attach latencies and wait according to them, null for fixed mode timeout
+     */
+    public void setTiming(ResetTiming timing) {
+        this.timing = timing;
+    }
+
+    /**
+     * @return usb serial of the last device attached with VID:PID, null if none or not readable
+     */
+    public String getSerial(int vendorId, int productId) {
+        return serials.get(UsbEventLatch.key(vendorId, productId));
+    }
+
+    /**
+     * Drive mcu into boot mode without verify
      *
      * @throws IOException
      */
     public void enterProgModeNonBlock() throws IOException {
-        FileOutputStream stream = new FileOutputStream(file);
-        stream.write("prog".getBytes());
-        stream.close();
+        writeMode("prog");
     }
 
     /**
-     * Drive mcu into normal mode without verify (<i>wait</i> mechanic)
+     * Drive mcu into normal mode without verify
      *
      * @throws IOException
      */
     public void enterNormalModeNonBlock() throws IOException {
+        writeMode("normal");
+    }
+
+    private void writeMode(String mode) throws IOException {
+        long start = FlashMetrics.now();
         FileOutputStream stream = new FileOutputStream(file);
-        stream.write("normal".getBytes());
-        stream.close();
+        try {
+            stream.write(mode.getBytes());
+        } finally {
+            stream.close();
+        }
+        FlashMetrics.get().record(FlashMetrics.Phase.RESET_MODE_WRITE, start);
+    }
+
+    /**
+     * Drive mcu into boot mode without blocking
+     *
+     * @return latch completed when boot mode usb device attached, armed before the mode is written
+     * @throws IOException if mode file can't be written
+     */
+    public UsbEventLatch enterProgModeAsync() throws IOException {
+        return changeMode("prog", VID_boot, PID_boot);
+    }
+
+    /**
+     * Drive mcu into normal mode without blocking
+     *
+     * @return latch completed when normal mode usb device attached, armed before the mode is written
+     * @throws IOException if mode file can't be written
+     */
+    public UsbEventLatch enterNormalModeAsync() throws IOException {
+        return changeMode("normal", VID, PID);
     }
 
     /**
-     * Drive mcu into boot mode with verify (<i>wait</i> mechanic) from broadcast receiver
+     * Drive mcu into boot mode with verify from broadcast receiver
      *
-     * @return <b>true</b> if reset into bootmode success, <b>false</b> if <i>wait()</i> timeout.
+     * @return <b>true</b> if reset into bootmode success, <b>false</b> if usb event not seen in mode timeout.
      * @throws IOException
      * @throws InterruptedException
      */
     public boolean enterProgMode() throws IOException, InterruptedException {
-        bootFlag = false;
-        enterProgModeNonBlock();
-        synchronized (bootToken) {
-            bootToken.wait(1000);
-        }
-        if (bootFlag) {
-            Log.i(TAG, "enter programming mode");
-            bootFlag = false;
-            return true;
-        } else
+        if (!await(enterProgModeAsync()))
             return false;
+        Log.i(TAG, "enter programming mode");
+        return true;
     }
 
     /**
-     * Drive mcu into normal mode with verify (<i>wait</i> mechanic) from broadcast receiver
+     * Drive mcu into normal mode with verify from broadcast receiver
      *
-     * @return <b>true</b> if reset into bootmode success, <b>false</b> if <i>wait()</i> timeout.
+     * @return <b>true</b> if reset into normal mode success, <b>false</b> if usb event not seen in mode timeout.
      * @throws IOException
      * @throws InterruptedException
      */
     public boolean enterNormalMode() throws IOException, InterruptedException {
-        resetFlag = false;
-        enterNormalModeNonBlock();
-        synchronized (resetToken) {
-            resetToken.wait(1000);
-        }
-        if (resetFlag) {
-            Log.i(TAG, "enter normal mode");
-            resetFlag = false;
-            return true;
-        } else
+        if (!await(enterNormalModeAsync()))
             return false;
+        Log.i(TAG, "enter normal mode");
+        return true;
+    }
+
+    private boolean await(UsbEventLatch latch) throws InterruptedException {
+        ResetTiming timing = this.timing;
+        try {
+            if (timing == null) {
+                if (latch.await(modeTimeout))
+                    return true;
+                Log.w(TAG, "no usb event for " + latch + " after " + modeTimeout + " ms");
+                return false;
+            }
+
+            // board on this reset line, as of the last time it attached
+            String type = ResetTiming.usb(latch.vendorId, latch.productId);
+            String serial = getSerial(latch.vendorId, latch.productId);
+            ResetTiming.Budget budget = timing.budget(type, serial, DEFAULT_MODE_TIMEOUT, MAX_MODE_TIMEOUT,
+                    DEFAULT_MODE_TIMEOUT);
+            if (latch.await(budget.deadline))
+                return true;
+            Log.w(TAG, "usb event for " + latch + " late, " + budget);
+            if (budget.grace > 0 && latch.await(budget.grace))
+                return true;
+            timing.timeout(type, serial);
+            Log.w(TAG, "no usb event for " + latch + " after " + (budget.deadline + budget.grace) + " ms");
+        } finally {
+            disarm(latch);
+        }
+        return false;
+    }
+
+    /**
+     * Arm latch for VID:PID, then write mode, so the attach event can't come before anyone listen
+     */
+    private UsbEventLatch changeMode(String mode, final int vendorId, final int productId) throws IOException {
+        UsbEventLatch latch = arm(vendorId, productId);
+        try {
+            writeMode(mode);
+        } catch (IOException e) {
+            disarm(latch);
+            throw e;
+        }
+        final long written = latch.getAgeNanos();
+        return latch.then(new UsbEventLatch.Callback() {
+            @Override
+            public void onComplete(boolean arrived, long elapsedNanos) {
+                if (!arrived)
+                    return;
+                FlashMetrics.get().histogram(FlashMetrics.Phase.USB_ENUMERATION).record(elapsedNanos - written, 0);
+                ResetTiming timing = ResetUtil.this.timing;
+                if (timing != null)
+                    timing.record(ResetTiming.usb(vendorId, productId), getSerial(vendorId, productId),
+                            (elapsedNanos - written) / 1000000);
+            }
+        });
+    }
+
+    /**
+     * @return new latch for VID:PID, a latch armed before for the same device is cancelled
+     */
+    UsbEventLatch arm(int vendorId, int productId) {
+        UsbEventLatch latch = new UsbEventLatch(vendorId, productId);
+        UsbEventLatch previous = armed.put(UsbEventLatch.key(vendorId, productId), latch);
+        if (previous != null)
+            previous.complete(false);
+        return latch;
+    }
+
+    private void disarm(UsbEventLatch latch) {
+        armed.remove(UsbEventLatch.key(latch.vendorId, latch.productId), latch);
+        latch.complete(false);
+    }
+
+    /**
+     * Complete latch waiting for this device, called by broadcast receiver or synthetic events in tests
+     *
+     * @return true if a latch was waiting for it
+     */
+    boolean onUsbAttached(int vendorId, int productId) {
+        return onUsbAttached(vendorId, productId, null);
+    }
 
+    /**
+     * @param serial: usb serial of device, null if unknown
+     * @see #onUsbAttached(int, int)
+     */
+    boolean onUsbAttached(int vendorId, int productId, String serial) {
+        if (serial != null)
+            serials.put(UsbEventLatch.key(vendorId, productId), serial);
+        UsbEventLatch latch = armed.remove(UsbEventLatch.key(vendorId, productId));
+        return latch != null && latch.complete(true);
+    }
+
+    /**
+     * @return usb serial of device, null if it has none or app has no permission to read it
+     */
+    private static String serialOf(UsbDevice usbDevice) {
+        try {
+            return usbDevice.getSerialNumber();
+        } catch (SecurityException e) {
+            return null;
+        }
     }
 
     /**
@@ -115,13 +271,8 @@ public class ResetUtil {
      * Each mode, lcp11u68 have difference <b>VID</b> and <b>PID</b> which allow to verify mcu state <br>
      */
     private final BroadcastReceiver m_BroadCastReceiver = new BroadcastReceiver() {
-        private final static int VID_boot = 0x1fc9;
-        private final static int PID_boot = 0x0017;
-        private final static int VID = 0x23eb;
-        private final static int PID = 0x0004;
-
         /**
-         * Receive <i>ACTION_USB_DEVICE_ATTACHED</i> and <i>ACTION_USB_DEVICE_DETACHED</i> to <i>notify()</i> token which waiting in
+         * Receive <i>ACTION_USB_DEVICE_ATTACHED</i> and <i>ACTION_USB_DEVICE_DETACHED</i> to complete latch which armed in
          * <b>enterProgMode</b> and <b>enterNormalMode</b> function
          * @param context
          * @param intent
@@ -133,18 +284,7 @@ public class ResetUtil {
                 case UsbManager.ACTION_USB_DEVICE_ATTACHED: {
                     UsbDevice usbDevice = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
                     Log.d(TAG, "usb " + Integer.toHexString(usbDevice.getVendorId()) + ":" + Integer.toHexString(usbDevice.getProductId()) + " connected");
-                    synchronized (bootToken) {
-                        if ((usbDevice.getVendorId() == VID_boot) && (usbDevice.getProductId() == PID_boot)) {
-                            bootFlag = true;
-                            bootToken.notify();
-                        }
-                    }
-                    synchronized (resetToken) {
-                        if ((usbDevice.getVendorId() == VID) && (usbDevice.getProductId() == PID)) {
-                            resetFlag = true;
-                            resetToken.notify();
-                        }
-                    }
+                    onUsbAttached(usbDevice.getVendorId(), usbDevice.getProductId(), serialOf(usbDevice));
                     break;
                 }
                 case UsbManager.ACTION_USB_DEVICE_DETACHED: {
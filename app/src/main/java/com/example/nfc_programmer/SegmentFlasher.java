@@ -0,0 +1,118 @@
+package com.example.nfc_programmer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Flash a {@link SegmentSource} straight into <b>lcp11u68</b>, one segment at a time <br>
+ * Only address ranges which hold data are written, at {@link FlashBackend#FIRMWARE_OFFSET} + address.
+ * The vector table is held back and written last with its checksum word filled in,
+ * so the image is never loaded as a whole.
+ */
+public class SegmentFlasher {
+    final static String TAG = "Segment Flasher";
+    // LPC bootloader only start the image if word 7 = -(sum of word 0..6)
+    final static int VECTOR_SIZE = 32;
+    final static int CHECKSUM_OFFSET = 28;
+
+    /**
+     * @param source: firmware in any format supported by {@link ImageDecoder}
+     * @param devPath: device file (ex: /dev/block/sda)
+     * @param listener: progress, total is 0 because size is unknown until end of stream. Can be null
+     * @return number of bytes written, -1 if fail
+     */
+    public static long flash(FirmwareSource firmware, String devPath, FlashProgressListener listener) {
+        try (SegmentSource source = ImageDecoder.open(firmware.openStream());
+             RandomAccessFile device = new RandomAccessFile(devPath, "rw")) {
+            FileChannel dst = device.getChannel();
+            long start = FlashMetrics.now();
+            long written = write(source, dst, listener);
+
+            FlashMetrics.get().record(FlashMetrics.Phase.WRITE, start, written);
+            start = FlashMetrics.now();
+            dst.force(false);
+            FlashMetrics.get().record(FlashMetrics.Phase.SYNC, start);
+            Log.i(TAG, "Finished!!! written " + written + " bytes of " + firmware);
+            return written;
+        } catch (IOException e) {
+            Log.e(TAG, "flash " + firmware + " error: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Write every segment at its address
+     * @return number of bytes written
+     * @throws IOException if a segment is outside of flash or device can't be written
+     */
+    static long write(SegmentSource source, FileChannel dst, FlashProgressListener listener) throws IOException {
+        byte[] vector = new byte[VECTOR_SIZE];
+        int vectorMask = 0;     // bit i set when byte i of vector table came from the image
+        long written = 0, begin = System.nanoTime();
+
+        SegmentSource.Segment segment;
+        while ((segment = source.next()) != null) {
+            long address = segment.address, end = address + segment.length;
+            if (address < 0 || end > FlashBackend.MAX_IMAGE_SIZE)
+                throw new IOException(String.format("segment 0x%x-0x%x is outside of flash", address, end));
+
+            int skip = 0;
+            for (; address + skip < VECTOR_SIZE && skip < segment.length; skip++) {
+                vector[(int) address + skip] = segment.data[skip];
+                vectorMask |= 1 << (address + skip);
+            }
+            if (skip < segment.length) {
+                ByteBuffer data = ByteBuffer.wrap(segment.data, skip, segment.length - skip);
+                long position = FlashBackend.FIRMWARE_OFFSET + address + skip;
+                while (data.hasRemaining())
+                    position += dst.write(data, position);
+            }
+            written += segment.length;
+            if (listener != null) {
+                long elapsed = System.nanoTime() - begin;
+                listener.onFlashProgress(written, 0, elapsed > 0 ? written * 1000000000L / elapsed : 0);
+            }
+        }
+
+        if (vectorMask != 0)
+            writeVector(dst, vector, vectorMask);
+        return written;
+    }
+
+    /**
+     * Fill in checksum word and write vector table bytes which came from the image
+     */
+    private static void writeVector(FileChannel dst, byte[] vector, int mask) throws IOException {
+        int required = (1 << CHECKSUM_OFFSET) - 1;
+        if ((mask & required) == required) {
+            ByteBuffer words = ByteBuffer.wrap(vector).order(ByteOrder.LITTLE_ENDIAN);
+            int sum = 0;
+            for (int i = 0; i < CHECKSUM_OFFSET; i += 4)
+                sum += words.getInt(i);
+            words.putInt(CHECKSUM_OFFSET, -sum);
+            mask = -1;
+        } else
+            Log.w(TAG, "vector table incomplete, checksum not written, mcu may not boot");
+
+        // write each run of present bytes
+        int i = 0;
+        while (i < VECTOR_SIZE) {
+            if ((mask & (1 << i)) == 0) {
+                i++;
+                continue;
+            }
+            int runStart = i;
+            while (i < VECTOR_SIZE && (mask & (1 << i)) != 0)
+                i++;
+            ByteBuffer data = ByteBuffer.wrap(vector, runStart, i - runStart);
+            long position = FlashBackend.FIRMWARE_OFFSET + runStart;
+            while (data.hasRemaining())
+                position += dst.write(data, position);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.nfc_programmer;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Stream of firmware data segments, each one placed at its flash address <br>
+ * Segments come in file order, addresses are not required to be contiguous or sorted.
+ */
+public interface SegmentSource extends Closeable {
+    /**
+     * Piece of firmware at a flash address, data is only valid until next call of {@link #next()}
+     */
+    class Segment {
+        public long address;
+        public byte[] data;
+        public int length;
+    }
+
+    /**
+     * @return next segment, null at end of image
+     * @throws IOException if input is not a valid image
+     */
+    Segment next() throws IOException;
+}
@@ -0,0 +1,190 @@
+package com.example.nfc_programmer;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One shot latch for a usb attach event of a VID:PID, completed exactly once <br>
+ * Armed before the mode change is triggered, so an event arriving before anyone waits is never lost.
+ * Lock free: waiters and callbacks are pushed on a stack which is swapped for the outcome on completion.
+ */
+public class UsbEventLatch {
+
+    /**
+     * Called once when latch completed, on the completing thread (or caller thread if already completed)
+     */
+    public interface Callback {
+        /**
+         * @param arrived: true if the usb event arrived, false if latch expired or was cancelled
+         * @param elapsedNanos: time from arming to completion
+         */
+        void onComplete(boolean arrived, long elapsedNanos);
+    }
+
+    private static final class Outcome {
+        final boolean arrived;
+        final long nanos;
+
+        Outcome(boolean arrived, long nanos) {
+            this.arrived = arrived;
+            this.nanos = nanos;
+        }
+    }
+
+    private static final class Node {
+        final Thread thread;
+        final Callback callback;
+        Node next;
+
+        Node(Thread thread, Callback callback) {
+            this.thread = thread;
+            this.callback = callback;
+        }
+    }
+
+    public final int vendorId, productId;
+    private final long armedAt = System.nanoTime();
+    // null or Node while pending, Outcome when completed
+    private final AtomicReference<Object> state = new AtomicReference<>();
+
+    /**
+     * @param vendorId: usb vendor id to wait for
+     * @param productId: usb product id to wait for
+     */
+    public UsbEventLatch(int vendorId, int productId) {
+        this.vendorId = vendorId;
+        this.productId = productId;
+    }
+
+    /**
+     * @return vendor and product id packed in one int, key of armed latches
+     */
+    public static int key(int vendorId, int productId) {
+        return (vendorId & 0xffff) << 16 | (productId & 0xffff);
+    }
+
+    public boolean matches(int vendorId, int productId) {
+        return this.vendorId == vendorId && this.productId == productId;
+    }
+
+    /**
+     * Complete latch, only first call has effect
+     * @param arrived: true for usb event, false to expire or cancel
+     * @return true if this call completed the latch
+     */
+    public boolean complete(boolean arrived) {
+        Outcome outcome = new Outcome(arrived, System.nanoTime() - armedAt);
+        Object current;
+        do {
+            current = state.get();
+            if (current instanceof Outcome)
+                return false;
+        } while (!state.compareAndSet(current, outcome));
+
+        for (Node node = (Node) current; node != null; node = node.next) {
+            if (node.thread != null)
+                LockSupport.unpark(node.thread);
+            else
+                node.callback.onComplete(outcome.arrived, outcome.nanos);
+        }
+        return true;
+    }
+
+    public boolean isDone() {
+        return state.get() instanceof Outcome;
+    }
+
+    /**
+     * Run callback on completion without blocking, immediately if already completed
+     * @param callback: next step
+     * @return this latch, to chain calls
+     */
+    public UsbEventLatch then(Callback callback) {
+        Outcome outcome = push(new Node(null, callback));
+        if (outcome != null)
+            callback.onComplete(outcome.arrived, outcome.nanos);
+        return this;
+    }
+
+    /**
+     * Expire latch after a deadline without blocking, callbacks then see arrived = false
+     * @param timeoutMs: deadline from now
+     * @param scheduler: timer thread
+     * @return this latch, to chain calls
+     */
+    public UsbEventLatch expireAfter(long timeoutMs, ScheduledExecutorService scheduler) {
+        final ScheduledFuture<?> timer = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                complete(false);
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        return then(new Callback() {
+            @Override
+            public void onComplete(boolean arrived, long elapsedNanos) {
+                timer.cancel(false);
+            }
+        });
+    }
+
+    /**
+     * Wait for usb event
+     * @param timeoutMs: deadline from now, the latch itself stays pending after a timeout
+     * @return true if event arrived, false if timeout, expired or cancelled
+     * @throws InterruptedException if waiting thread is interrupted
+     */
+    public boolean await(long timeoutMs) throws InterruptedException {
+        Outcome outcome = push(new Node(Thread.currentThread(), null));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (outcome == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            Object current = state.get();
+            if (current instanceof Outcome)
+                outcome = (Outcome) current;
+        }
+        return outcome.arrived;
+    }
+
+    /**
+     * @return time since latch was armed
+     */
+    public long getAgeNanos() {
+        return System.nanoTime() - armedAt;
+    }
+
+    /**
+     * @return time from arming to completion, -1 if still pending
+     */
+    public long getElapsedNanos() {
+        Object current = state.get();
+        return current instanceof Outcome ? ((Outcome) current).nanos : -1;
+    }
+
+    /**
+     * Push waiter on stack
+     * @return outcome if already completed, node is not pushed then
+     */
+    private Outcome push(Node node) {
+        Object current;
+        do {
+            current = state.get();
+            if (current instanceof Outcome)
+                return (Outcome) current;
+            node.next = (Node) current;
+        } while (!state.compareAndSet(current, node));
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%04x:%04x %s", vendorId, productId, isDone() ? "done" : "pending");
+    }
+}
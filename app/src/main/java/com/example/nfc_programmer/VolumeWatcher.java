@@ -0,0 +1,114 @@
+package com.example.nfc_programmer;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wait for <b>lcp11u68</b> bootloader volume without polling <br>
+ * Watch block device node creation in /dev/block (inotify) and volume mount broadcast, each event wake up
+ * the waiting thread which then check the volume state. <br>
+ * Watcher stays started for the lifetime of {@link FlashService}, it must be armed before reset into boot mode
+ * so that no event is missed and old events are forgotten.
+ */
+public class VolumeWatcher {
+    final static String TAG = "Volume Watcher";
+    final static String BLOCK_DEVICE_DIR = "/dev/block";
+    // Re-check volume state at least this often, in case an event is missed
+    final static long RECHECK_INTERVAL = 1000;
+
+    /**
+     * State check, called on every event until it return non null
+     * @param <T> result type
+     */
+    public interface Probe<T> {
+        T check() throws ReflectiveOperationException;
+    }
+
+    private final Context context;
+    private final Semaphore events = new Semaphore(0);
+    private final FileObserver blockObserver = new FileObserver(BLOCK_DEVICE_DIR, FileObserver.CREATE | FileObserver.ATTRIB) {
+        @Override
+        public void onEvent(int event, String path) {
+            if (path != null && path.startsWith("sd")) {
+                Log.d(TAG, "block device event " + event + " on " + path);
+                events.release();
+            }
+        }
+    };
+    private final BroadcastReceiver mountReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(TAG, "volume event " + intent.getAction());
+            events.release();
+        }
+    };
+
+    VolumeWatcher(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Start listening to block device and volume event
+     */
+    public void start() {
+        blockObserver.startWatching();
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+        filter.addDataScheme("file");
+        context.registerReceiver(mountReceiver, filter);
+    }
+
+    /**
+     * Forget events received so far, call before triggering the state change which will be waited for
+     */
+    public void arm() {
+        events.drainPermits();
+    }
+
+    /**
+     * Stop listening, safe to call after {@link #start()} only
+     */
+    public void stop() {
+        blockObserver.stopWatching();
+        context.unregisterReceiver(mountReceiver);
+    }
+
+    /**
+     * Block until probe return non null, probe is checked immediately and then on every event
+     * @param probe: state check
+     * @param timeoutMs: time limit
+     * @return probe result, null if timeout
+     * @throws InterruptedException
+     * @throws ReflectiveOperationException from probe
+     */
+    public <T> T await(Probe<T> probe, long timeoutMs) throws InterruptedException, ReflectiveOperationException {
+        return await(probe, timeoutMs, RECHECK_INTERVAL);
+    }
+
+    /**
+     * @param recheckMs: probe is also checked this often, in case an event is missed
+     * @see #await(Probe, long)
+     */
+    public <T> T await(Probe<T> probe, long timeoutMs, long recheckMs)
+            throws InterruptedException, ReflectiveOperationException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        T result;
+
+        while ((result = probe.check()) == null) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0)
+                return null;
+            events.tryAcquire(Math.min(remaining, recheckMs), TimeUnit.MILLISECONDS);
+            // several events may arrive together, one check is enough for all of them
+            events.drainPermits();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.nfc_programmer;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+
+/**
+ * Persistent record of verified chunks of one image on one board, so an interrupted flash can resume <br>
+ * Journals are keyed by usb serial of the board, so they follow it to another port and never apply to another board
+ * plugged into the same one. Device node is only a fallback key when serial is unknown. <br>
+ * File layout: header (magic, chunk size, image size, image hash) then one int per committed chunk, appended.
+ * Commits are buffered and made durable together by {@link #sync()}, a commit not synced is simply verified again.
+ * A torn last record is ignored. Journal is deleted when flash completed, and ignored once older than {@link #MAX_AGE}.
+ */
+public class WriteJournal implements Closeable {
+    final static String TAG = "Write Journal";
+    final static int MAGIC = 0x4a524e4c;    // "JRNL"
+    final static int CHUNK_SIZE = ChunkVerifier.CHUNK_SIZE;
+    final static long MAX_AGE = 10 * 60 * 1000;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final File file;
+    private final RandomAccessFile journal;
+    private final BitSet committed = new BitSet();
+    // records committed since last sync
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private final int size, chunks;
+
+    private WriteJournal(File file, RandomAccessFile journal, int size) {
+        this.file = file;
+        this.journal = journal;
+        this.size = size;
+        this.chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    /**
+     * Open journal of image on device, start a new one if there is none matching
+     * @param dir: directory holding journals
+     * @param board: usb serial of board, device file (ex: /dev/block/sda) if unknown
+     * @param imageHash: content hash of image, see {@link FirmwareCache.Image#hash}
+     * @param size: image size
+     * @return journal, committed chunks of a previous attempt loaded
+     * @throws IOException if journal can't be created
+     */
+    public static WriteJournal open(File dir, String board, String imageHash, int size) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("can't create journal directory " + dir);
+        String prefix = board.replaceAll("[^A-Za-z0-9]", "_") + "-";
+        File file = new File(dir, prefix + imageHash + ".journal");
+
+        // journal of another image on same board is useless now
+        File[] stale = dir.listFiles();
+        if (stale != null) {
+            for (File other : stale) {
+                if (other.getName().startsWith(prefix) && !other.equals(file) && !other.delete())
+                    Log.w(TAG, "can't delete " + other);
+            }
+        }
+        if (file.exists() && System.currentTimeMillis() - file.lastModified() > MAX_AGE && !file.delete())
+            Log.w(TAG, "can't delete expired " + file);
+
+        RandomAccessFile journal = new RandomAccessFile(file, "rw");
+        WriteJournal result = new WriteJournal(file, journal, size);
+        try {
+            byte[] hash = imageHash.getBytes(ASCII);
+            if (!result.load(hash, size)) {
+                journal.setLength(0);
+                journal.writeInt(MAGIC);
+                journal.writeInt(CHUNK_SIZE);
+                journal.writeInt(size);
+                journal.writeShort(hash.length);
+                journal.write(hash);
+                journal.getFD().sync();
+            }
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+        Log.i(TAG, "opened " + file.getName() + ", resume at " + result.getResumeOffset());
+        return result;
+    }
+
+    /**
+     * Read header and records of existing journal
+     * @return false if journal is empty or for another image
+     */
+    private boolean load(byte[] hash, int size) throws IOException {
+        int header = 4 + 4 + 4 + 2 + hash.length;
+        if (journal.length() < header)
+            return false;
+        journal.seek(0);
+        if (journal.readInt() != MAGIC || journal.readInt() != CHUNK_SIZE || journal.readInt() != size
+                || journal.readShort() != hash.length)
+            return false;
+        byte[] stored = new byte[hash.length];
+        journal.readFully(stored);
+        if (!java.util.Arrays.equals(stored, hash))
+            return false;
+
+        long records = (journal.length() - header) / 4;
+        for (long i = 0; i < records; i++) {
+            int chunk = journal.readInt();
+            if (chunk >= 0 && chunk < chunks)
+                committed.set(chunk);
+        }
+        // drop torn record, next commit append after last full one
+        journal.setLength(header + records * 4);
+        return true;
+    }
+
+    /**
+     * Record a chunk as written and verified against device, durable after next {@link #sync()}
+     * @param chunk: chunk index
+     * @throws IOException if journal can't be written
+     */
+    public synchronized void commit(int chunk) throws IOException {
+        if (committed.get(chunk))
+            return;
+        pendingOut.writeInt(chunk);
+        committed.set(chunk);
+    }
+
+    /**
+     * Append chunks committed since last sync and flush them to storage, one write and one sync for all of them
+     * @throws IOException if journal can't be written
+     */
+    public synchronized void sync() throws IOException {
+        if (pending.size() == 0)
+            return;
+        journal.seek(journal.length());
+        journal.write(pending.toByteArray());
+        pending.reset();
+        journal.getFD().sync();
+    }
+
+    public synchronized boolean isCommitted(int chunk) {
+        return committed.get(chunk);
+    }
+
+    /**
+     * @return image offset up to which all chunks are committed, where a retry can start writing
+     */
+    public synchronized int getResumeOffset() {
+        return Math.min(committed.nextClearBit(0) * CHUNK_SIZE, size);
+    }
+
+    /**
+     * Flash finished, journal is not needed anymore
+     */
+    public synchronized void complete() {
+        try {
+            journal.close();
+        } catch (IOException ignored) {}
+        if (!file.delete())
+            Log.w(TAG, "can't delete " + file);
+    }
+
+    /**
+     * Sync pending commits and close journal, kept for a resume
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            journal.close();
+        }
+    }
+}
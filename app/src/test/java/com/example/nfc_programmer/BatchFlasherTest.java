@@ -0,0 +1,116 @@
+package com.example.nfc_programmer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link BatchFlasher} with regular files standing in for the block devices
+ */
+public class BatchFlasherTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File tempFile(String name) throws IOException {
+        return tmp.newFile(name + ".img");
+    }
+
+    @Test
+    public void flashAll_slowAndFailedDeviceDoNotStallOthers() throws Exception {
+        final File image = tempFile("firmware");
+        try (FileOutputStream out = new FileOutputStream(image)) {
+            out.write(new byte[]{1, 2, 3, 4});
+        }
+        final String ok = tempFile("device_ok").getPath(), bad = "/nonexistent/sdz", slow = tempFile("device_slow").getPath();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        BatchFlasher.DeviceWriter writer = new BatchFlasher.DeviceWriter() {
+            @Override
+            public long write(String path, String devPath, FlashProgressListener listener) {
+                if (devPath.equals(slow)) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        return -1;
+                    }
+                }
+                try (FileOutputStream out = new FileOutputStream(devPath)) {
+                    out.write(new byte[(int) image.length()]);
+                } catch (IOException e) {
+                    return -1;
+                }
+                listener.onFlashProgress(image.length(), image.length(), 0);
+                return 0;
+            }
+        };
+
+        BatchFlasher batch = new BatchFlasher(3);
+        List<BatchFlasher.Result> results = batch.flashAll(image.getPath(), Arrays.asList(ok, bad, slow), 500, writer, null);
+        release.countDown();
+
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).success);
+        assertEquals(4, new File(ok).length());
+        assertFalse(results.get(1).success);
+        assertFalse(results.get(2).success);
+        assertEquals("timeout", results.get(2).error);
+
+        // same workers run the next batch
+        results = batch.flashAll(image.getPath(), Arrays.asList(slow, ok), 500, writer, null);
+        assertTrue(results.get(0).success);
+        assertTrue(results.get(1).success);
+        assertTrue(batch.shutdown());
+    }
+
+    @Test
+    public void flashAll_waitsForCancelledWorkersAndReportsStuckOnes() throws Exception {
+        final String quick = "/dev/block/sda", stuck = "/dev/block/sdb";
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch quickStopped = new CountDownLatch(1);
+
+        BatchFlasher.DeviceWriter writer = new BatchFlasher.DeviceWriter() {
+            @Override
+            public long write(String path, String devPath, FlashProgressListener listener) {
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        release.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        // quick one stops a bit after cancel, stuck one ignores it
+                        interrupted = true;
+                        if (devPath.equals(quick)) {
+                            try {
+                                Thread.sleep(50);
+                            } catch (InterruptedException ignored) {}
+                            quickStopped.countDown();
+                            return -1;
+                        }
+                    }
+                }
+                return interrupted ? -1 : 0;
+            }
+        };
+        BatchFlasher batch = new BatchFlasher(2);
+        batch.setStopTimeout(300);
+
+        List<BatchFlasher.Result> results = batch.flashAll("fw.bin", Arrays.asList(quick, stuck), 100, writer, null);
+        // cancelled worker joined before results are returned
+        assertEquals(0, quickStopped.getCount());
+        assertEquals("timeout", results.get(0).error);
+        assertFalse(results.get(1).success);
+        assertEquals("timeout, still writing", results.get(1).error);
+        assertFalse(batch.shutdown());
+
+        release.countDown();
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.nfc_programmer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class BundleFlasherTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void flash_writesEveryImageAtItsOffset() throws IOException {
+        Map<String, byte[]> files = new HashMap<>();
+        byte[] fw = FirmwareBundleTest.image(5000, 1), tail = FirmwareBundleTest.image(100, 2),
+                config = FirmwareBundleTest.image(64, 3);
+        files.put("fw.bin", fw);
+        files.put("tail.bin", tail);
+        files.put("config.bin", config);
+        FirmwareBundle bundle = FirmwareBundle.read(new ByteArrayInputStream(FirmwareBundleTest.zip(
+                "image fw.bin 0 " + FirmwareBundle.sha256(fw) + "\n"
+                        + "image tail.bin 5000 " + FirmwareBundle.sha256(tail) + "\n"
+                        + "image config.bin 0x2000 " + FirmwareBundle.sha256(config) + "\n"
+                        + "patch config.bin 0 6 serial\n", files)));
+
+        File device = tmp.newFile("device.img");
+        final List<Long> progress = new ArrayList<>();
+        Map<String, String> variables = new HashMap<>();
+        variables.put("serial", "S-0001");
+        long written = BundleFlasher.flash(bundle, variables, device.getPath(), new FlashProgressListener() {
+            @Override
+            public void onFlashProgress(long written, long total, long bytesPerSecond) {
+                assertEquals(5164, total);
+                progress.add(written);
+            }
+        });
+
+        assertEquals(5164, written);
+        // fw + tail are adjacent: one gathering write, then config
+        assertEquals("[5100, 5164]", progress.toString());
+        try (RandomAccessFile file = new RandomAccessFile(device, "r")) {
+            byte[] actual = new byte[5100];
+            file.seek(FlashBackend.FIRMWARE_OFFSET);
+            file.readFully(actual);
+            byte[] expected = new byte[5100];
+            System.arraycopy(fw, 0, expected, 0, 5000);
+            System.arraycopy(tail, 0, expected, 5000, 100);
+            assertArrayEquals(expected, actual);
+
+            actual = new byte[64];
+            file.seek(FlashBackend.FIRMWARE_OFFSET + 0x2000);
+            file.readFully(actual);
+            expected = config.clone();
+            System.arraycopy("S-0001".getBytes("US-ASCII"), 0, expected, 0, 6);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void flash_missingVariableWritesNothing() throws IOException {
+        Map<String, byte[]> files = new HashMap<>();
+        byte[] config = FirmwareBundleTest.image(64, 3);
+        files.put("config.bin", config);
+        FirmwareBundle bundle = FirmwareBundle.read(new ByteArrayInputStream(FirmwareBundleTest.zip(
+                "image config.bin 0 " + FirmwareBundle.sha256(config) + "\npatch config.bin 0 6 serial\n", files)));
+        File device = tmp.newFile("device.img");
+
+        assertEquals(-1, BundleFlasher.flash(bundle, new HashMap<String, String>(), device.getPath(), null));
+        assertEquals(0, device.length());
+    }
+}
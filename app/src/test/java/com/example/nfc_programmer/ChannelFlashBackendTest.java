@@ -0,0 +1,108 @@
+package com.example.nfc_programmer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link ChannelFlashBackend} with a regular file standing in for /dev/block/sdX
+ */
+public class ChannelFlashBackendTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final int SIZE = 10000;
+
+    private final ChannelFlashBackend backend = new ChannelFlashBackend();
+    private File firmware, device;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws IOException {
+        data = new byte[SIZE];
+        for (int i = 0; i < SIZE; i++)
+            data[i] = (byte) (i * 7);
+        firmware = tmp.newFile("firmware.bin");
+        try (FileOutputStream out = new FileOutputStream(firmware)) {
+            out.write(data);
+        }
+        device = tmp.newFile("device.img");
+    }
+
+    private byte[] readDevice() throws IOException {
+        byte[] content = new byte[SIZE];
+        try (RandomAccessFile file = new RandomAccessFile(device, "r")) {
+            file.seek(FlashBackend.FIRMWARE_OFFSET);
+            file.readFully(content);
+        }
+        return content;
+    }
+
+    @Test
+    public void flashFile_writesAtFirmwareOffset() throws IOException {
+        final long[] last = new long[1];
+        long ret = backend.flash(firmware.getPath(), device.getPath(), false, new FlashProgressListener() {
+            @Override
+            public void onFlashProgress(long written, long total, long bytesPerSecond) {
+                assertEquals(SIZE, total);
+                last[0] = written;
+            }
+        });
+
+        assertEquals(0, ret);
+        assertEquals(SIZE, last[0]);
+        assertEquals(FlashBackend.FIRMWARE_OFFSET + SIZE, device.length());
+        assertArrayEquals(data, readDevice());
+    }
+
+    @Test
+    public void flashImage_deltaSkipsUnchangedSectors() throws IOException {
+        assertEquals(0, backend.flash(ByteBuffer.wrap(data), device.getPath(), false, null));
+        assertEquals(SIZE, backend.flash(firmware.getPath(), device.getPath(), true, null));
+
+        data[5000] ^= 1;
+        assertEquals(SIZE - FlashBackend.SECTOR_SIZE, backend.flash(ByteBuffer.wrap(data), device.getPath(), true, null));
+        assertArrayEquals(data, readDevice());
+    }
+
+    @Test
+    public void flashExtents_leavesErasedSectorsUntouched() throws IOException {
+        // device content stands in for erased flash
+        try (RandomAccessFile file = new RandomAccessFile(device, "rw")) {
+            byte[] erased = new byte[SIZE];
+            Arrays.fill(erased, (byte) 0xFF);
+            file.seek(FlashBackend.FIRMWARE_OFFSET);
+            file.write(erased);
+        }
+        Arrays.fill(data, 1024, 8192, (byte) 0xFF);
+        ByteBuffer image = ByteBuffer.wrap(data);
+        ExtentIndex extents = ExtentIndex.build(image, FlashBackend.SECTOR_SIZE);
+        final long[] last = new long[1];
+
+        long saved = backend.flash(image, extents, device.getPath(), new FlashProgressListener() {
+            @Override
+            public void onFlashProgress(long written, long total, long bytesPerSecond) {
+                last[0] = written;
+            }
+        });
+
+        assertEquals(8192 - 1024, saved);
+        assertEquals(SIZE, last[0]);
+        assertArrayEquals(data, readDevice());
+    }
+
+    @Test
+    public void flash_rejectsOversizedImage() {
+        assertEquals(-1, backend.flash(ByteBuffer.allocate(FlashBackend.MAX_IMAGE_SIZE + 1), device.getPath(), false, null));
+    }
+}
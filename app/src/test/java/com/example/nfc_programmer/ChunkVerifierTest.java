@@ -0,0 +1,68 @@
+package com.example.nfc_programmer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ChunkVerifierTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final int SIZE = 3 * ChunkVerifier.CHUNK_SIZE + 100;
+
+    private File device;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws IOException {
+        data = new byte[SIZE];
+        for (int i = 0; i < SIZE; i++)
+            data[i] = (byte) (i * 13);
+        device = tmp.newFile("device.img");
+    }
+
+    @Test
+    public void finish_allChunksPassAfterBackendWrite() throws IOException {
+        ChunkVerifier verifier = new ChunkVerifier(ByteBuffer.wrap(data), device.getPath(), null);
+        assertEquals(0, new ChannelFlashBackend().flash(ByteBuffer.wrap(data), device.getPath(), false, verifier));
+
+        ChunkVerifier.Result result = verifier.finish();
+        assertEquals(4, result.chunkPassed.length);
+        assertTrue(result.success());
+        assertEquals(0, result.rewritten);
+    }
+
+    @Test
+    public void finish_rewritesOnlyFailedChunk() throws IOException {
+        ChunkVerifier verifier = new ChunkVerifier(ByteBuffer.wrap(data), device.getPath(), null);
+        byte[] corrupted = data.clone();
+        corrupted[ChunkVerifier.CHUNK_SIZE + 5] ^= 0x40;
+        try (RandomAccessFile file = new RandomAccessFile(device, "rw")) {
+            file.seek(FlashBackend.FIRMWARE_OFFSET);
+            for (int pos = 0; pos < SIZE; pos += ChunkVerifier.CHUNK_SIZE) {
+                int len = Math.min(ChunkVerifier.CHUNK_SIZE, SIZE - pos);
+                file.write(corrupted, pos, len);
+                verifier.onFlashProgress(pos + len, SIZE, 0);
+            }
+        }
+
+        ChunkVerifier.Result result = verifier.finish();
+        assertTrue(result.success());
+        assertEquals(1, result.rewritten);
+
+        byte[] content = new byte[SIZE];
+        try (RandomAccessFile file = new RandomAccessFile(device, "r")) {
+            file.seek(FlashBackend.FIRMWARE_OFFSET);
+            file.readFully(content);
+        }
+        assertArrayEquals(data, content);
+    }
+}
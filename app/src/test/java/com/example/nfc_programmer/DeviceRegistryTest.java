@@ -0,0 +1,120 @@
+package com.example.nfc_programmer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dev, sys;
+    private DeviceRegistry registry;
+
+    @Before
+    public void setUp() throws IOException {
+        File root = tmp.getRoot();
+        dev = new File(root, "dev/block");
+        sys = new File(root, "sys");
+        assertTrue(dev.mkdirs());
+        assertTrue(new File(sys, "block").mkdirs());
+        registry = new DeviceRegistry(dev, sys);
+    }
+
+    /**
+     * Lay out sysfs like the kernel does for usb mass storage:
+     * /sys/block/sdX -> /sys/devices/.../usbN/N-P/N-P:1.0/hostH/.../block/sdX
+     */
+    private void plug(String name, String port, int vid, int pid, String serial, String devNumber) throws IOException {
+        File usb = new File(sys, "devices/pci0000:00/usb1/" + port);
+        File block = new File(usb, port + ":1.0/host0/target0:0:0/0:0:0:0/block/" + name);
+        assertTrue(block.mkdirs());
+        write(new File(usb, "idVendor"), String.format("%04x", vid));
+        write(new File(usb, "idProduct"), String.format("%04x", pid));
+        if (serial != null)
+            write(new File(usb, "serial"), serial);
+        write(new File(block, "dev"), devNumber);
+        Files.createSymbolicLink(new File(sys, "block/" + name).toPath(), block.toPath());
+        assertTrue(new File(dev, name).createNewFile());
+    }
+
+    private static void write(File file, String line) throws IOException {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(line + "\n");
+        }
+    }
+
+    @Test
+    public void nodeAdded_resolvesUsbIdentity() throws IOException {
+        plug("sda", "1-1", ResetUtil.VID_boot, ResetUtil.PID_boot, "BOARD1", "8:0");
+        registry.onNodeAdded("sda");
+
+        DeviceRegistry.Device device = registry.get(new File(dev, "sda").getPath());
+        assertNotNull(device);
+        assertTrue(device.matches(ResetUtil.VID_boot, ResetUtil.PID_boot));
+        assertEquals("BOARD1", device.serial);
+        assertEquals("8:0", device.devNumber);
+        assertSame(device, registry.findBySerial("BOARD1"));
+    }
+
+    @Test
+    public void findNodes_onlyBoardsInBootMode() throws IOException {
+        plug("sda", "1-1", 0x0781, 0x5567, "STICK", "8:0");
+        plug("sdb", "1-2", ResetUtil.VID_boot, ResetUtil.PID_boot, "BOARD2", "8:16");
+        plug("sdc", "1-3", ResetUtil.VID_boot, ResetUtil.PID_boot, "BOARD1", "8:32");
+        registry.start();
+        assertTrue(new File(dev, "sdc1").createNewFile());
+        registry.onNodeAdded("sdc1");
+
+        assertEquals(3, registry.size());
+        assertArrayEquals(new String[] {new File(dev, "sdb").getPath(), new File(dev, "sdc").getPath()},
+                registry.findNodes(ResetUtil.VID_boot, ResetUtil.PID_boot));
+        assertEquals(new File(dev, "sdc").getPath(), registry.findBySerial("BOARD1").node);
+    }
+
+    @Test
+    public void nodeRemoved_forgetsDeviceAndNotifies() throws IOException {
+        final List<String> events = new ArrayList<>();
+        registry.setListener(new DeviceRegistry.Listener() {
+            @Override
+            public void onDeviceAdded(DeviceRegistry.Device device) {
+                events.add("+" + device.serial);
+            }
+
+            @Override
+            public void onDeviceRemoved(DeviceRegistry.Device device) {
+                events.add("-" + device.serial);
+            }
+        });
+        plug("sda", "1-1", ResetUtil.VID_boot, ResetUtil.PID_boot, "BOARD1", "8:0");
+        registry.onNodeAdded("sda");
+        registry.onNodeRemoved("sda");
+        registry.onNodeRemoved("sda");
+
+        assertNull(registry.get(new File(dev, "sda").getPath()));
+        assertNull(registry.findBySerial("BOARD1"));
+        assertEquals(0, registry.findNodes(ResetUtil.VID_boot, ResetUtil.PID_boot).length);
+        assertEquals("[+BOARD1, -BOARD1]", events.toString());
+    }
+
+    @Test
+    public void noSysfsEntry_registeredAsUnknown() throws IOException {
+        assertTrue(new File(dev, "sdd").createNewFile());
+        registry.onNodeAdded("sdd");
+
+        DeviceRegistry.Device device = registry.get(new File(dev, "sdd").getPath());
+        assertEquals(-1, device.vendorId);
+        assertNull(device.serial);
+        assertEquals(0, registry.findNodes(ResetUtil.VID_boot, ResetUtil.PID_boot).length);
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.nfc_programmer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ExtentIndexTest {
+    private static final int SECTOR = FlashBackend.SECTOR_SIZE;
+
+    @Test
+    public void build_mergesDataSectorsAndAlignsToSector() {
+        byte[] image = new byte[SECTOR * 8 + 100];
+        Arrays.fill(image, (byte) 0xFF);
+        image[10] = 0;                      // sector 0
+        image[SECTOR + 3] = 0;              // sector 1, joined with 0
+        image[SECTOR * 5 - 1] = 0x7F;       // last byte of sector 4
+        image[SECTOR * 8 + 50] = 0;         // partial tail
+
+        ExtentIndex index = ExtentIndex.build(ByteBuffer.wrap(image), SECTOR);
+
+        assertEquals(3, index.getCount());
+        assertEquals(0, index.getStart(0));
+        assertEquals(SECTOR * 2, index.getEnd(0));
+        assertEquals(SECTOR * 4, index.getStart(1));
+        assertEquals(SECTOR * 5, index.getEnd(1));
+        assertEquals(SECTOR * 8, index.getStart(2));
+        assertEquals(image.length, index.getEnd(2));
+        assertEquals(SECTOR * 3 + 100, index.getDataBytes());
+        assertEquals(SECTOR * 5, index.getSavedBytes());
+    }
+
+    @Test
+    public void build_erasedImageHasNoExtents() {
+        byte[] image = new byte[SECTOR * 3];
+        Arrays.fill(image, (byte) 0xFF);
+        ExtentIndex index = ExtentIndex.build(ByteBuffer.wrap(image), SECTOR);
+
+        assertEquals(0, index.getCount());
+        assertEquals(image.length, index.getSavedBytes());
+    }
+
+    @Test
+    public void build_usesBufferPosition() {
+        byte[] image = new byte[SECTOR * 2];
+        Arrays.fill(image, (byte) 0xFF);
+        image[SECTOR] = 0;
+        ByteBuffer buffer = ByteBuffer.wrap(image);
+        buffer.position(SECTOR);
+
+        ExtentIndex index = ExtentIndex.build(buffer, SECTOR);
+        assertEquals(SECTOR, index.getSize());
+        assertArrayEquals(new int[]{0, SECTOR}, index.toArray());
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.nfc_programmer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class FirmwareBundleTest {
+
+    static byte[] image(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte) (i * 7 + seed);
+        return data;
+    }
+
+    static byte[] zip(String manifest, Map<String, byte[]> files) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                zip.putNextEntry(new ZipEntry(file.getKey()));
+                zip.write(file.getValue());
+            }
+            zip.putNextEntry(new ZipEntry(FirmwareBundle.MANIFEST));
+            zip.write(manifest.getBytes("US-ASCII"));
+        }
+        return out.toByteArray();
+    }
+
+    private static FirmwareBundle read(String manifest, Map<String, byte[]> files) throws IOException {
+        return FirmwareBundle.read(new ByteArrayInputStream(zip(manifest, files)));
+    }
+
+    @Test
+    public void read_sortsImagesByOffset() throws IOException {
+        Map<String, byte[]> files = new HashMap<>();
+        files.put("fw.bin", image(1000, 1));
+        files.put("config.bin", image(64, 2));
+        FirmwareBundle bundle = read("# firmware + config\n"
+                + "image config.bin 0x3e000 " + FirmwareBundle.sha256(files.get("config.bin")) + "\n"
+                + "image fw.bin 0 " + FirmwareBundle.sha256(files.get("fw.bin")) + "\n", files);
+
+        assertEquals(2, bundle.getEntries().size());
+        assertEquals("fw.bin", bundle.getEntries().get(0).name);
+        assertEquals(0x3e000, bundle.getEntries().get(1).offset);
+        assertEquals(1064, bundle.getDataBytes());
+    }
+
+    @Test
+    public void read_rejectsBadBundles() throws IOException {
+        Map<String, byte[]> files = new HashMap<>();
+        files.put("a.bin", image(100, 1));
+        files.put("b.bin", image(100, 2));
+        String a = FirmwareBundle.sha256(files.get("a.bin")), b = FirmwareBundle.sha256(files.get("b.bin"));
+        String[] manifests = {
+                "",                                                 // no image
+                "image a.bin 0 " + b,                               // checksum mismatch
+                "image c.bin 0 " + a,                               // missing file
+                "image a.bin 0 " + a + "\nimage b.bin 50 " + b,     // overlap
+                "image a.bin 0x3ffc0 " + a,                         // outside flash
+                "image a.bin 0x7fffffc0 " + a,                      // end past int range
+                "image a.bin 0 " + a + "\npatch a.bin 0x7ffffff8 16 serial",   // patch end past int range
+                "image a.bin 0 " + a + "\npatch a.bin 90 16 serial",// patch outside image
+                "image a.bin 0 " + a + "\npatch a.bin 0 8 id u32",  // u32 is 4 bytes
+                "flash a.bin 0",                                    // unknown directive
+        };
+        for (String manifest : manifests) {
+            try {
+                read(manifest, files);
+                fail("accepted: " + manifest);
+            } catch (IOException expected) {}
+        }
+    }
+
+    @Test
+    public void render_patchesEachBoardWithoutChangingBundle() throws IOException {
+        Map<String, byte[]> files = new HashMap<>();
+        byte[] config = image(64, 3);
+        files.put("config.bin", config);
+        FirmwareBundle bundle = read("image config.bin 0x1000 " + FirmwareBundle.sha256(config) + "\n"
+                + "patch config.bin 0x10 8 serial\n"
+                + "patch config.bin 0x20 4 board u32\n", files);
+
+        Map<String, String> variables = new HashMap<>();
+        variables.put("serial", "AB12");
+        variables.put("board", "0x01020304");
+        ByteBuffer data = bundle.render(variables)[0];
+        assertEquals(64, data.remaining());
+        byte[] expected = config.clone();
+        System.arraycopy(new byte[] {'A', 'B', '1', '2', 0, 0, 0, 0}, 0, expected, 0x10, 8);
+        ByteBuffer.wrap(expected).order(ByteOrder.LITTLE_ENDIAN).putInt(0x20, 0x01020304);
+        byte[] actual = new byte[64];
+        data.get(actual);
+        assertArrayEquals(expected, actual);
+
+        variables.put("serial", "CD34");
+        ByteBuffer other = bundle.render(variables)[0];
+        assertEquals('C', other.get(0x10));
+        assertEquals(3, config[0]);
+
+        variables.put("serial", "TOO-LONG-SERIAL");
+        try {
+            bundle.render(variables);
+            fail("serial longer than patch accepted");
+        } catch (IOException expected2) {}
+        variables.remove("serial");
+        try {
+            bundle.render(variables);
+            fail("missing variable accepted");
+        } catch (IOException expected2) {}
+    }
+}
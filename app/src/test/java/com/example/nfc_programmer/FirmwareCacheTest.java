@@ -0,0 +1,135 @@
+package com.example.nfc_programmer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+import static org.junit.Assert.*;
+
+public class FirmwareCacheTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File writeImage(byte fill, int size) throws IOException {
+        File file = tmp.newFile();
+        byte[] data = new byte[size];
+        java.util.Arrays.fill(data, fill);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    @Test
+    public void get_repeatIsHitAndSameContentShared() throws IOException {
+        FirmwareCache cache = new FirmwareCache(1000);
+        File a = writeImage((byte) 1, 100), b = writeImage((byte) 1, 100);
+
+        FirmwareCache.Image first = cache.get(a.getPath());
+        assertSame(first, cache.get(a.getPath()));
+        assertSame(first, cache.get(b.getPath()));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(100, first.data().remaining());
+        assertTrue(first.data().isDirect());
+    }
+
+    @Test
+    public void get_evictsLeastRecentlyUsed() throws IOException {
+        FirmwareCache cache = new FirmwareCache(250);
+        File a = writeImage((byte) 1, 100), b = writeImage((byte) 2, 100), c = writeImage((byte) 3, 100);
+
+        cache.get(a.getPath());
+        cache.get(b.getPath());
+        cache.get(a.getPath());
+        cache.get(c.getPath());     // evicts b
+        cache.get(a.getPath());
+        assertEquals(2, cache.getHits());
+        cache.get(b.getPath());
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void get_hitDoesNotReadFile() throws IOException {
+        final File file = writeImage((byte) 1, 100);
+        final int[] opened = {0};
+        FirmwareSource source = new FirmwareSource() {
+            @Override
+            public String getName() {
+                return file.getName();
+            }
+
+            @Override
+            public String getCacheKey() {
+                return "key";
+            }
+
+            @Override
+            public long size() {
+                return file.length();
+            }
+
+            @Override
+            public ReadableByteChannel openChannel() throws IOException {
+                opened[0]++;
+                return new FileInputStream(file).getChannel();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        FirmwareCache cache = new FirmwareCache(1000);
+        FirmwareCache.Image first = cache.get(source);
+        assertSame(first, cache.get(source));
+        assertSame(first, cache.get(source));
+        assertEquals(1, opened[0]);
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void get_rebuiltFileIsReloaded() throws IOException {
+        FirmwareCache cache = new FirmwareCache(1000);
+        File file = writeImage((byte) 1, 100);
+        FirmwareCache.Image first = cache.get(file.getPath());
+
+        byte[] rebuilt = new byte[100];
+        java.util.Arrays.fill(rebuilt, (byte) 2);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(rebuilt);
+        }
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+
+        FirmwareCache.Image second = cache.get(file.getPath());
+        assertNotEquals(first.hash, second.hash);
+        assertEquals(2, second.data().get(0));
+        assertEquals(0, cache.getHits());
+        assertSame(second, cache.get(file.getPath()));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void evict_dropsEveryFileOfImage() throws IOException {
+        FirmwareCache cache = new FirmwareCache(150);
+        File a = writeImage((byte) 1, 100), copy = writeImage((byte) 1, 100), b = writeImage((byte) 2, 100);
+
+        cache.get(a.getPath());
+        cache.get(copy.getPath());
+        cache.get(b.getPath());     // evicts image of a and copy
+        cache.get(copy.getPath());
+        cache.get(a.getPath());
+        assertEquals(0, cache.getHits());
+        assertEquals(5, cache.getMisses());
+    }
+
+    @Test(expected = IOException.class)
+    public void get_rejectsEmptyImage() throws IOException {
+        new FirmwareCache(1000).get(writeImage((byte) 0, 0).getPath());
+    }
+}
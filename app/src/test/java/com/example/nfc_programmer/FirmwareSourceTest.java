@@ -0,0 +1,142 @@
+package com.example.nfc_programmer;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link FirmwareSource} from ordinary file descriptors, standing in for ParcelFileDescriptor of a content uri
+ */
+public class FirmwareSourceTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File writeFile(String suffix, byte[] data) throws IOException {
+        File file = File.createTempFile("firmware", suffix, tmp.getRoot());
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    private static FirmwareSource open(File file, String name) throws IOException {
+        final FileInputStream stream = new FileInputStream(file);
+        return FirmwareSource.fromDescriptor(stream.getFD(), name, new Closeable() {
+            @Override
+            public void close() throws IOException {
+                stream.close();
+            }
+        });
+    }
+
+    private static byte[] readAll(ReadableByteChannel channel, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size + 1);
+        while (channel.read(buffer) > 0) {
+        }
+        return java.util.Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    @Test
+    public void descriptor_channelsReadIndependently() throws IOException {
+        byte[] data = new byte[5000];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+
+        try (FirmwareSource source = open(writeFile(".bin", data), "fw.bin")) {
+            assertEquals(data.length, source.size());
+            assertNull(source.getCacheKey());
+            ReadableByteChannel first = source.openChannel(), second = source.openChannel();
+            ByteBuffer part = ByteBuffer.allocate(100);
+            first.read(part);
+            assertArrayEquals(data, readAll(second, data.length));
+            assertEquals(0, source.openStream().read());
+            assertArrayEquals(java.util.Arrays.copyOfRange(data, 100, data.length), readAll(first, data.length));
+        }
+    }
+
+    @Test
+    public void descriptor_loadedIntoCacheAndSharedByContent() throws IOException {
+        byte[] data = new byte[300];
+        java.util.Arrays.fill(data, (byte) 7);
+        File file = writeFile(".bin", data);
+        FirmwareCache cache = new FirmwareCache(1000);
+
+        FirmwareCache.Image byPath = cache.get(file.getPath());
+        try (FirmwareSource source = open(file, "picked.bin")) {
+            FirmwareCache.Image byDescriptor = cache.get(source);
+            assertSame(byPath, byDescriptor);
+        }
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void descriptor_hexIsDecodedWhileFlashing() throws IOException {
+        String hex = ImageDecoderTest.hexRecord(0, 0x0100, new byte[]{1, 2, 3})
+                + ImageDecoderTest.hexRecord(1, 0, new byte[0]);
+        File device = tmp.newFile("device.img");
+
+        try (FirmwareSource source = open(writeFile(".hex", hex.getBytes("US-ASCII")), "fw.hex")) {
+            assertEquals(3, SegmentFlasher.flash(source, device.getPath(), null));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(device, "r")) {
+            file.seek(FlashBackend.FIRMWARE_OFFSET + 0x100);
+            assertEquals(1, file.read());
+            assertEquals(2, file.read());
+        }
+    }
+
+    @Test
+    public void format_detectedFromContentNotName() throws IOException {
+        String hex = ImageDecoderTest.hexRecord(1, 0, new byte[0]);
+        try (FirmwareSource source = open(writeFile(".bin", hex.getBytes("US-ASCII")), "document")) {
+            assertTrue(ImageDecoder.needsDecoding(source));
+        }
+        try (FirmwareSource source = open(writeFile(".hex", new byte[]{0, 0x10, 0, 0x10}), "fw.hex")) {
+            assertFalse(ImageDecoder.needsDecoding(source));
+        }
+    }
+
+    @Test
+    public void pipe_peekedBytesAreReadAgain() throws Exception {
+        final File fifo = new File(tmp.getRoot(), "pipe");
+        Assume.assumeTrue(new ProcessBuilder("mkfifo", fifo.getPath()).start().waitFor() == 0);
+        final String hex = ImageDecoderTest.hexRecord(0, 0x0100, new byte[]{1, 2, 3})
+                + ImageDecoderTest.hexRecord(1, 0, new byte[0]);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try (FileOutputStream out = new FileOutputStream(fifo)) {
+                    out.write(hex.getBytes("US-ASCII"));
+                } catch (IOException ignored) {}
+            }
+        };
+        writer.start();
+        File device = tmp.newFile("device.img");
+
+        try (FirmwareSource source = open(fifo, "picked")) {
+            assertEquals(-1, source.size());
+            assertTrue(ImageDecoder.needsDecoding(source));
+            assertEquals(3, SegmentFlasher.flash(source, device.getPath(), null));
+        }
+        writer.join();
+    }
+
+    @Test(expected = IOException.class)
+    public void descriptor_emptyFileIsRejected() throws IOException {
+        try (FirmwareSource source = open(writeFile(".bin", new byte[0]), "empty.bin")) {
+            new FirmwareCache(1000).get(source);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.nfc_programmer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class FlashHistoryTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = new File(tmp.getRoot(), "history");
+    }
+
+    private static FlashHistory.Record record(String device, String image, FlashHistory.Result result, long writeMicros) {
+        FlashMetrics.Trace trace = new FlashMetrics.Trace();
+        trace.add(FlashMetrics.Phase.WRITE.ordinal(), writeMicros * 1000, 4096);
+        trace.add(FlashMetrics.Phase.SYNC.ordinal(), 1000, 0);
+        return new FlashHistory.Record(device, image, result, trace);
+    }
+
+    @Test
+    public void record_sumsTracesAndMarksPhasesNotRun() {
+        FlashMetrics.Trace job = new FlashMetrics.Trace(), board = new FlashMetrics.Trace();
+        job.add(FlashMetrics.Phase.PROG_MODE.ordinal(), 300000, 0);
+        board.add(FlashMetrics.Phase.WRITE.ordinal(), 2000000, 8192);
+        board.add(FlashMetrics.Phase.WRITE.ordinal(), 1000000, 8192);
+        FlashHistory.Record record = new FlashHistory.Record("serial", "ab12", FlashHistory.Result.OK, job, board);
+        assertEquals(300, record.getMicros(FlashMetrics.Phase.PROG_MODE));
+        assertEquals(3000, record.getMicros(FlashMetrics.Phase.WRITE));
+        assertEquals(-1, record.getMicros(FlashMetrics.Phase.UNMOUNT));
+        assertEquals(16384, record.bytes);
+    }
+
+    @Test
+    public void reopen_keepsCountersAndCutsTornRecord() throws IOException {
+        FlashHistory history = FlashHistory.open(dir);
+        history.append(record("A", "img", FlashHistory.Result.OK, 100));
+        history.append(record("A", "img", FlashHistory.Result.FLASH_ERROR, 100));
+        history.append(record("A", "img", FlashHistory.Result.CANCELLED, 100));
+        history.append(record("B", "img", FlashHistory.Result.OK, 100));
+        history.close();
+
+        // torn append
+        try (RandomAccessFile segment = new RandomAccessFile(new File(dir, FlashHistory.SEGMENT + 0), "rw")) {
+            segment.setLength(segment.length() + 10);
+        }
+
+        history = FlashHistory.open(dir);
+        assertEquals(4, history.size());
+        FlashHistory.DeviceStats a = history.deviceStats("A");
+        assertEquals(3, a.flashes);
+        assertEquals(1, a.failures);
+        assertEquals(1, a.cancelled);
+        assertEquals(0.5, a.getFailureRate(), 1e-9);
+        assertEquals(3 * 4096, a.bytes);
+        assertEquals(0, history.deviceStats("unknown").flashes);
+
+        history.append(record("B", "img", FlashHistory.Result.FAILED, 100));
+        Map<String, FlashHistory.DeviceStats> stats = history.deviceStats();
+        assertEquals(2, stats.size());
+        assertEquals(2, stats.get("B").flashes);
+        assertEquals(1, stats.get("B").failures);
+        history.close();
+    }
+
+    @Test
+    public void percentile_readsLastFlashesOfImageOnly() throws IOException {
+        FlashHistory history = FlashHistory.open(dir, 16, 16);
+        // older and slower flashes of the same image, out of window
+        for (int i = 0; i < 20; i++)
+            history.append(record("A", "img", FlashHistory.Result.OK, 50000));
+        for (int i = 1; i <= 100; i++) {
+            history.append(record("A", "img", FlashHistory.Result.OK, i * 100));
+            history.append(record("B", "other", FlashHistory.Result.OK, 90000));
+        }
+
+        LatencyHistogram write = history.histogram("img", FlashMetrics.Phase.WRITE, 100);
+        assertEquals(100, write.getCount());
+        assertTrue(write.getMaxMicros() <= 10000);
+        long p99 = history.percentileMicros("img", FlashMetrics.Phase.WRITE, 99, 100);
+        assertTrue("p99 " + p99, p99 >= 9000 && p99 <= 10000);
+        assertEquals(120, history.histogram("img", FlashMetrics.Phase.WRITE, 1000).getCount());
+        assertEquals(0, history.histogram("img", FlashMetrics.Phase.UNMOUNT, 100).getCount());
+        assertEquals(0, history.histogram("none", FlashMetrics.Phase.WRITE, 100).getCount());
+        history.close();
+    }
+
+    @Test
+    public void rotation_dropsOldestSegmentAndReopensFromIndex() throws IOException {
+        FlashHistory history = FlashHistory.open(dir, 4, 3);
+        for (int i = 0; i < 14; i++)
+            history.append(record(i < 6 ? "old" : "new", "img", FlashHistory.Result.OK, 100 + i));
+        // segment 0 deleted when segment 3 started, 1 and 2 sealed with their index
+        assertEquals(10, history.size());
+        assertFalse(new File(dir, FlashHistory.SEGMENT + 0).exists());
+        assertTrue(new File(dir, FlashHistory.SEGMENT + 1 + FlashHistory.INDEX).exists());
+        assertEquals(2, history.deviceStats("old").flashes);
+        assertEquals(10, history.histogram("img", FlashMetrics.Phase.WRITE, 100).getCount());
+        history.close();
+
+        history = FlashHistory.open(dir, 4, 3);
+        assertEquals(10, history.size());
+        assertEquals(2, history.deviceStats("old").flashes);
+        assertEquals(8, history.deviceStats("new").flashes);
+        LatencyHistogram write = history.histogram("img", FlashMetrics.Phase.WRITE, 100);
+        assertEquals(10, write.getCount());
+        assertEquals(113, write.getMaxMicros());
+
+        // "old" only left in segment 1, gone with it
+        for (int i = 0; i < 4; i++)
+            history.append(record("new", "img", FlashHistory.Result.OK, 100));
+        assertEquals(0, history.deviceStats("old").flashes);
+        assertFalse(history.deviceStats().containsKey("old"));
+        assertEquals(10, history.size());
+        assertEquals(10, history.histogram("img", FlashMetrics.Phase.WRITE, 100).getCount());
+        history.close();
+    }
+
+    @Test
+    public void rotation_compactsNamesOfDroppedSegments() throws IOException {
+        FlashHistory history = FlashHistory.open(dir, 4, 3);
+        File names = new File(dir, FlashHistory.NAMES);
+        long largest = 0;
+        // one image per flash, only the last 9 to 12 are still in a segment
+        for (int i = 0; i < 1000; i++) {
+            history.append(record("A", "image-" + i, FlashHistory.Result.OK, 100 + i));
+            largest = Math.max(largest, names.length());
+        }
+        // 15 bytes per name, 1000 names without compaction
+        assertTrue("name table of " + largest + " bytes", largest < 2 * FlashHistory.MIN_UNUSED_NAMES * 15);
+        long compacted = names.length();
+        assertEquals(0, history.histogram("image-0", FlashMetrics.Phase.WRITE, 100).getCount());
+        assertEquals(1, history.histogram("image-999", FlashMetrics.Phase.WRITE, 100).getCount());
+        history.close();
+
+        // ids kept by compaction still match the records
+        history = FlashHistory.open(dir, 4, 3);
+        assertEquals(compacted, names.length());
+        LatencyHistogram write = history.histogram("image-998", FlashMetrics.Phase.WRITE, 100);
+        assertEquals(1, write.getCount());
+        assertEquals(1098, write.getMaxMicros());
+        assertEquals(history.size(), history.deviceStats("A").flashes);
+        history.append(record("B", "image-999", FlashHistory.Result.OK, 100));
+        assertEquals(2, history.histogram("image-999", FlashMetrics.Phase.WRITE, 100).getCount());
+        history.close();
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.nfc_programmer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class FlashJobFutureTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private ExecutorService worker;
+    private ScheduledExecutorService scheduler;
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    @Before
+    public void setUp() {
+        worker = Executors.newSingleThreadExecutor();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        // keep the worker busy so jobs stay queued
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        worker.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    private FlashJobFuture queuedJob() throws IOException {
+        File file = File.createTempFile("firmware", ".bin", tmp.getRoot());
+        final FileInputStream stream = new FileInputStream(file);
+        FirmwareSource source = FirmwareSource.fromDescriptor(stream.getFD(), file.getName(), new Closeable() {
+            @Override
+            public void close() throws IOException {
+                closed.set(true);
+                stream.close();
+            }
+        });
+        FlashJobFuture future = new FlashJobFuture(new FlashJob(null, source, new FlashJob.Options(), null));
+        worker.execute(future);
+        return future;
+    }
+
+    @Test
+    public void cancelInQueue_closesSource() throws IOException {
+        FlashJobFuture future = queuedJob();
+        assertTrue(future.cancel(true));
+        assertTrue(future.isDone());
+        assertFalse(future.isTimedOut());
+        assertEquals("flash cancelled", future.getMessage());
+        assertTrue(closed.get());
+        assertTrue(future.isFinished());
+    }
+
+    @Test
+    public void cancelRunning_finishedOnlyWhenJobReturns() throws Exception {
+        release.countDown();
+        final CountDownLatch running = new CountDownLatch(1), resetDone = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        FlashJob job = new FlashJob(null, FirmwareSource.fromPath("fw.bin"), new FlashJob.Options(), null) {
+            @Override
+            public String call() {
+                running.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    // stands in for the mcu reset of a cancelled job
+                    try {
+                        resume.await();
+                    } catch (InterruptedException ignored) {}
+                }
+                resetDone.countDown();
+                return "flash cancelled";
+            }
+        };
+        FlashJobFuture future = new FlashJobFuture(job);
+        worker.execute(future);
+        running.await();
+
+        assertTrue(future.cancel(true));
+        assertTrue(future.isDone());
+        assertFalse(future.isFinished());
+        resume.countDown();
+        resetDone.await();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!future.isFinished() && System.nanoTime() < deadline)
+            Thread.sleep(5);
+        assertTrue(future.isFinished());
+        assertEquals("flash cancelled", future.getMessage());
+    }
+
+    @Test
+    public void expireAfter_cancelsWithTimeout() throws Exception {
+        FlashJobFuture future = queuedJob().expireAfter(20, scheduler);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        // done() closing the source runs right after isDone() turns true
+        while (!closed.get() && System.nanoTime() < deadline)
+            Thread.sleep(5);
+        assertTrue(future.isTimedOut());
+        assertEquals("flash timeout", future.getMessage());
+        assertTrue(closed.get());
+    }
+}
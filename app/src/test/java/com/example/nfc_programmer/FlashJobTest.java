@@ -0,0 +1,79 @@
+package com.example.nfc_programmer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class FlashJobTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FlashService service;
+    private ExecutorService prepareExecutor;
+
+    @Before
+    public void setUp() {
+        // no reset driver: a job touching the mcu would fail with NullPointerException
+        service = new FlashService();
+        service.firmwareCache = new FirmwareCache(FirmwareCache.MAX_IMAGE_SIZE);
+        prepareExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        prepareExecutor.shutdownNow();
+    }
+
+    private File firmware(int size) throws IOException {
+        File file = File.createTempFile("firmware", ".bin", tmp.getRoot());
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+        return file;
+    }
+
+    @Test
+    public void badFirmware_failsBeforeReset() throws IOException {
+        FlashJob job = new FlashJob(service, FirmwareSource.fromPath(firmware(0).getPath()), new FlashJob.Options(), null);
+        assertEquals("firmware file error", job.call());
+    }
+
+    @Test
+    public void badFirmwarePrepared_failsBeforeReset() throws Exception {
+        FlashJob job = new FlashJob(service, FirmwareSource.fromPath(firmware(0).getPath()), new FlashJob.Options(), null);
+        job.prepare(prepareExecutor);
+        // load finished before the job starts, as when it waits in queue
+        prepareExecutor.submit(new Runnable() {
+            @Override
+            public void run() {}
+        }).get();
+        assertEquals("firmware file error", job.call());
+    }
+
+    @Test
+    public void prepare_loadsBeforeJobStarts() throws Exception {
+        File file = firmware(4096);
+        FlashJob.Options options = new FlashJob.Options();
+        options.erased = true;
+        new FlashJob(service, FirmwareSource.fromPath(file.getPath()), options, null).prepare(prepareExecutor);
+        prepareExecutor.submit(new Runnable() {
+            @Override
+            public void run() {}
+        }).get();
+
+        assertEquals(1, service.firmwareCache.getMisses());
+        FirmwareCache.Image image = service.firmwareCache.get(file.getPath());
+        assertEquals(1, service.firmwareCache.getHits());
+        assertEquals(4096, image.extents().getDataBytes());
+    }
+}
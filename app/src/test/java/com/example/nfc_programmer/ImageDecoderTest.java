@@ -0,0 +1,172 @@
+package com.example.nfc_programmer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link ImageDecoder} and {@link Lz4FrameInputStream} with small hand made images
+ */
+public class ImageDecoderTest {
+
+    static String hexRecord(int type, int address, byte[] data) {
+        StringBuilder line = new StringBuilder(":");
+        int sum = data.length + (address >> 8) + (address & 0xff) + type;
+        line.append(String.format("%02X%04X%02X", data.length, address, type));
+        for (byte b : data) {
+            line.append(String.format("%02X", b & 0xff));
+            sum += b & 0xff;
+        }
+        return line.append(String.format("%02X", -sum & 0xff)).append("\r\n").toString();
+    }
+
+    /**
+     * @return address and data of every segment, data copied
+     */
+    private static List<Object[]> decode(byte[] file) throws IOException {
+        List<Object[]> segments = new ArrayList<>();
+        try (SegmentSource source = ImageDecoder.open(new ByteArrayInputStream(file))) {
+            SegmentSource.Segment segment;
+            while ((segment = source.next()) != null)
+                segments.add(new Object[]{segment.address, Arrays.copyOf(segment.data, segment.length)});
+        }
+        return segments;
+    }
+
+    @Test
+    public void hex_mergesContiguousRecordsAndFollowsExtendedAddress() throws IOException {
+        String hex = hexRecord(0, 0x0000, new byte[]{1, 2, 3, 4})
+                + hexRecord(0, 0x0004, new byte[]{5, 6})
+                + hexRecord(0, 0x0100, new byte[]{7})
+                + hexRecord(4, 0, new byte[]{0, 1})
+                + hexRecord(0, 0x0010, new byte[]{8, 9})
+                + hexRecord(1, 0, new byte[0]);
+        List<Object[]> segments = decode(hex.getBytes("US-ASCII"));
+
+        assertEquals(3, segments.size());
+        assertEquals(0L, segments.get(0)[0]);
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6}, (byte[]) segments.get(0)[1]);
+        assertEquals(0x100L, segments.get(1)[0]);
+        assertEquals(0x10010L, segments.get(2)[0]);
+        assertArrayEquals(new byte[]{8, 9}, (byte[]) segments.get(2)[1]);
+    }
+
+    @Test(expected = IOException.class)
+    public void hex_badChecksumIsRejected() throws IOException {
+        decode(":0100000001FF\r\n:00000001FF\r\n".getBytes("US-ASCII"));
+    }
+
+    @Test
+    public void elf_loadSegmentsAtPhysicalAddress() throws IOException {
+        ByteBuffer elf = ByteBuffer.allocate(52 + 2 * 32 + 16).order(ByteOrder.LITTLE_ENDIAN);
+        elf.put(new byte[]{0x7f, 'E', 'L', 'F', 1, 1, 1});
+        elf.putInt(28, 52);             // e_phoff
+        elf.putShort(42, (short) 32);   // e_phentsize
+        elf.putShort(44, (short) 2);    // e_phnum
+        // text, virtual address differ from load address
+        elf.position(52);
+        elf.putInt(1).putInt(116).putInt(0x10000000).putInt(0x1000).putInt(16).putInt(16).putInt(5).putInt(4);
+        // bss, no file data
+        elf.putInt(1).putInt(132).putInt(0x10000100).putInt(0x10000100).putInt(0).putInt(64).putInt(6).putInt(4);
+        for (int i = 0; i < 16; i++)
+            elf.put((byte) (0xA0 + i));
+
+        List<Object[]> segments = decode(elf.array());
+        assertEquals(1, segments.size());
+        assertEquals(0x1000L, segments.get(0)[0]);
+        assertEquals((byte) 0xA0, ((byte[]) segments.get(0)[1])[0]);
+        assertEquals(16, ((byte[]) segments.get(0)[1]).length);
+    }
+
+    @Test
+    public void elf_segmentContainingHeadersIsStreamed() throws IOException {
+        // ld layout: first PT_LOAD starts at file offset 0 and holds elf and program headers
+        ByteBuffer elf = ByteBuffer.allocate(52 + 32 + 16).order(ByteOrder.LITTLE_ENDIAN);
+        elf.put(new byte[]{0x7f, 'E', 'L', 'F', 1, 1, 1});
+        elf.putInt(28, 52);             // e_phoff
+        elf.putShort(42, (short) 32);   // e_phentsize
+        elf.putShort(44, (short) 1);    // e_phnum
+        elf.position(52);
+        elf.putInt(1).putInt(0).putInt(0x10000000).putInt(0x1000).putInt(100).putInt(100).putInt(5).putInt(4);
+        for (int i = 0; i < 16; i++)
+            elf.put((byte) (0xA0 + i));
+
+        List<Object[]> segments = decode(elf.array());
+        assertEquals(1, segments.size());
+        assertEquals(0x1000L, segments.get(0)[0]);
+        assertArrayEquals(elf.array(), (byte[]) segments.get(0)[1]);
+    }
+
+    @Test
+    public void gzip_rawBinaryStartsAtZero() throws IOException {
+        byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i * 13);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(data);
+        }
+
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        long expected = 0;
+        for (Object[] segment : decode(compressed.toByteArray())) {
+            assertEquals(expected, segment[0]);
+            byte[] bytes = (byte[]) segment[1];
+            decoded.write(bytes);
+            expected += bytes.length;
+        }
+        assertArrayEquals(data, decoded.toByteArray());
+    }
+
+    @Test
+    public void lz4_linkedCompressedAndStoredBlocks() throws IOException {
+        byte[] frame = {
+                0x04, 0x22, 0x4D, 0x18, 0x40, 0x40, 0x00,   // magic, linked blocks, 64 KB, header checksum
+                8, 0, 0, 0,                                 // "abc" + match(3, 12) + "z"
+                0x38, 'a', 'b', 'c', 3, 0, 0x10, 'z',
+                3, 0, 0, 0,                                 // match(16, 8) from previous block
+                0x04, 16, 0,
+                2, 0, 0, (byte) 0x80,                       // stored block
+                '!', '?',
+                0, 0, 0, 0};                                // end mark
+        byte[] out = new byte[64];
+        int len = 0, n;
+        try (Lz4FrameInputStream in = new Lz4FrameInputStream(new ByteArrayInputStream(frame))) {
+            while ((n = in.read(out, len, out.length - len)) > 0)
+                len += n;
+        }
+        assertEquals("abcabcabcabcabczabcabcab!?", new String(out, 0, len, "US-ASCII"));
+    }
+
+    @Test
+    public void lz4_defaultBlockSizeIsDecodedWithinLimit() throws IOException {
+        // lz4 cli default: 4 MB blocks declared, small stored block
+        byte[] frame = {
+                0x04, 0x22, 0x4D, 0x18, 0x60, 0x70, 0x00,   // magic, independent blocks, 4 MB, header checksum
+                3, 0, 0, (byte) 0x80, 'f', 'w', '!',
+                0, 0, 0, 0};
+        try (Lz4FrameInputStream in = new Lz4FrameInputStream(new ByteArrayInputStream(frame))) {
+            byte[] out = new byte[8];
+            assertEquals(3, in.read(out, 0, out.length));
+            assertEquals("fw!", new String(out, 0, 3, "US-ASCII"));
+        }
+
+        // block larger than any firmware, rejected before it is read
+        ByteBuffer big = ByteBuffer.allocate(11).order(ByteOrder.LITTLE_ENDIAN);
+        big.put(new byte[]{0x04, 0x22, 0x4D, 0x18, 0x60, 0x70, 0x00}).putInt(0x80000000 | (Lz4FrameInputStream.MAX_BLOCK + 1));
+        try (Lz4FrameInputStream in = new Lz4FrameInputStream(new ByteArrayInputStream(big.array()))) {
+            in.read();
+            fail("block over limit accepted");
+        } catch (IOException expected) {}
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.nfc_programmer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void percentiles_withinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int ms = 1; ms <= 100; ms++)
+            histogram.record(ms * 1000000L, 1000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(50000, histogram.getPercentileMicros(50), 50000 * 0.13);
+        assertEquals(95000, histogram.getPercentileMicros(95), 95000 * 0.13);
+        assertEquals(99000, histogram.getPercentileMicros(99), 99000 * 0.13);
+        assertEquals(100000, histogram.getMaxMicros());
+        // 100 KB in 5.05 s
+        assertEquals(100000 / 5.05, histogram.getThroughput(), 1);
+    }
+
+    @Test
+    public void bucket_boundsAreMonotonic() {
+        for (long us = 1; us < 1L << 40; us = us * 3 / 2 + 1) {
+            int bucket = LatencyHistogram.bucketOf(us);
+            assertTrue(LatencyHistogram.lowerBound(bucket) <= us);
+            assertTrue(LatencyHistogram.lowerBound(bucket + 1) > us);
+        }
+    }
+
+    @Test
+    public void metrics_exportJson() {
+        FlashMetrics metrics = new FlashMetrics();
+        metrics.record(FlashMetrics.Phase.WRITE, FlashMetrics.now(), 4096);
+        String json = metrics.toJson();
+        assertTrue(json.startsWith("{\"NORMAL_RESET\":{\"count\":0"));
+        assertTrue(json.contains("\"WRITE\":{\"count\":1"));
+    }
+}
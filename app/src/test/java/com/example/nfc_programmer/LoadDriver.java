@@ -0,0 +1,171 @@
+package com.example.nfc_programmer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run many flash cycles against {@link SimulatedTarget} boards and report throughput and tail latency <br>
+ * A cycle follows {@link FlashJob}: normal reset, program mode, write image, final reset.
+ * Each worker owns one board, several workers flash concurrently.
+ * <pre>
+ * ./gradlew :app:testDebugUnitTest --tests '*LoadDriverTest' -PsimCycles=5000 -PsimConcurrency=8
+ * </pre>
+ */
+public class LoadDriver {
+
+    /**
+     * Result of a load run
+     */
+    public static class Report {
+        public final LatencyHistogram cycles = new LatencyHistogram();
+        public final AtomicInteger failures = new AtomicInteger();
+        // boards whose device didn't hold the image after their last cycle
+        public final AtomicInteger corrupted = new AtomicInteger();
+        public final AtomicLong bytes = new AtomicLong();
+        public long wallNanos;
+
+        public double cyclesPerSecond() {
+            return wallNanos > 0 ? cycles.getCount() * 1e9 / wallNanos : 0;
+        }
+
+        public double bytesPerSecond() {
+            return wallNanos > 0 ? bytes.get() * 1e9 / wallNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d cycles, %d failed, %d corrupted in %.2f s: %.1f cycles/s, %.1f KB/s, "
+                            + "cycle p50 %d us, p95 %d us, p99 %d us, max %d us",
+                    cycles.getCount(), failures.get(), corrupted.get(), wallNanos / 1e9, cyclesPerSecond(),
+                    bytesPerSecond() / 1024, cycles.getPercentileMicros(50), cycles.getPercentileMicros(95),
+                    cycles.getPercentileMicros(99), cycles.getMaxMicros());
+        }
+    }
+
+    private final SimulatedTarget.Config config;
+    private final ByteBuffer image;
+    private final long modeTimeoutMs;
+
+    /**
+     * @param config: timing of every simulated board
+     * @param image: firmware written in each cycle
+     * @param modeTimeoutMs: how long a reset wait for its usb event
+     */
+    public LoadDriver(SimulatedTarget.Config config, ByteBuffer image, long modeTimeoutMs) {
+        this.config = config;
+        this.image = image.slice().asReadOnlyBuffer();
+        this.modeTimeoutMs = modeTimeoutMs;
+    }
+
+    /**
+     * @param cycles: total flash cycles, shared by workers
+     * @param concurrency: boards flashed at the same time
+     * @return throughput and latency of the run
+     * @throws Exception if a board can't be created or its mode pipe failed
+     */
+    public Report run(int cycles, int concurrency) throws Exception {
+        final Report report = new Report();
+        final AtomicInteger remaining = new AtomicInteger(cycles);
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        List<Future<Void>> futures = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            futures.add(workers.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try (SimulatedTarget target = new SimulatedTarget(config)) {
+                        ResetUtil reset = target.newResetUtil();
+                        reset.setModeTimeout(modeTimeoutMs);
+                        FlashBackend backend = target.newBackend();
+                        boolean flashed = false;
+                        while (remaining.getAndDecrement() > 0) {
+                            long cycleStart = System.nanoTime();
+                            boolean ok = cycle(reset, backend);
+                            report.cycles.record(System.nanoTime() - cycleStart, ok ? image.limit() : 0);
+                            if (ok) {
+                                report.bytes.addAndGet(image.limit());
+                                flashed = true;
+                            } else
+                                report.failures.incrementAndGet();
+                        }
+                        if (flashed && !holdsImage(target))
+                            report.corrupted.incrementAndGet();
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures)
+            future.get();
+        report.wallNanos = System.nanoTime() - start;
+        workers.shutdown();
+        return report;
+    }
+
+    /**
+     * One flash cycle, phases recorded into {@link FlashMetrics} like the app does
+     * @return true if every step succeeded
+     */
+    private boolean cycle(ResetUtil reset, FlashBackend backend) throws IOException, InterruptedException {
+        FlashMetrics metrics = FlashMetrics.get();
+        long cycleStart = FlashMetrics.now(), start = cycleStart;
+        try {
+            reset.enterNormalMode();
+            metrics.record(FlashMetrics.Phase.NORMAL_RESET, start);
+            start = FlashMetrics.now();
+            boolean progMode = reset.enterProgMode();
+            metrics.record(FlashMetrics.Phase.PROG_MODE, start);
+            if (!progMode)
+                return false;
+
+            String[] devices = backend.findDevices();
+            if (devices.length == 0 || backend.flash(image.duplicate(), devices[0], false, null) == -1)
+                return false;
+
+            start = FlashMetrics.now();
+            boolean normalMode = reset.enterNormalMode();
+            metrics.record(FlashMetrics.Phase.FINAL_RESET, start);
+            return normalMode;
+        } finally {
+            metrics.record(FlashMetrics.Phase.CYCLE, cycleStart);
+        }
+    }
+
+    private boolean holdsImage(SimulatedTarget target) throws IOException {
+        byte[] content = new byte[image.limit()];
+        try (RandomAccessFile device = new RandomAccessFile(target.device, "r")) {
+            device.seek(FlashBackend.FIRMWARE_OFFSET);
+            device.readFully(content);
+        }
+        return ByteBuffer.wrap(content).equals(image.duplicate());
+    }
+
+    /**
+     * Run from a plain JVM: LoadDriver [cycles] [concurrency] [image size] <br>
+     * Prints report and metrics JSON, tests only assert on the report
+     */
+    public static void main(String[] args) throws Exception {
+        int cycles = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 64 * 1024;
+        Report report = new LoadDriver(new SimulatedTarget.Config(), randomImage(size), 1000).run(cycles, concurrency);
+        System.out.println(report);
+        System.out.println(FlashMetrics.get().toJson());
+    }
+
+    static ByteBuffer randomImage(int size) {
+        byte[] data = new byte[size];
+        new java.util.Random(size).nextBytes(data);
+        return ByteBuffer.wrap(data);
+    }
+}
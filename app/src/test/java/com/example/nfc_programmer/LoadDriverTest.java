@@ -0,0 +1,36 @@
+package com.example.nfc_programmer;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Flash cycles against simulated boards, size set with -PsimCycles and -PsimConcurrency
+ */
+public class LoadDriverTest {
+
+    @Test
+    public void cycles_allSucceedAndDevicesHoldImage() throws Exception {
+        Assume.assumeTrue(SimulatedTarget.isSupported());
+        int cycles = Integer.getInteger("sim.cycles", 20);
+        int concurrency = Integer.getInteger("sim.concurrency", 4);
+
+        LoadDriver.Report report = new LoadDriver(new SimulatedTarget.Config(), LoadDriver.randomImage(32 * 1024), 2000)
+                .run(cycles, concurrency);
+
+        assertEquals(report.toString(), cycles, report.cycles.getCount());
+        assertEquals(report.toString(), 0, report.failures.get());
+        assertEquals(report.toString(), 0, report.corrupted.get());
+    }
+
+    @Test
+    public void lostUsbEvents_failCyclesWithoutHanging() throws Exception {
+        Assume.assumeTrue(SimulatedTarget.isSupported());
+        SimulatedTarget.Config config = new SimulatedTarget.Config();
+        config.eventLossRate = 1;
+
+        LoadDriver.Report report = new LoadDriver(config, LoadDriver.randomImage(4096), 20).run(3, 1);
+        assertEquals(report.toString(), 3, report.failures.get());
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.nfc_programmer;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class ProgressChannelTest {
+
+    @Test
+    public void poll_returnsLatestOnce() {
+        ProgressChannel channel = new ProgressChannel();
+        assertNull(channel.poll());
+        channel.onJobProgress("a");
+        channel.onJobProgress("b");
+        channel.onJobProgress("c");
+        assertEquals("c", channel.poll());
+        assertNull(channel.poll());
+        assertEquals(3, channel.getPosted());
+        assertEquals(2, channel.getCoalesced());
+    }
+
+    @Test
+    public void concurrentWriters_everyMessageTakenOrCoalesced() throws InterruptedException {
+        final ProgressChannel channel = new ProgressChannel();
+        final int writers = 4, messages = 20000;
+        final CountDownLatch done = new CountDownLatch(writers);
+        for (int w = 0; w < writers; w++) {
+            final int id = w;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < messages; i++)
+                        channel.onJobProgress(id + ":" + i);
+                    done.countDown();
+                }
+            }).start();
+        }
+        long taken = 0;
+        while (done.getCount() > 0) {
+            if (channel.poll() != null)
+                taken++;
+        }
+        if (channel.poll() != null)
+            taken++;
+        assertEquals(writers * messages, channel.getPosted());
+        assertEquals(channel.getPosted(), taken + channel.getCoalesced());
+    }
+}
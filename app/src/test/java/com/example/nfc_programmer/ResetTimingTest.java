@@ -0,0 +1,97 @@
+package com.example.nfc_programmer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ResetTimingTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final String TYPE = ResetTiming.usb(ResetUtil.VID_boot, ResetUtil.PID_boot);
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(tmp.getRoot(), "timing");
+    }
+
+    private static ResetTiming.Budget budget(ResetTiming timing, String serial) {
+        return timing.budget(TYPE, serial, 1000, 5000, 1000);
+    }
+
+    @Test
+    public void unknown_usesDefaultsWithGrace() {
+        ResetTiming.Budget budget = budget(new ResetTiming(null), "A");
+        assertEquals(1000, budget.deadline);
+        assertEquals(1000, budget.grace);
+        assertEquals(1000, budget.pollInterval);
+    }
+
+    @Test
+    public void learned_deadlineFromP99AndPollFromMedian() {
+        ResetTiming timing = new ResetTiming(null);
+        for (int i = 1; i <= 100; i++)
+            timing.record(TYPE, null, i < 100 ? 200 : 400);
+        ResetTiming.Budget budget = budget(timing, null);
+        // 64 most recent: p99 is the 400 ms outlier
+        assertEquals((long) (400 * ResetTiming.MARGIN) + ResetTiming.SLACK, budget.deadline);
+        assertEquals(budget.deadline, budget.grace);
+        assertEquals(50, budget.pollInterval);
+    }
+
+    @Test
+    public void board_usesOwnProfileOnceLearned() {
+        ResetTiming timing = new ResetTiming(null);
+        for (int i = 0; i < ResetTiming.MIN_SAMPLES; i++)
+            timing.record(TYPE, "FAST", 100);
+        for (int i = 0; i < ResetTiming.MIN_SAMPLES - 1; i++)
+            timing.record(TYPE, "SLOW", 2000);
+        // type mixes both, slow board not learned yet
+        assertEquals((long) (2000 * ResetTiming.MARGIN) + ResetTiming.SLACK, budget(timing, "SLOW").deadline);
+        assertEquals((long) (100 * ResetTiming.MARGIN) + ResetTiming.SLACK, budget(timing, "FAST").deadline);
+        timing.record(TYPE, "SLOW", 2000);
+        ResetTiming.Budget slow = budget(timing, "SLOW");
+        assertEquals(3050, slow.deadline);
+        assertEquals(5000 - 3050, slow.grace);
+    }
+
+    @Test
+    public void timeouts_backOffUntilNextArrival() {
+        ResetTiming timing = new ResetTiming(null);
+        for (int i = 0; i < ResetTiming.MIN_SAMPLES; i++)
+            timing.record(TYPE, "A", 100);
+        assertEquals(200, budget(timing, "A").deadline);
+        timing.timeout(TYPE, "A");
+        assertEquals(400, budget(timing, "A").deadline);
+        timing.timeout(TYPE, "A");
+        timing.timeout(TYPE, "A");
+        timing.timeout(TYPE, "A");
+        timing.timeout(TYPE, "A");
+        assertEquals(5000, budget(timing, "A").deadline);
+        assertEquals(0, budget(timing, "A").grace);
+        timing.record(TYPE, "A", 100);
+        assertEquals(200, budget(timing, "A").deadline);
+    }
+
+    @Test
+    public void save_reloadsProfiles() {
+        ResetTiming timing = new ResetTiming(file);
+        for (int i = 0; i < 70; i++)
+            timing.record(TYPE, "board 1", 100 + i);
+        timing.timeout(ResetTiming.VOLUME, null);
+        timing.save();
+
+        ResetTiming loaded = new ResetTiming(file);
+        assertEquals(budget(timing, "board 1").deadline, budget(loaded, "board 1").deadline);
+        assertEquals(budget(timing, "board 1").pollInterval, budget(loaded, "board 1").pollInterval);
+        assertEquals(2000, loaded.budget(ResetTiming.VOLUME, null, 1000, 10000, 1000).deadline);
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.nfc_programmer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link ResetUtil} with a regular file standing in for the gpio-boot-reset mode file and synthetic usb events
+ */
+public class ResetUtilTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File modeFile;
+    private ResetUtil reset;
+
+    @Before
+    public void setUp() throws IOException {
+        modeFile = tmp.newFile("mode.txt");
+        reset = new ResetUtil(modeFile);
+        reset.setModeTimeout(50);
+    }
+
+    private String readMode() throws IOException {
+        byte[] content = new byte[(int) modeFile.length()];
+        try (FileInputStream in = new FileInputStream(modeFile)) {
+            assertEquals(content.length, in.read(content));
+        }
+        return new String(content);
+    }
+
+    @Test
+    public void asyncLatch_armedBeforeModeWrite() throws IOException, InterruptedException {
+        UsbEventLatch latch = reset.enterProgModeAsync();
+        assertEquals("prog", readMode());
+
+        // event arrives before anyone waits
+        assertFalse(reset.onUsbAttached(ResetUtil.VID, ResetUtil.PID));
+        assertTrue(reset.onUsbAttached(ResetUtil.VID_boot, ResetUtil.PID_boot));
+        assertTrue(latch.await(0));
+        // only once
+        assertFalse(reset.onUsbAttached(ResetUtil.VID_boot, ResetUtil.PID_boot));
+    }
+
+    @Test
+    public void enterNormalMode_returnsOnEvent() throws IOException, InterruptedException {
+        reset.setModeTimeout(5000);
+        Thread device = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!reset.onUsbAttached(ResetUtil.VID, ResetUtil.PID))
+                    Thread.yield();
+            }
+        });
+        device.start();
+        assertTrue(reset.enterNormalMode());
+        device.join();
+        assertEquals("normal", readMode());
+    }
+
+    @Test
+    public void enterProgMode_timesOutAndDisarms() throws IOException, InterruptedException {
+        assertFalse(reset.enterProgMode());
+        assertFalse(reset.onUsbAttached(ResetUtil.VID_boot, ResetUtil.PID_boot));
+    }
+
+    @Test
+    public void rearm_cancelsPreviousLatch() throws IOException, InterruptedException {
+        UsbEventLatch first = reset.enterNormalModeAsync();
+        UsbEventLatch second = reset.enterNormalModeAsync();
+        assertTrue(first.isDone());
+        assertFalse(first.await(0));
+        assertTrue(reset.onUsbAttached(ResetUtil.VID, ResetUtil.PID));
+        assertTrue(second.await(0));
+    }
+
+    @Test
+    public void adaptiveTiming_waitsGraceForLateBoardAndLearnsIt() throws IOException, InterruptedException {
+        final ResetTiming timing = new ResetTiming(null);
+        reset.setTiming(timing);
+        String type = ResetTiming.usb(ResetUtil.VID_boot, ResetUtil.PID_boot);
+        for (int i = 0; i < ResetTiming.MIN_SAMPLES; i++)
+            timing.record(type, null, 100);
+        final ResetTiming.Budget budget = timing.budget(type, null, ResetUtil.DEFAULT_MODE_TIMEOUT,
+                ResetUtil.MAX_MODE_TIMEOUT, ResetUtil.DEFAULT_MODE_TIMEOUT);
+        assertEquals(200, budget.deadline);
+
+        // board attaches after the deadline, within grace
+        Thread device = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(budget.deadline + 100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                reset.onUsbAttached(ResetUtil.VID_boot, ResetUtil.PID_boot, "BOARD1");
+            }
+        });
+        device.start();
+        assertTrue(reset.enterProgMode());
+        device.join();
+        assertEquals("BOARD1", reset.getSerial(ResetUtil.VID_boot, ResetUtil.PID_boot));
+        // outlier learned, next deadline covers it
+        assertTrue(timing.budget(type, null, ResetUtil.DEFAULT_MODE_TIMEOUT, ResetUtil.MAX_MODE_TIMEOUT,
+                ResetUtil.DEFAULT_MODE_TIMEOUT).deadline > budget.deadline + 100);
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.nfc_programmer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link SegmentFlasher} with a regular file standing in for /dev/block/sdX
+ */
+public class SegmentFlasherTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void hex_sparseWriteWithVectorChecksum() throws IOException {
+        ByteBuffer vector = ByteBuffer.allocate(28).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 7; i++)
+            vector.putInt(0x10000000 + i * 0x101);
+        String hex = ImageDecoderTest.hexRecord(0, 0x0000, vector.array())
+                + ImageDecoderTest.hexRecord(0, 0x0400, new byte[]{0x11, 0x22})
+                + ImageDecoderTest.hexRecord(1, 0, new byte[0]);
+
+        File firmware = tmp.newFile("firmware.hex");
+        try (FileOutputStream out = new FileOutputStream(firmware)) {
+            out.write(hex.getBytes("US-ASCII"));
+        }
+        File device = tmp.newFile("device.img");
+
+        assertEquals(30, SegmentFlasher.flash(FirmwareSource.fromPath(firmware.getPath()), device.getPath(), null));
+
+        byte[] content = new byte[0x400 + 2];
+        try (RandomAccessFile file = new RandomAccessFile(device, "r")) {
+            assertEquals(FlashBackend.FIRMWARE_OFFSET + 0x400 + 2, file.length());
+            file.seek(FlashBackend.FIRMWARE_OFFSET);
+            file.readFully(content);
+        }
+        ByteBuffer words = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        int sum = 0;
+        for (int i = 0; i < 8; i++)
+            sum += words.getInt(i * 4);
+        assertEquals(0, sum);
+        // gap between segments is left untouched
+        assertEquals(0, content[0x200]);
+        assertEquals(0x11, content[0x400]);
+        assertEquals(0x22, content[0x401]);
+    }
+
+    @Test
+    public void segmentOutsideFlashFails() throws IOException {
+        String hex = ImageDecoderTest.hexRecord(4, 0, new byte[]{0, 0x10})
+                + ImageDecoderTest.hexRecord(0, 0, new byte[]{1})
+                + ImageDecoderTest.hexRecord(1, 0, new byte[0]);
+        File firmware = tmp.newFile("firmware.hex");
+        try (FileOutputStream out = new FileOutputStream(firmware)) {
+            out.write(hex.getBytes("US-ASCII"));
+        }
+        File device = tmp.newFile("device.img");
+
+        assertEquals(-1, SegmentFlasher.flash(FirmwareSource.fromPath(firmware.getPath()), device.getPath(), null));
+    }
+}
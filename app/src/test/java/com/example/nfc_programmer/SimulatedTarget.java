@@ -0,0 +1,249 @@
+package com.example.nfc_programmer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulated <b>lcp11u68</b> board, so the flash stack can run headless on a plain Linux JVM <br>
+ * - mode file is a named pipe standing in for gpio-boot-reset, writing "prog" / "normal" reset the mcu <br>
+ * - each reset is answered with usb detach, then attach of boot (0x1fc9:0x0017) or normal (0x23eb:0x0004) VID:PID <br>
+ * - block device is a regular file, only present in boot mode, written with device latency and bandwidth
+ */
+public class SimulatedTarget implements Closeable {
+
+    /**
+     * Synthetic usb events, same information as the UsbManager broadcasts
+     */
+    public interface UsbListener {
+        void onUsbAttached(int vendorId, int productId);
+
+        void onUsbDetached(int vendorId, int productId);
+    }
+
+    /**
+     * Timing of the simulated board
+     */
+    public static class Config {
+        // from mode write until new usb device attached
+        public long enumerationDelayMs = 5;
+        // cost of each device read / write / sync
+        public long operationLatencyMicros = 100;
+        // device transfer rate, 0 for unlimited
+        public long bytesPerSecond = 20 * 1024 * 1024;
+        // probability an attach event is never delivered
+        public double eventLossRate = 0;
+    }
+
+    final File dir, modeFile, device;
+    private final Config config;
+    private final List<UsbListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService usb = Executors.newSingleThreadScheduledExecutor();
+    private final Random random = new Random();
+    private final Thread modeReader;
+    private volatile boolean progMode, running = true;
+    private volatile int resets;
+    // mode pipe failure, raised by close() so the run using this board fails
+    private volatile IOException modeError;
+
+    /**
+     * @return true if named pipes can be created (Linux, macOS)
+     */
+    public static boolean isSupported() {
+        try {
+            File dir = createDir();
+            boolean supported = mkfifo(new File(dir, "probe"));
+            new File(dir, "probe").delete();
+            dir.delete();
+            return supported;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Create board in normal mode
+     * @param config: timing of the board
+     * @throws IOException if mode pipe or device file can't be created
+     */
+    public SimulatedTarget(Config config) throws IOException {
+        this.config = config;
+        dir = createDir();
+        modeFile = new File(dir, "mode");
+        device = new File(dir, "sda");
+        if (!mkfifo(modeFile) || !device.createNewFile())
+            throw new IOException("can't create simulated board in " + dir);
+
+        modeReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readModes();
+            }
+        }, "sim-mode-" + dir.getName());
+        modeReader.setDaemon(true);
+        modeReader.start();
+    }
+
+    private static File createDir() throws IOException {
+        File dir = File.createTempFile("lpc11u68", "");
+        if (!dir.delete() || !dir.mkdir())
+            throw new IOException("can't create " + dir);
+        return dir;
+    }
+
+    private static boolean mkfifo(File file) throws IOException {
+        try {
+            return new ProcessBuilder("mkfifo", file.getPath()).start().waitFor() == 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public void addUsbListener(UsbListener listener) {
+        listeners.add(listener);
+    }
+
+    public boolean isProgMode() {
+        return progMode;
+    }
+
+    /**
+     * @return number of mcu resets seen on mode file
+     */
+    public int getResets() {
+        return resets;
+    }
+
+    /**
+     * @return ResetUtil driving this board, its usb events already connected
+     */
+    public ResetUtil newResetUtil() {
+        final ResetUtil reset = new ResetUtil(modeFile);
+        addUsbListener(new UsbListener() {
+            @Override
+            public void onUsbAttached(int vendorId, int productId) {
+                reset.onUsbAttached(vendorId, productId);
+            }
+
+            @Override
+            public void onUsbDetached(int vendorId, int productId) {
+            }
+        });
+        return reset;
+    }
+
+    /**
+     * @return java backend writing into this board's block device with its latency, device path is ignored
+     */
+    public FlashBackend newBackend() {
+        return new ChannelFlashBackend() {
+            @Override
+            protected FileChannel openDevice(String devPath) throws IOException {
+                if (!progMode)
+                    throw new IOException("simulated board is not in programming mode");
+                FileChannel channel = super.openDevice(device.getPath());
+                return new ThrottledFileChannel(channel, config.operationLatencyMicros * 1000, config.bytesPerSecond);
+            }
+
+            @Override
+            public String[] findDevices() {
+                return progMode ? new String[]{device.getPath()} : new String[0];
+            }
+        };
+    }
+
+    /**
+     * Each writer of the pipe is one mode change, like one write into gpio-boot-reset sysfs file
+     */
+    private void readModes() {
+        byte[] buffer = new byte[64];
+        while (running) {
+            StringBuilder mode = new StringBuilder();
+            try (FileInputStream in = new FileInputStream(modeFile)) {
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                    mode.append(new String(buffer, 0, n, "US-ASCII"));
+            } catch (IOException e) {
+                if (running)
+                    modeError = e;
+                return;
+            }
+            if (running)
+                onMode(mode.toString().trim());
+        }
+    }
+
+    private void onMode(String mode) {
+        final boolean prog;
+        if ("prog".equals(mode))
+            prog = true;
+        else if ("normal".equals(mode))
+            prog = false;
+        else
+            return;
+
+        resets++;
+        final int[] from = progMode ? bootIds() : normalIds();
+        final int[] to = prog ? bootIds() : normalIds();
+        progMode = false;
+        usb.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (UsbListener listener : listeners)
+                    listener.onUsbDetached(from[0], from[1]);
+            }
+        });
+        final boolean lost = random.nextDouble() < config.eventLossRate;
+        usb.schedule(new Runnable() {
+            @Override
+            public void run() {
+                progMode = prog;
+                if (lost)
+                    return;
+                for (UsbListener listener : listeners)
+                    listener.onUsbAttached(to[0], to[1]);
+            }
+        }, config.enumerationDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static int[] bootIds() {
+        return new int[]{ResetUtil.VID_boot, ResetUtil.PID_boot};
+    }
+
+    private static int[] normalIds() {
+        return new int[]{ResetUtil.VID, ResetUtil.PID};
+    }
+
+    /**
+     * Stop the board and delete its files
+     * @throws IOException if mode pipe failed while the board was running, resets after it were never seen
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        // open a writer so a reader blocked on the pipe returns
+        if (modeReader.isAlive())
+            new FileOutputStream(modeFile).close();
+        try {
+            modeReader.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        usb.shutdownNow();
+        modeFile.delete();
+        device.delete();
+        dir.delete();
+        if (modeError != null)
+            throw new IOException("simulated mode file error", modeError);
+    }
+}
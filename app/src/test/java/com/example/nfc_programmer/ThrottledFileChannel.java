@@ -0,0 +1,141 @@
+package com.example.nfc_programmer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * File channel with the latency and bandwidth of a slow usb mass storage device, for {@link SimulatedTarget} <br>
+ * Every read, write and force pays a fixed latency, reads and writes also pay their size over the bandwidth.
+ */
+public class ThrottledFileChannel extends FileChannel {
+    private final FileChannel channel;
+    private final long latencyNanos;
+    private final long bytesPerSecond;
+
+    /**
+     * @param channel: backing file
+     * @param latencyNanos: cost of each operation
+     * @param bytesPerSecond: transfer rate, 0 for unlimited
+     */
+    ThrottledFileChannel(FileChannel channel, long latencyNanos, long bytesPerSecond) {
+        this.channel = channel;
+        this.latencyNanos = latencyNanos;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    private void delay(long bytes) {
+        long nanos = latencyNanos + (bytesPerSecond > 0 ? bytes * 1000000000L / bytesPerSecond : 0);
+        long deadline = System.nanoTime() + nanos, remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0)
+            LockSupport.parkNanos(remaining);
+    }
+
+    private static long remaining(ByteBuffer[] buffers, int offset, int length) {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++)
+            total += buffers[i].remaining();
+        return total;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        delay(dst.remaining());
+        return channel.read(dst);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        delay(remaining(dsts, offset, length));
+        return channel.read(dsts, offset, length);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        delay(dst.remaining());
+        return channel.read(dst, position);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        delay(src.remaining());
+        return channel.write(src);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        delay(remaining(srcs, offset, length));
+        return channel.write(srcs, offset, length);
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        delay(src.remaining());
+        return channel.write(src, position);
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        delay(0);
+        channel.force(metaData);
+    }
+
+    @Override
+    public long position() throws IOException {
+        return channel.position();
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+        channel.position(newPosition);
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        channel.truncate(size);
+        return this;
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        delay(count);
+        return channel.transferTo(position, count, target);
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        delay(count);
+        return channel.transferFrom(src, position, count);
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        throw new IOException("block device can't be mapped");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        return channel.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return channel.tryLock(position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.nfc_programmer;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class UsbEventLatchTest {
+
+    @Test
+    public void eventBeforeAwait_isNotLost() throws InterruptedException {
+        UsbEventLatch latch = new UsbEventLatch(0x1fc9, 0x0017);
+        assertTrue(latch.complete(true));
+
+        long start = System.nanoTime();
+        assertTrue(latch.await(1000));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void completesExactlyOnce() {
+        UsbEventLatch latch = new UsbEventLatch(1, 2);
+        final AtomicInteger calls = new AtomicInteger();
+        latch.then(new UsbEventLatch.Callback() {
+            @Override
+            public void onComplete(boolean arrived, long elapsedNanos) {
+                assertTrue(arrived);
+                calls.incrementAndGet();
+            }
+        });
+
+        assertTrue(latch.complete(true));
+        assertFalse(latch.complete(false));
+        assertEquals(1, calls.get());
+        assertTrue(latch.getElapsedNanos() >= 0);
+    }
+
+    @Test
+    public void await_timesOutWhilePending() throws InterruptedException {
+        UsbEventLatch latch = new UsbEventLatch(1, 2);
+        assertFalse(latch.await(20));
+        assertFalse(latch.isDone());
+        assertEquals(-1, latch.getElapsedNanos());
+    }
+
+    @Test
+    public void await_wokenByEventFromOtherThread() throws InterruptedException {
+        final UsbEventLatch latch = new UsbEventLatch(1, 2);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ignored) {
+                }
+                latch.complete(true);
+            }
+        }).start();
+        assertTrue(latch.await(5000));
+    }
+
+    @Test
+    public void expireAfter_completesWithoutEvent() throws InterruptedException {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] result = {true};
+        new UsbEventLatch(1, 2).expireAfter(10, scheduler).then(new UsbEventLatch.Callback() {
+            @Override
+            public void onComplete(boolean arrived, long elapsedNanos) {
+                result[0] = arrived;
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(result[0]);
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void concurrentCompleters_oneWins() throws InterruptedException {
+        for (int round = 0; round < 100; round++) {
+            final UsbEventLatch latch = new UsbEventLatch(1, 2);
+            final AtomicInteger winners = new AtomicInteger();
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (latch.complete(true))
+                            winners.incrementAndGet();
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+            assertEquals(1, winners.get());
+        }
+    }
+}
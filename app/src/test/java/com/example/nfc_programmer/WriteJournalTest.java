@@ -0,0 +1,143 @@
+package com.example.nfc_programmer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class WriteJournalTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final int SIZE = 5 * WriteJournal.CHUNK_SIZE + 100;
+    private static final String HASH = "ab12";
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = new File(tmp.getRoot(), "journal");
+    }
+
+    @Test
+    public void reopen_resumesAfterContiguousCommits() throws IOException {
+        WriteJournal journal = WriteJournal.open(dir, "/dev/block/sda", HASH, SIZE);
+        assertEquals(0, journal.getResumeOffset());
+        journal.commit(0);
+        journal.commit(1);
+        journal.commit(3);
+        journal.close();
+
+        journal = WriteJournal.open(dir, "/dev/block/sda", HASH, SIZE);
+        assertEquals(2 * WriteJournal.CHUNK_SIZE, journal.getResumeOffset());
+        assertTrue(journal.isCommitted(3));
+        journal.commit(2);
+        assertEquals(4 * WriteJournal.CHUNK_SIZE, journal.getResumeOffset());
+        journal.commit(4);
+        journal.commit(5);
+        assertEquals(SIZE, journal.getResumeOffset());
+        journal.close();
+    }
+
+    @Test
+    public void otherImageOrDevice_startsOver() throws IOException {
+        WriteJournal journal = WriteJournal.open(dir, "/dev/block/sda", HASH, SIZE);
+        journal.commit(0);
+        journal.close();
+
+        journal = WriteJournal.open(dir, "/dev/block/sdb", HASH, SIZE);
+        assertEquals(0, journal.getResumeOffset());
+        journal.close();
+        journal = WriteJournal.open(dir, "/dev/block/sda", "cd34", SIZE);
+        assertEquals(0, journal.getResumeOffset());
+        journal.close();
+        // journal of first image on sda was dropped by the second one
+        journal = WriteJournal.open(dir, "/dev/block/sda", HASH, SIZE);
+        assertEquals(0, journal.getResumeOffset());
+        journal.close();
+    }
+
+    @Test
+    public void serialKey_followsBoardToAnotherPort() throws IOException {
+        WriteJournal journal = WriteJournal.open(dir, "0123456789AB", HASH, SIZE);
+        journal.commit(0);
+        journal.close();
+
+        // same board on another node resumes, another board never does
+        journal = WriteJournal.open(dir, "0123456789AB", HASH, SIZE);
+        assertEquals(WriteJournal.CHUNK_SIZE, journal.getResumeOffset());
+        journal.close();
+        journal = WriteJournal.open(dir, "BA9876543210", HASH, SIZE);
+        assertEquals(0, journal.getResumeOffset());
+        journal.close();
+    }
+
+    @Test
+    public void commits_areWrittenOnSync() throws IOException {
+        WriteJournal journal = WriteJournal.open(dir, "/dev/block/sda", HASH, SIZE);
+        File file = dir.listFiles()[0];
+        long header = file.length();
+        journal.commit(0);
+        journal.commit(1);
+        assertEquals(header, file.length());
+        journal.sync();
+        assertEquals(header + 2 * 4, file.length());
+        journal.commit(2);
+        journal.close();
+        assertEquals(header + 3 * 4, file.length());
+    }
+
+    @Test
+    public void tornRecord_isIgnored() throws IOException {
+        WriteJournal journal = WriteJournal.open(dir, "/dev/block/sda", HASH, SIZE);
+        journal.commit(0);
+        journal.close();
+        File file = dir.listFiles()[0];
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(raw.length());
+            raw.write(new byte[]{0, 0});
+        }
+
+        journal = WriteJournal.open(dir, "/dev/block/sda", HASH, SIZE);
+        assertEquals(WriteJournal.CHUNK_SIZE, journal.getResumeOffset());
+        journal.commit(1);
+        journal.close();
+        journal = WriteJournal.open(dir, "/dev/block/sda", HASH, SIZE);
+        assertEquals(2 * WriteJournal.CHUNK_SIZE, journal.getResumeOffset());
+        journal.complete();
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void verifier_commitsVerifiedChunks() throws IOException {
+        byte[] data = new byte[SIZE];
+        for (int i = 0; i < SIZE; i++)
+            data[i] = (byte) (i * 3);
+        File device = tmp.newFile("device.img");
+        // first two chunks already on device from an interrupted flash
+        try (RandomAccessFile raw = new RandomAccessFile(device, "rw")) {
+            raw.seek(FlashBackend.FIRMWARE_OFFSET);
+            raw.write(data, 0, 2 * WriteJournal.CHUNK_SIZE);
+        }
+        WriteJournal journal = WriteJournal.open(dir, device.getPath(), HASH, SIZE);
+        journal.commit(0);
+        journal.commit(1);
+
+        ChunkVerifier verifier = new ChunkVerifier(ByteBuffer.wrap(data), device.getPath(), null);
+        verifier.setJournal(journal);
+        ExtentIndex rest = ExtentIndex.full(SIZE).from(journal.getResumeOffset());
+        long skipped = new ChannelFlashBackend().flash(ByteBuffer.wrap(data), rest, device.getPath(), verifier);
+
+        assertEquals(2 * WriteJournal.CHUNK_SIZE, skipped);
+        assertTrue(verifier.finish().success());
+        assertEquals(SIZE, journal.getResumeOffset());
+        journal.close();
+    }
+}
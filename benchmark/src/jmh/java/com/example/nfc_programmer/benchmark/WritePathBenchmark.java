@@ -0,0 +1,150 @@
+package com.example.nfc_programmer.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write strategies of the flashing backends, against a regular file standing in for /dev/block/sdX <br>
+ * Every benchmark writes the whole image at 0x800, like a flash of <b>lcp11u68</b>.
+ * Use <i>-Djmh.device.dir=/mnt/loop</i> to put the stand-in device on a loop device or another file system.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class WritePathBenchmark {
+    static final long FIRMWARE_OFFSET = 0x800;
+
+    // up to the 256 KB flash of lcp11u68
+    @Param({"16384", "65536", "262144"})
+    int imageSize;
+
+    @Param({"512", "4096", "65536"})
+    int chunkSize;
+
+    // fsync after every chunk or once at the end
+    @Param({"false", "true"})
+    boolean syncPerChunk;
+
+    /**
+     * Image in a heap or direct buffer, its own state so only the benchmark using it runs once per kind of buffer
+     */
+    @State(Scope.Thread)
+    public static class ImageBuffer {
+        @Param({"heap", "direct"})
+        String buffer;
+
+        ByteBuffer image;
+
+        @Setup(Level.Trial)
+        public void setUp(WritePathBenchmark benchmark) {
+            int size = benchmark.imageSize;
+            image = "direct".equals(buffer) ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            image.put(benchmark.imageBytes).flip();
+        }
+    }
+
+    private File imageFile, deviceFile;
+    byte[] imageBytes;
+    private RandomAccessFile device;
+    private FileChannel deviceChannel;
+    private FileInputStream imageStream;
+    private FileChannel imageChannel;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File dir = new File(System.getProperty("jmh.device.dir", System.getProperty("java.io.tmpdir")));
+        imageBytes = new byte[imageSize];
+        new Random(42).nextBytes(imageBytes);
+
+        imageFile = File.createTempFile("firmware", ".bin", dir);
+        try (FileOutputStream out = new FileOutputStream(imageFile)) {
+            out.write(imageBytes);
+        }
+        deviceFile = File.createTempFile("device", ".img", dir);
+        device = new RandomAccessFile(deviceFile, "rw");
+        device.setLength(FIRMWARE_OFFSET + imageSize);
+        deviceChannel = device.getChannel();
+        imageStream = new FileInputStream(imageFile);
+        imageChannel = imageStream.getChannel();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        imageChannel.close();
+        imageStream.close();
+        deviceChannel.close();
+        device.close();
+        imageFile.delete();
+        deviceFile.delete();
+    }
+
+    /**
+     * Positional {@link FileChannel} writes from a heap or direct buffer (ChannelFlashBackend image path)
+     */
+    @Benchmark
+    public long channelPositionalWrite(ImageBuffer buffer) throws IOException {
+        long written = 0;
+        for (int pos = 0; pos < imageSize; pos += chunkSize) {
+            ByteBuffer chunk = buffer.image.duplicate();
+            chunk.position(pos).limit(Math.min(pos + chunkSize, imageSize));
+            while (chunk.hasRemaining())
+                written += deviceChannel.write(chunk, FIRMWARE_OFFSET + chunk.position());
+            if (syncPerChunk)
+                deviceChannel.force(false);
+        }
+        if (!syncPerChunk)
+            deviceChannel.force(false);
+        return written;
+    }
+
+    /**
+     * <i>transferTo</i> from firmware file channel into device channel (ChannelFlashBackend file path)
+     */
+    @Benchmark
+    public long channelTransferTo() throws IOException {
+        long written = 0;
+        deviceChannel.position(FIRMWARE_OFFSET);
+        while (written < imageSize) {
+            written += imageChannel.transferTo(written, Math.min(chunkSize, imageSize - written), deviceChannel);
+            if (syncPerChunk)
+                deviceChannel.force(false);
+        }
+        if (!syncPerChunk)
+            deviceChannel.force(false);
+        return written;
+    }
+
+    /**
+     * Sequential stream writes from a byte array, like the original single write() path
+     */
+    @Benchmark
+    public long streamWrite() throws IOException {
+        device.seek(FIRMWARE_OFFSET);
+        for (int pos = 0; pos < imageSize; pos += chunkSize) {
+            device.write(imageBytes, pos, Math.min(chunkSize, imageSize - pos));
+            if (syncPerChunk)
+                device.getFD().sync();
+        }
+        if (!syncPerChunk)
+            device.getFD().sync();
+        return imageSize;
+    }
+}
@@ -0,0 +1,16 @@
+// Host stand-in for the NDK log header, so native-lib builds outside Android for benchmarking
+#ifndef ANDROID_LOG_H
+#define ANDROID_LOG_H
+
+#include <stdio.h>
+
+#define ANDROID_LOG_DEBUG 3
+#define ANDROID_LOG_INFO 4
+#define ANDROID_LOG_WARN 5
+#define ANDROID_LOG_ERROR 6
+
+// only warnings and errors, info lines would dominate the timing
+#define __android_log_print(prio, tag, ...) \
+    ((prio) >= ANDROID_LOG_WARN ? fprintf(stderr, __VA_ARGS__) : 0)
+
+#endif //ANDROID_LOG_H
@@ -0,0 +1,76 @@
+// Compare page cache engine (flashBuffer) with direct I/O engine (flashDirect) on the same target
+#include "native-lib.cpp"
+#include <algorithm>
+#include <vector>
+
+/**
+ * Time flashing of whole image, including fsync
+ * @return durations in ns, empty if a run failed
+ */
+static std::vector<uint64_t> run(bool direct, const uint8_t *image, uint32_t size, const char *target, int iterations)
+{
+    std::vector<uint64_t> durations;
+    for (int i = 0; i < iterations; ++i)
+    {
+        uint64_t start = nowNs();
+        ssize_t ret = direct ? flashDirect(image, size, NULL, 0, target, NULL)
+                             : flashBuffer(image, size, target, false, NULL);
+        if (ret == -1)
+            return std::vector<uint64_t>();
+        durations.push_back(nowNs() - start);
+    }
+    std::sort(durations.begin(), durations.end());
+    return durations;
+}
+
+static void print(const char *name, std::vector<uint64_t> d, uint32_t size)
+{
+    if (d.empty())
+    {
+        printf("%-12s failed\n", name);
+        return;
+    }
+    uint64_t sum = 0;
+    for (uint64_t n : d)
+        sum += n;
+    uint64_t mean = sum / d.size();
+    printf("%-12s n=%zu mean=%.3fms p50=%.3fms p95=%.3fms max=%.3fms %.1fKB/s\n", name, d.size(),
+           mean / 1e6, d[d.size() / 2] / 1e6, d[d.size() * 95 / 100] / 1e6, d.back() / 1e6,
+           mean ? size * 1e9 / mean / 1024 : 0);
+}
+
+int main(int argc, char **argv)
+{
+    if (argc < 2)
+    {
+        fprintf(stderr, "usage: %s <file or loop device> [image size, max %d] [iterations]\n", argv[0], MAXSIZE);
+        return 1;
+    }
+    const char *target = argv[1];
+    uint32_t size = argc > 2 ? (uint32_t) atoi(argv[2]) : MAXSIZE;
+    int iterations = argc > 3 ? atoi(argv[3]) : 20;
+    if (!size || size > MAXSIZE || iterations <= 0)
+    {
+        fprintf(stderr, "invalid image size or iterations\n");
+        return 1;
+    }
+
+    // regular file target is created if missing
+    int fd = open(target, O_RDWR | O_CREAT, 0644);
+    if (fd == -1)
+    {
+        fprintf(stderr, "can't open %s: %s\n", target, strerror(errno));
+        return 1;
+    }
+    close(fd);
+
+    std::vector<uint8_t> image(size);
+    for (uint32_t i = 0; i < size; ++i)
+        image[i] = (uint8_t) (i * 31 + (i >> 9));
+
+    // interleave engines so device cache state is comparable
+    run(false, image.data(), size, target, 1);
+    print("page-cache", run(false, image.data(), size, target, iterations), size);
+    print("direct", run(true, image.data(), size, target, iterations), size);
+    return 0;
+}